@@ -48,6 +48,26 @@ public class BZip2BitInputStream {
 	 */
 	private int bitCount;
 
+	/**
+	 * The number of bytes that have been read from the input stream
+	 */
+	private long bytesRead;
+
+	/**
+	 * The value of {@link #bitBuffer} at the last call to {@link #mark(int)}
+	 */
+	private int markedBitBuffer;
+
+	/**
+	 * The value of {@link #bitCount} at the last call to {@link #mark(int)}
+	 */
+	private int markedBitCount;
+
+	/**
+	 * The value of {@link #bytesRead} at the last call to {@link #mark(int)}
+	 */
+	private long markedBytesRead;
+
 
 	/**
 	 * Reads a single bit from the wrapped input stream
@@ -67,6 +87,7 @@ public class BZip2BitInputStream {
 			if (byteRead < 0) {
 				throw new BZip2Exception ("Insufficient data");
 			}
+			this.bytesRead++;
 
 			bitBuffer = (bitBuffer << 8) | byteRead;
 			bitCount += 7;
@@ -99,6 +120,7 @@ public class BZip2BitInputStream {
 				if (byteRead < 0) {
 					throw new BZip2Exception ("Insufficient data");
 				}
+				this.bytesRead++;
 
 				bitBuffer = (bitBuffer << 8) | byteRead;
 				bitCount += 7;
@@ -133,6 +155,7 @@ public class BZip2BitInputStream {
 				if (byteRead < 0) {
 					throw new BZip2Exception ("Insufficient data");
 				}
+				this.bytesRead++;
 
 				bitBuffer = (bitBuffer << 8) | byteRead;
 				bitCount += 8;
@@ -161,6 +184,114 @@ public class BZip2BitInputStream {
 	}
 
 
+	/**
+	 * Reads forward one bit at a time until a complete 48-bit block header or end-of-stream marker
+	 * has been read. Note that as the markers are not escaped within the compressed data, a match
+	 * may occasionally be found within a block's data
+	 * @return {@code true} if a block header marker was read, or {@code false} if an end-of-stream
+	 *         marker was read
+	 * @throws IOException if the input stream ends before either marker is found
+	 */
+	public boolean readToNextMarker() throws IOException {
+
+		final long blockHeaderMarker = ((long)BZip2Constants.BLOCK_HEADER_MARKER_1 << 24) | BZip2Constants.BLOCK_HEADER_MARKER_2;
+		final long streamEndMarker = ((long)BZip2Constants.STREAM_END_MARKER_1 << 24) | BZip2Constants.STREAM_END_MARKER_2;
+
+		long window = readBits (24);
+		window = (window << 24) | readBits (24);
+
+		for (;;) {
+			if (window == blockHeaderMarker) {
+				return true;
+			}
+			if (window == streamEndMarker) {
+				return false;
+			}
+			window = ((window << 1) | (readBoolean() ? 1 : 0)) & 0xffffffffffffL;
+		}
+
+	}
+
+
+	/**
+	 * Discards the unread bits of the current byte, if any, so that the next bit read is the first
+	 * bit of a byte
+	 */
+	public void alignToByte() {
+
+		this.bitCount -= this.bitCount & 7;
+
+	}
+
+
+	/**
+	 * Tests whether any further bits are available, reading a byte from the wrapped input stream
+	 * if required
+	 * @return {@code true} if at least one more bit can be read
+	 * @throws IOException on any I/O error reading the input stream
+	 */
+	public boolean hasMoreData() throws IOException {
+
+		if (this.bitCount > 0) {
+			return true;
+		}
+
+		final int byteRead = this.inputStream.read();
+		if (byteRead < 0) {
+			return false;
+		}
+		this.bytesRead++;
+
+		this.bitBuffer = (this.bitBuffer << 8) | byteRead;
+		this.bitCount = 8;
+
+		return true;
+
+	}
+
+
+	/**
+	 * Marks the current position, so that a later call to {@link #reset()} returns to it. The
+	 * wrapped input stream must support marking
+	 * @param readLimit The maximum number of bytes that may be read from the wrapped stream before
+	 *                  the mark becomes invalid
+	 */
+	void mark (final int readLimit) {
+
+		this.inputStream.mark (readLimit);
+		this.markedBitBuffer = this.bitBuffer;
+		this.markedBitCount = this.bitCount;
+		this.markedBytesRead = this.bytesRead;
+
+	}
+
+
+	/**
+	 * Returns to the position of the last call to {@link #mark(int)}
+	 * @throws IOException if the mark has become invalid
+	 */
+	void reset() throws IOException {
+
+		this.inputStream.reset();
+		this.bitBuffer = this.markedBitBuffer;
+		this.bitCount = this.markedBitCount;
+		this.bytesRead = this.markedBytesRead;
+
+	}
+
+
+	/**
+	 * Gets the number of bits that have been consumed from the wrapped input stream. Bits that have
+	 * been read from the stream but are still buffered are not counted
+	 * @return The number of bits consumed
+	 */
+	public long getBitPosition() {
+
+		return (this.bytesRead << 3) - this.bitCount;
+
+	}
+
+
 	/**
 	 * @param inputStream The InputStream to wrap
 	 */
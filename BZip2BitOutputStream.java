@@ -123,6 +123,49 @@ public class BZip2BitOutputStream {
 	}
 
 
+	/**
+	 * Writes a string of bits, shifting them as required to follow any bits already written
+	 * @param data The bits to write, most significant bit of the first byte first
+	 * @param bitLength The number of bits to write
+	 * @throws IOException if an error occurs writing to the stream
+	 */
+	public void writeBitString (final byte[] data, final long bitLength) throws IOException {
+
+		final int byteLength = (int)(bitLength >>> 3);
+		final int trailingBitCount = (int)(bitLength & 7);
+		final int bitCount = this.bitCount;
+
+		if (bitCount == 0) {
+			this.outputStream.write (data, 0, byteLength);
+		} else {
+			final byte[] shiftedData = new byte[byteLength];
+			int bitBuffer = this.bitBuffer;
+			for (int i = 0; i < byteLength; i++) {
+				bitBuffer |= (data[i] & 0xff) << (24 - bitCount);
+				shiftedData[i] = (byte)(bitBuffer >>> 24);
+				bitBuffer <<= 8;
+			}
+			this.bitBuffer = bitBuffer;
+			this.outputStream.write (shiftedData);
+		}
+
+		if (trailingBitCount > 0) {
+			writeBits (trailingBitCount, (data[byteLength] & 0xff) >>> (8 - trailingBitCount));
+		}
+
+	}
+
+
+	/**
+	 * @return The number of bits written that are buffered awaiting a whole byte (0-7)
+	 */
+	int getBufferedBitCount() {
+
+		return this.bitCount;
+
+	}
+
+
 	/**
 	 * Writes any remaining bits to the output stream, zero padding to a whole byte as required
 	 * @throws IOException if an error occurs writing to the stream
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * <p>A size-bounded cache of decompressed block contents, keyed by a file identifier and the bit
+ * offset of the block within the file. Blocks are evicted in least recently used order once the
+ * total size of the cached contents exceeds the cache's capacity</p>
+ *
+ * <p>If several threads request the same uncached block at once, only one of them decodes it;
+ * the others wait for and share its result</p>
+ *
+ * <p>Instances of this class are threadsafe, and may be shared between any number of
+ * {@link BZip2SeekableInputStream}s.</p>
+ */
+public class BZip2BlockCache {
+
+	/**
+	 * A cache key
+	 */
+	private static class Key {
+
+		/**
+		 * The file identifier
+		 */
+		private final Object fileKey;
+
+		/**
+		 * The bit offset of the block within the file
+		 */
+		private final long bitOffset;
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+
+			return this.fileKey.hashCode() * 31 + (int)(this.bitOffset ^ (this.bitOffset >>> 32));
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals (final Object other) {
+
+			if (!(other instanceof Key)) {
+				return false;
+			}
+
+			final Key otherKey = (Key)other;
+			return (this.bitOffset == otherKey.bitOffset) && this.fileKey.equals (otherKey.fileKey);
+
+		}
+
+
+		/**
+		 * @param fileKey The file identifier
+		 * @param bitOffset The bit offset of the block within the file
+		 */
+		public Key (final Object fileKey, final long bitOffset) {
+
+			this.fileKey = fileKey;
+			this.bitOffset = bitOffset;
+
+		}
+
+	}
+
+	/**
+	 * The maximum total size in bytes of the cached block contents
+	 */
+	private final long capacity;
+
+	/**
+	 * The cached block contents, in least to most recently used order
+	 */
+	private final LinkedHashMap<Key,byte[]> blocks = new LinkedHashMap<Key,byte[]> (16, 0.75f, true);
+
+	/**
+	 * Blocks that are currently being decoded
+	 */
+	private final Map<Key,FutureTask<byte[]>> loadingBlocks = new HashMap<Key,FutureTask<byte[]>>();
+
+	/**
+	 * The total size in bytes of the cached block contents
+	 */
+	private long size = 0;
+
+	/**
+	 * The number of requests satisfied from the cache
+	 */
+	private long hitCount = 0;
+
+	/**
+	 * The number of requests that caused a block to be decoded
+	 */
+	private long missCount = 0;
+
+	/**
+	 * The number of requests that waited for a block already being decoded for another request
+	 */
+	private long coalescedCount = 0;
+
+	/**
+	 * The number of blocks evicted from the cache
+	 */
+	private long evictionCount = 0;
+
+
+	/**
+	 * Gets the decompressed contents of a block, decoding it through the supplied loader if it is
+	 * not already cached. The returned array is shared, and must not be modified
+	 * @param fileKey An identifier for the file containing the block
+	 * @param bitOffset The bit offset of the block within the file
+	 * @param loader A loader that decodes the block's contents if they are not cached
+	 * @return The block's decompressed contents
+	 * @throws IOException if the loader failed to decode the block, or the calling thread was
+	 *                     interrupted while waiting for another thread to decode it
+	 */
+	public byte[] get (final Object fileKey, final long bitOffset, final Callable<byte[]> loader) throws IOException {
+
+		final Key key = new Key (fileKey, bitOffset);
+		final FutureTask<byte[]> task;
+		boolean loading = false;
+
+		synchronized (this) {
+			final byte[] data = this.blocks.get (key);
+			if (data != null) {
+				this.hitCount++;
+				return data;
+			}
+
+			final FutureTask<byte[]> existingTask = this.loadingBlocks.get (key);
+			if (existingTask != null) {
+				this.coalescedCount++;
+				task = existingTask;
+			} else {
+				this.missCount++;
+				task = new FutureTask<byte[]> (loader);
+				this.loadingBlocks.put (key, task);
+				loading = true;
+			}
+		}
+
+		if (loading) {
+			task.run();
+			synchronized (this) {
+				this.loadingBlocks.remove (key);
+				try {
+					if (!task.isCancelled()) {
+						put (key, task.get());
+					}
+				} catch (ExecutionException e) {
+					// Failures are not cached
+				} catch (InterruptedException e) {
+					// Cannot happen, as the task is complete
+				}
+			}
+		}
+
+		return BZip2Tasks.await (task);
+
+	}
+
+
+	/**
+	 * Adds a block to the cache, evicting the least recently used blocks as required. Blocks larger
+	 * than the cache's capacity are not cached. Must be called while synchronized on the cache
+	 * @param key The block's key
+	 * @param data The block's contents
+	 */
+	private void put (final Key key, final byte[] data) {
+
+		if (data.length > this.capacity) {
+			return;
+		}
+
+		final byte[] previousData = this.blocks.put (key, data);
+		if (previousData != null) {
+			this.size -= previousData.length;
+		}
+		this.size += data.length;
+
+		final Iterator<byte[]> iterator = this.blocks.values().iterator();
+		while (this.size > this.capacity) {
+			this.size -= iterator.next().length;
+			iterator.remove();
+			this.evictionCount++;
+		}
+
+	}
+
+
+	/**
+	 * Removes all blocks from the cache. Statistics are not reset
+	 */
+	public synchronized void clear() {
+
+		this.blocks.clear();
+		this.size = 0;
+
+	}
+
+
+	/**
+	 * @return The maximum total size in bytes of the cached block contents
+	 */
+	public long getCapacity() {
+
+		return this.capacity;
+
+	}
+
+
+	/**
+	 * @return The total size in bytes of the cached block contents
+	 */
+	public synchronized long getSize() {
+
+		return this.size;
+
+	}
+
+
+	/**
+	 * @return The number of blocks currently cached
+	 */
+	public synchronized int getBlockCount() {
+
+		return this.blocks.size();
+
+	}
+
+
+	/**
+	 * @return The number of requests satisfied from the cache
+	 */
+	public synchronized long getHitCount() {
+
+		return this.hitCount;
+
+	}
+
+
+	/**
+	 * @return The number of requests that caused a block to be decoded
+	 */
+	public synchronized long getMissCount() {
+
+		return this.missCount;
+
+	}
+
+
+	/**
+	 * @return The number of requests that waited for a block already being decoded for another
+	 *         request, rather than decoding it again
+	 */
+	public synchronized long getCoalescedCount() {
+
+		return this.coalescedCount;
+
+	}
+
+
+	/**
+	 * @return The number of blocks evicted from the cache
+	 */
+	public synchronized long getEvictionCount() {
+
+		return this.evictionCount;
+
+	}
+
+
+	/**
+	 * @param capacity The maximum total size in bytes of the cached block contents
+	 */
+	public BZip2BlockCache (final long capacity) {
+
+		if (capacity < 0) {
+			throw new IllegalArgumentException ("Invalid capacity " + capacity);
+		}
+
+		this.capacity = capacity;
+
+	}
+
+}
@@ -22,18 +22,22 @@
 
 package org.itadaki.bzip2;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 
 /*
  * Block encoding consists of the following stages:
  * 1. Run-Length Encoding[1] - write()
- * 2. Burrows Wheeler Transform - close() (through BZip2DivSufSort)
- * 3. Write block header - close()
- * 4. Move To Front Transform - close() (through BZip2HuffmanStageEncoder)
- * 5. Run-Length Encoding[2] - close()  (through BZip2HuffmanStageEncoder)
- * 6. Create and write Huffman tables - close() (through BZip2HuffmanStageEncoder)
- * 7. Huffman encode and write data - close() (through BZip2HuffmanStageEncoder)
+ * 2. Burrows Wheeler Transform - transform() (through BZip2DivSufSort)
+ * 3. Write block header - encode()
+ * 4. Move To Front Transform - encode() (through BZip2MTFAndRLE2StageEncoder)
+ * 5. Run-Length Encoding[2] - encode()  (through BZip2MTFAndRLE2StageEncoder)
+ * 6. Create and write Huffman tables - encode() (through BZip2HuffmanStageEncoder)
+ * 7. Huffman encode and write data - encode() (through BZip2HuffmanStageEncoder)
+ * close() performs transform() followed by encode()
+ * If an encoded block cache is in use, a block found in the cache skips stages 2-7, and its cached
+ * bits are copied out instead
  */
 /**
  * Compresses and writes a single BZip2 block
@@ -46,14 +50,27 @@ public class BZip2BlockCompressor {
 	private final BZip2BitOutputStream bitOutputStream;
 
 	/**
-	 * CRC builder for the block
+	 * CRC builder for the block. The CRC is calculated from the Run-Length Encoded block in
+	 * {@link #transform()}, so that it is performed on the transforming thread
 	 */
 	private final CRC32 crc = new CRC32();
 
+	/**
+	 * The initial length of the {@link #block} array. The array grows geometrically from this size
+	 * as required, up to the declared block size
+	 */
+	private static final int INITIAL_BLOCK_ARRAY_LENGTH = 1024;
+
 	/**
 	 * The RLE'd block data
 	 */
-	private final byte[] block;
+	private byte[] block;
+
+	/**
+	 * The length to which the {@link #block} array may grow - the declared block size, plus one
+	 * byte for the block wrap applied in {@link #close()}
+	 */
+	private final int blockArrayLengthLimit;
 
 	/**
 	 * Current length of the data within the {@link block} array
@@ -71,10 +88,18 @@ public class BZip2BlockCompressor {
 	 */
 	private final boolean[] blockValuesPresent = new boolean[256];
 
+
+	/**
+	 * The Burrows Wheeler Transformed block data, once {@link #transform()} has been called. When
+	 * the block is encoded, the array is overwritten in place with the output of the Move To Front
+	 * Transform and Run-Length Encoding[2] stages
+	 */
+	private int[] bwtBlock;
+
 	/**
-	 * The Burrows Wheeler Transformed block data
+	 * The Burrows Wheeler Transform start pointer, once {@link #transform()} has been called
 	 */
-	private final int[] bwtBlock;
+	private int bwtStartPointer;
 
 	/**
 	 * The current RLE value being accumulated (undefined when {@link #rleLength} is 0)
@@ -86,14 +111,57 @@ public class BZip2BlockCompressor {
 	 */
 	private int rleLength = 0;
 
+	/**
+	 * The policy under which the block is ended at a content-defined cut point, or {@code null}
+	 */
+	private final BZip2RsyncablePolicy rsyncablePolicy;
+
+	/**
+	 * The rolling hash of the input written to the block, if {@link #rsyncablePolicy} is set
+	 */
+	private int rollingHash = 0;
+
+	/**
+	 * {@code true} if the block has reached a content-defined cut point, and will accept no more
+	 * data
+	 */
+	private boolean cutReached = false;
+
+	/**
+	 * The declared block size
+	 */
+	private final int blockSize;
+
+	/**
+	 * The cache of previously encoded blocks, or {@code null}
+	 */
+	private final BZip2EncodedBlockCache encodedBlockCache;
+
+	/**
+	 * The block's key within the {@link #encodedBlockCache}, once {@link #transform()} has been
+	 * called on a block that was not found in the cache
+	 */
+	private BZip2EncodedBlockCache.Key cacheKey;
+
+	/**
+	 * The cached encoding of the block, once {@link #transform()} has found the block in the
+	 * {@link #encodedBlockCache}
+	 */
+	private BZip2EncodedBlockCache.Entry cachedBlock;
+
+	/**
+	 * The Huffman tables of the stream's previous block, or {@code null} if tables are not seeded
+	 * from the previous block
+	 */
+	private final BZip2HuffmanWarmStart.State huffmanWarmStartState;
+
 
 	/**
 	 * Write the Huffman symbol to output byte map
+	 * @param bitOutputStream The stream to write to
 	 * @throws IOException on any I/O error writing the data
 	 */
-	private void writeSymbolMap() throws IOException {
-
-		BZip2BitOutputStream bitOutputStream = this.bitOutputStream;
+	private void writeSymbolMap (final BZip2BitOutputStream bitOutputStream) throws IOException {
 
 		final boolean[] blockValuesPresent = this.blockValuesPresent;
 		final boolean[] condensedInUse = new boolean[16];
@@ -122,17 +190,38 @@ public class BZip2BlockCompressor {
 
 
 	/**
-	 * Writes an RLE run to the block array, updating the block CRC and present values array as required
+	 * Grows the block array so that it can hold at least the given number of bytes
+	 * @param length The required length
+	 * @return The new block array
+	 */
+	private byte[] growBlock (final int length) {
+
+		final int newLength = Math.min (Math.max (length, this.block.length << 1), this.blockArrayLengthLimit);
+		final byte[] block = new byte[newLength];
+		System.arraycopy (this.block, 0, block, 0, this.blockLength);
+		this.block = block;
+
+		return block;
+
+	}
+
+
+	/**
+	 * Writes an RLE run to the block array, updating the present values array as required
 	 * @param value The value to write
 	 * @param runLength The run length of the value to write
 	 */
 	private void writeRun (final int value, int runLength) {
 
 		final int blockLength = this.blockLength;
-		final byte[] block = this.block;
+		byte[] block = this.block;
+
+		// Ensure space for the longest possible run (5 bytes) and the block wrap
+		if (blockLength + 6 > block.length) {
+			block = growBlock (blockLength + 6);
+		}
 
 		this.blockValuesPresent[value] = true;
-		this.crc.updateCRC (value, runLength);
 
 		final byte byteValue = (byte)value;
 		switch (runLength) {
@@ -173,10 +262,11 @@ public class BZip2BlockCompressor {
 	 * Writes a byte to the block, accumulating to an RLE run where possible
 	 * @param value The byte to write
 	 * @return {@code true} if the byte was written, or {@code false} if the block is already full
+	 *         or has reached a content-defined cut point
 	 */
 	public boolean write (final int value) {
 
-		if (this.blockLength > this.blockLengthLimit) {
+		if ((this.blockLength > this.blockLengthLimit) || this.cutReached) {
 			return false;
 		}
 
@@ -200,6 +290,13 @@ public class BZip2BlockCompressor {
 			}
 		}
 
+		final BZip2RsyncablePolicy rsyncablePolicy = this.rsyncablePolicy;
+		if (rsyncablePolicy != null) {
+			final int rollingHash = BZip2RsyncablePolicy.updateHash (this.rollingHash, value);
+			this.rollingHash = rollingHash;
+			this.cutReached = rsyncablePolicy.isCutPoint (rollingHash, this.blockLength);
+		}
+
 		return true;
 
 	}
@@ -230,41 +327,303 @@ public class BZip2BlockCompressor {
 
 
 	/**
-	 * Compresses and writes out the block
+	 * Compresses and writes out the block. Equivalent to {@link #transform()} followed by
+	 * {@link #encode()}
 	 * @throws IOException on any I/O error writing the data
 	 */
 	public void close() throws IOException {
 
+		transform();
+		encode();
+
+	}
+
+
+	/**
+	 * Completes the block and performs the Burrows Wheeler Transform. No further data may be written
+	 * to the block. This stage does not write any output, and may be performed on a different
+	 * thread to the preceding writes and the following call to {@link #encode()}, provided that
+	 * the calls are safely ordered
+	 */
+	public void transform() {
+
 		// If an RLE run is in progress, write it out
 		if (this.rleLength > 0) {
 			writeRun (this.rleCurrentValue & 0xff, this.rleLength);
+			this.rleLength = 0;
+		}
+
+		calculateCRC();
+
+		// If the block has been encoded before, its BWT and encoding are not required
+		final BZip2EncodedBlockCache encodedBlockCache = this.encodedBlockCache;
+		if (encodedBlockCache != null) {
+			final BZip2EncodedBlockCache.Key cacheKey = BZip2EncodedBlockCache.createKey (this.block, this.blockLength, this.blockSize);
+			final BZip2EncodedBlockCache.Entry cachedBlock = encodedBlockCache.get (cacheKey);
+			if (cachedBlock != null) {
+				this.cachedBlock = cachedBlock;
+				this.block = null;
+				return;
+			}
+			this.cacheKey = cacheKey;
 		}
 
 		// Apply a one byte block wrap required by the BWT implementation
 		this.block[this.blockLength] = this.block[0];
 
-		// Perform the Burrows Wheeler Transform
-		BZip2DivSufSort divSufSort = new BZip2DivSufSort (this.block, this.bwtBlock, this.blockLength);
-		int bwtStartPointer = divSufSort.bwt();
+		// Perform the Burrows Wheeler Transform, reusing a scheduler worker's bucket arrays if available
+		final int[] bwtBlock = new int[this.blockLength + 1];
+		BZip2DivSufSort divSufSort = new BZip2DivSufSort (this.block, bwtBlock, this.blockLength);
+		final BZip2CodecScheduler.Scratch scratch = BZip2CodecScheduler.currentScratch();
+		this.bwtStartPointer = (scratch == null) ? divSufSort.bwt() : divSufSort.bwt (scratch.bucketA, scratch.bucketB);
+		this.bwtBlock = bwtBlock;
+
+		// The RLE'd block data is no longer required
+		this.block = null;
+
+	}
+
+
+	/**
+	 * Calculates the block CRC over the input data represented by the Run-Length Encoded block.
+	 * Each run of four equal bytes in the block is followed by a count of further repeats
+	 */
+	private void calculateCRC() {
+
+		final byte[] block = this.block;
+		final int blockLength = this.blockLength;
+		final CRC32 crc = this.crc;
+
+		int runValue = -1;
+		int runLength = 0;
+		for (int i = 0; i < blockLength; i++) {
+			final int value = block[i] & 0xff;
+			if (runLength == 4) {
+				crc.updateCRC (runValue, value);
+				runValue = -1;
+				runLength = 0;
+			} else {
+				crc.updateCRC (value);
+				if (value == runValue) {
+					runLength++;
+				} else {
+					runValue = value;
+					runLength = 1;
+				}
+			}
+		}
+
+	}
+
+
+	/**
+	 * Writes out the block header, then performs the Move To Front Transform, Run-Length
+	 * Encoding[2] and Huffman encoding stages and writes out the encoded block. May only be called
+	 * after {@link #transform()}
+	 * @throws IOException on any I/O error writing the data
+	 */
+	public void encode() throws IOException {
+
+		if (this.cachedBlock != null) {
+			this.bitOutputStream.writeBitString (this.cachedBlock.data, this.cachedBlock.bitLength);
+			// Seed the stream's next block from the tables of the block actually written
+			if (this.huffmanWarmStartState != null) {
+				this.huffmanWarmStartState.codeLengths = this.cachedBlock.codeLengths;
+			}
+			this.cachedBlock = null;
+			return;
+		}
+
+		if (this.encodedBlockCache == null) {
+			encode (this.bitOutputStream);
+			return;
+		}
+
+		// Encode the block byte aligned, so that it can be cached and then copied out
+		final ByteArrayOutputStream encodedBlockStream = new ByteArrayOutputStream();
+		final BZip2BitOutputStream encodedBitStream = new BZip2BitOutputStream (encodedBlockStream);
+		final int[][] codeLengths = encode (encodedBitStream);
+		final long bitLength = ((long)encodedBlockStream.size() << 3) + encodedBitStream.getBufferedBitCount();
+		encodedBitStream.flush();
+
+		final BZip2EncodedBlockCache.Entry encodedBlock = new BZip2EncodedBlockCache.Entry (encodedBlockStream.toByteArray(), bitLength, codeLengths);
+		this.encodedBlockCache.put (this.cacheKey, encodedBlock);
+		this.cacheKey = null;
+		this.bitOutputStream.writeBitString (encodedBlock.data, bitLength);
+
+	}
+
+
+	/**
+	 * Writes out the transformed block
+	 * @param bitOutputStream The stream to write to
+	 * @return The final code lengths of each of the block's Huffman tables
+	 * @throws IOException on any I/O error writing the data
+	 */
+	private int[][] encode (final BZip2BitOutputStream bitOutputStream) throws IOException {
+
+		final int[] bwtBlock = this.bwtBlock;
+		this.bwtBlock = null;
 
 		// Write out the block header
-		this.bitOutputStream.writeBits (24, BZip2Constants.BLOCK_HEADER_MARKER_1);
-		this.bitOutputStream.writeBits (24, BZip2Constants.BLOCK_HEADER_MARKER_2);
-		this.bitOutputStream.writeInteger (this.crc.getCRC());
-		this.bitOutputStream.writeBoolean (false); // Randomised block flag. We never create randomised blocks
-		this.bitOutputStream.writeBits (24, bwtStartPointer);
+		bitOutputStream.writeBits (24, BZip2Constants.BLOCK_HEADER_MARKER_1);
+		bitOutputStream.writeBits (24, BZip2Constants.BLOCK_HEADER_MARKER_2);
+		bitOutputStream.writeInteger (this.crc.getCRC());
+		bitOutputStream.writeBoolean (false); // Randomised block flag. We never create randomised blocks
+		bitOutputStream.writeBits (24, this.bwtStartPointer);
 
 		// Write out the symbol map
-		writeSymbolMap();
+		writeSymbolMap (bitOutputStream);
 
-		// Perform the Move To Front Transform and Run-Length Encoding[2] stages 
-		BZip2MTFAndRLE2StageEncoder mtfEncoder = new BZip2MTFAndRLE2StageEncoder (this.bwtBlock, this.blockLength, this.blockValuesPresent);
+		// Perform the Move To Front Transform and Run-Length Encoding[2] stages (in place, within
+		// the BWT array)
+		BZip2MTFAndRLE2StageEncoder mtfEncoder = new BZip2MTFAndRLE2StageEncoder (bwtBlock, this.blockLength, this.blockValuesPresent);
 		mtfEncoder.encode();
 
 		// Perform the Huffman Encoding stage and write out the encoded data
-		BZip2HuffmanStageEncoder huffmanEncoder = new BZip2HuffmanStageEncoder (this.bitOutputStream, mtfEncoder.getMtfBlock(), mtfEncoder.getMtfLength(), mtfEncoder.getMtfAlphabetSize(), mtfEncoder.getMtfSymbolFrequencies());
+		BZip2HuffmanStageEncoder huffmanEncoder = new BZip2HuffmanStageEncoder (bitOutputStream, mtfEncoder.getMtfBlock(), mtfEncoder.getMtfLength(), mtfEncoder.getMtfAlphabetSize(), mtfEncoder.getMtfSymbolFrequencies(),
+				this.huffmanWarmStartState);
 		huffmanEncoder.encode();
 
+		return huffmanEncoder.getHuffmanCodeLengths();
+
+	}
+
+
+	/**
+	 * Estimates the length of the encoded block without encoding it. The Move To Front Transform
+	 * and Run-Length Encoding[2] stages are performed, and the Huffman coded data is estimated at
+	 * the order-0 entropy of the symbols assigned to each of the block's Huffman tables (see
+	 * {@link #estimateHuffmanBits(int[], int, int, int)}); the iterative table optimisation and
+	 * output of the Huffman stage are skipped. May only be called after {@link #transform()}, in
+	 * place of {@link #encode()}
+	 * @return The estimated length of the encoded block in bits, including its header, symbol map
+	 *         and Huffman tables
+	 */
+	public long estimateEncodedLength() {
+
+		final int[] bwtBlock = this.bwtBlock;
+		this.bwtBlock = null;
+
+		BZip2MTFAndRLE2StageEncoder mtfEncoder = new BZip2MTFAndRLE2StageEncoder (bwtBlock, this.blockLength, this.blockValuesPresent);
+		mtfEncoder.encode();
+
+		final int mtfLength = mtfEncoder.getMtfLength();
+		final int mtfAlphabetSize = mtfEncoder.getMtfAlphabetSize();
+		final int totalTables = BZip2HuffmanStageEncoder.selectTableCount (mtfLength);
+
+		final double dataBits = estimateHuffmanBits (mtfEncoder.getMtfBlock(), mtfLength, mtfAlphabetSize, totalTables);
+
+		// Block header (105 bits) and symbol map (16 bits, plus 16 bits per range in use)
+		int symbolMapRangesInUse = 0;
+		for (int i = 0; i < 256; i += 16) {
+			for (int j = i; j < i + 16; j++) {
+				if (this.blockValuesPresent[j]) {
+					symbolMapRangesInUse++;
+					break;
+				}
+			}
+		}
+		final long headerBits = 105 + 16 + (16 * symbolMapRangesInUse);
+
+		// Table count and selector count (18 bits), the selectors at around 2 bits each, and the
+		// delta coded code lengths at around 3 bits per symbol per table
+		final int totalSelectors = (mtfLength + BZip2Constants.HUFFMAN_GROUP_RUN_LENGTH - 1) / BZip2Constants.HUFFMAN_GROUP_RUN_LENGTH;
+		final long tableBits = 18 + (2L * totalSelectors) + (totalTables * (5 + (3L * mtfAlphabetSize)));
+
+		return headerBits + tableBits + (long)Math.ceil (dataBits);
+
+	}
+
+
+	/**
+	 * Estimates the length of Huffman coded MTF symbols. As in the real encoding, the symbols are
+	 * first divided between the tables in contiguous sections of equal length. Each group of
+	 * {@link BZip2Constants#HUFFMAN_GROUP_RUN_LENGTH} symbols is then assigned, once, to the table
+	 * whose section's symbol frequencies would code it most cheaply, and the order-0 entropy of
+	 * each table's assigned symbols is summed. A single assignment captures most of the gain of
+	 * the real encoding's tables over a single whole-block table, which the real encoding then
+	 * refines over several passes of Huffman code generation
+	 * @param mtfBlock The MTF symbols
+	 * @param mtfLength The number of MTF symbols
+	 * @param mtfAlphabetSize The size of the MTF symbol alphabet
+	 * @param totalTables The number of Huffman tables
+	 * @return The estimated length in bits
+	 */
+	private static double estimateHuffmanBits (final int[] mtfBlock, final int mtfLength, final int mtfAlphabetSize, final int totalTables) {
+
+		// Estimate the cost of each symbol under each table from its section, with every symbol
+		// given a nonzero frequency
+		final double[][] tableCosts = new double[totalTables][mtfAlphabetSize];
+		for (int table = 0; table < totalTables; table++) {
+			final int sectionStart = (int)(((long)mtfLength * table) / totalTables);
+			final int sectionEnd = (int)(((long)mtfLength * (table + 1)) / totalTables);
+			final int[] sectionFrequencies = new int[mtfAlphabetSize];
+			for (int i = sectionStart; i < sectionEnd; i++) {
+				sectionFrequencies[mtfBlock[i]]++;
+			}
+			final double sectionTotal = (sectionEnd - sectionStart) + mtfAlphabetSize;
+			for (int symbol = 0; symbol < mtfAlphabetSize; symbol++) {
+				tableCosts[table][symbol] = Math.log (sectionTotal / (sectionFrequencies[symbol] + 1));
+			}
+		}
+
+		// Assign each group to its cheapest table
+		final int[][] tableFrequencies = new int[totalTables][mtfAlphabetSize];
+		final int[] tableTotals = new int[totalTables];
+		for (int groupStart = 0; groupStart < mtfLength; groupStart += BZip2Constants.HUFFMAN_GROUP_RUN_LENGTH) {
+			final int groupEnd = Math.min (groupStart + BZip2Constants.HUFFMAN_GROUP_RUN_LENGTH, mtfLength);
+			int bestTable = 0;
+			double bestCost = Double.MAX_VALUE;
+			for (int table = 0; table < totalTables; table++) {
+				final double[] costs = tableCosts[table];
+				double cost = 0;
+				for (int i = groupStart; i < groupEnd; i++) {
+					cost += costs[mtfBlock[i]];
+				}
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestTable = table;
+				}
+			}
+			final int[] frequencies = tableFrequencies[bestTable];
+			for (int i = groupStart; i < groupEnd; i++) {
+				frequencies[mtfBlock[i]]++;
+			}
+			tableTotals[bestTable] += groupEnd - groupStart;
+		}
+
+		// Order-0 entropy of each table's symbols
+		double bits = 0;
+		for (int table = 0; table < totalTables; table++) {
+			final int[] frequencies = tableFrequencies[table];
+			for (int symbol = 0; symbol < mtfAlphabetSize; symbol++) {
+				final int frequency = frequencies[symbol];
+				if (frequency > 0) {
+					bits += frequency * Math.log ((double)tableTotals[table] / frequency);
+				}
+			}
+		}
+
+		return bits / Math.log (2);
+
+	}
+
+
+	/**
+	 * Calculates the working memory that the block will hold while it is transformed and encoded,
+	 * from the length to which its data has actually grown (see
+	 * {@link BZip2MemoryBudget#getBlockCost(int, int)}). May only be called before
+	 * {@link #transform()}
+	 * @return The working memory in bytes
+	 */
+	long getWorkingMemory() {
+
+		// A pending RLE run adds up to five bytes when it is written out in transform()
+		final int pendingLength = (this.rleLength >= 4) ? 5 : this.rleLength;
+
+		return BZip2MemoryBudget.getBlockCost (this.block.length, this.blockLength + pendingLength);
+
 	}
 
 
@@ -281,7 +640,8 @@ public class BZip2BlockCompressor {
 
 
 	/**
-	 * Gets the CRC of the completed block. Only valid after calling {@link #close()}
+	 * Gets the CRC of the completed block. Only valid after calling {@link #close()} or
+	 * {@link #transform()}
 	 * @return The block's CRC
 	 */
 	public int getCRC() {
@@ -294,15 +654,42 @@ public class BZip2BlockCompressor {
 	/**
 	 * @param bitOutputStream The BZip2BitOutputStream to which compressed BZip2 data is written
 	 * @param blockSize The declared block size in bytes. Up to this many bytes will be accepted
-	 *                  into the block after Run-Length Encoding is applied
+	 *                  into the block after Run-Length Encoding is applied. Working space is
+	 *                  allocated in proportion to the data actually written, up to this size
 	 */
 	public BZip2BlockCompressor (final BZip2BitOutputStream bitOutputStream, final int blockSize) {
 
+		this (bitOutputStream, blockSize, null, null, null);
+
+	}
+
+
+	/**
+	 * @param bitOutputStream The BZip2BitOutputStream to which compressed BZip2 data is written
+	 * @param blockSize The declared block size in bytes. Up to this many bytes will be accepted
+	 *                  into the block after Run-Length Encoding is applied. Working space is
+	 *                  allocated in proportion to the data actually written, up to this size
+	 * @param rsyncablePolicy The policy under which the block is ended at a content-defined cut
+	 *                        point, or {@code null} to accept data until the block is full
+	 * @param encodedBlockCache A cache of previously encoded blocks to look the block up in and
+	 *                          add it to, or {@code null}
+	 * @param huffmanWarmStartState The Huffman tables of the stream's previous block, or
+	 *                              {@code null} to generate the block's tables from its own
+	 *                              symbol frequencies
+	 */
+	BZip2BlockCompressor (final BZip2BitOutputStream bitOutputStream, final int blockSize, final BZip2RsyncablePolicy rsyncablePolicy,
+			final BZip2EncodedBlockCache encodedBlockCache, final BZip2HuffmanWarmStart.State huffmanWarmStartState)
+	{
+
 		this.bitOutputStream = bitOutputStream;
+		this.blockSize = blockSize;
+		this.rsyncablePolicy = rsyncablePolicy;
+		this.encodedBlockCache = encodedBlockCache;
+		this.huffmanWarmStartState = huffmanWarmStartState;
 
 		// One extra byte is added to allow for the block wrap applied in close()
-		this.block = new byte[blockSize + 1];
-		this.bwtBlock = new int[blockSize + 1];
+		this.blockArrayLengthLimit = blockSize + 1;
+		this.block = new byte[Math.min (INITIAL_BLOCK_ARRAY_LENGTH, this.blockArrayLengthLimit)];
 		this.blockLengthLimit = blockSize - 6; // 5 bytes for one RLE run plus one byte - see {@link #write(int)}
 
 	}
@@ -93,7 +93,7 @@ public class BZip2BlockDecompressor {
 	/**
 	 * Calculates the block CRC from the fully decoded bytes of the block
 	 */
-	private final CRC32 crc = new CRC32();
+	private CRC32 crc = new CRC32();
 
 	/**
 	 * The CRC of the current block as read from the block header
@@ -105,6 +105,24 @@ public class BZip2BlockDecompressor {
 	 */
 	private final boolean blockRandomised;
 
+	/**
+	 * The maximum decoded size of the block
+	 */
+	private final int blockSize;
+
+	/**
+	 * A caller supplied array to be used as the {@link #bwtMergedPointers} array if it is large
+	 * enough, or {@code null}
+	 */
+	private final int[] bwtMergedPointersBuffer;
+
+	/**
+	 * If {@code true}, the {@link #bwtBlock} array is retained once the merged pointer array has
+	 * been built, to receive the output of
+	 * {@link #decodeInterleaved(BZip2BlockDecompressor[], int)}
+	 */
+	private final boolean retainBWTBlock;
+
 	/* Huffman Decoding stage */
 
 	/**
@@ -129,7 +147,10 @@ public class BZip2BlockDecompressor {
 
 	/**
 	 * The Burrows-Wheeler Transform processed data. Read at the Move To Front stage, consumed by the
-	 * Inverse Burrows Wheeler Transform stage 
+	 * Inverse Burrows Wheeler Transform stage. If the block is decoded through
+	 * {@link #decodeInterleaved(BZip2BlockDecompressor[], int)}, the array is then reused to hold
+	 * the output of the Inverse Burrows Wheeler Transform stage; otherwise, it is discarded once
+	 * the merged pointer array has been built
 	 */
 	private byte[] bwtBlock;
 
@@ -143,9 +164,16 @@ public class BZip2BlockDecompressor {
 	 * hold it; Folding the character data into the spare bits while performing the inverse BWT,
 	 * when both pieces of information are available, saves a large number of memory accesses in
 	 * the final decoding stages.
+	 * Set to {@code null} once the whole block has been walked by
+	 * {@link #decodeInterleaved(BZip2BlockDecompressor[], int)}
 	 */
 	private int[] bwtMergedPointers;
 
+	/**
+	 * The start pointer into the Burrows-Wheeler Transform array
+	 */
+	private int bwtStartPointer;
+
 	/**
 	 * The current merged pointer into the Burrow-Wheeler Transform array
 	 */
@@ -237,7 +265,11 @@ public class BZip2BlockDecompressor {
 		final MoveToFront tableMTF = new MoveToFront();
 		final byte[] selectors = new byte[totalSelectors];
 		for (int selector = 0; selector < totalSelectors; selector++) {
-			selectors[selector] = tableMTF.indexToFront (bitInputStream.readUnary());
+			final int selectorIndex = bitInputStream.readUnary();
+			if (selectorIndex >= totalTables) {
+				throw new BZip2Exception ("BZip2 block Huffman selector invalid");
+			}
+			selectors[selector] = tableMTF.indexToFront (selectorIndex);
 		}
 
 		/* Read the Canonical Huffman code lengths for each table */
@@ -247,6 +279,9 @@ public class BZip2BlockDecompressor {
 				while (bitInputStream.readBoolean()) {
 					currentLength += bitInputStream.readBoolean() ? -1 : 1;
 				}
+				if ((currentLength < 1) || (currentLength > BZip2Constants.HUFFMAN_DECODE_MAXIMUM_CODE_LENGTH)) {
+					throw new BZip2Exception ("BZip2 block Huffman tables invalid");
+				}
 				tableCodeLengths[table][i] = (byte)currentLength;
 			}
 		}
@@ -266,7 +301,7 @@ public class BZip2BlockDecompressor {
 
 		final byte[] bwtBlock = this.bwtBlock;
 		final byte[] huffmanSymbolMap = this.huffmanSymbolMap;
-		final int streamBlockSize = this.bwtBlock.length;
+		final int streamBlockSize = this.blockSize;
 		final int huffmanEndOfBlockSymbol = this.huffmanEndOfBlockSymbol;
 		final int[] bwtByteCounts = this.bwtByteCounts;
 		final MoveToFront symbolMTF = new MoveToFront();
@@ -328,7 +363,9 @@ public class BZip2BlockDecompressor {
 	private void initialiseInverseBWT (final int bwtStartPointer) throws IOException {
 
 		final byte[] bwtBlock  = this.bwtBlock;
-		final int[] bwtMergedPointers = new int[this.bwtBlockLength];
+		final int[] bwtMergedPointersBuffer = this.bwtMergedPointersBuffer;
+		final int[] bwtMergedPointers = ((bwtMergedPointersBuffer != null) && (bwtMergedPointersBuffer.length >= this.bwtBlockLength)) ?
+				bwtMergedPointersBuffer : new int[this.bwtBlockLength];
 		final int[] characterBase = new int[256];
 
 		if ((bwtStartPointer < 0) || (bwtStartPointer >= this.bwtBlockLength)) {
@@ -350,8 +387,11 @@ public class BZip2BlockDecompressor {
 			bwtMergedPointers[characterBase[value]++] = (i << 8) + value;
 		}
 
-		this.bwtBlock = null;
+		if (!this.retainBWTBlock) {
+			this.bwtBlock = null;
+		}
 		this.bwtMergedPointers = bwtMergedPointers;
+		this.bwtStartPointer = bwtStartPointer;
 		this.bwtCurrentMergedPointer = bwtMergedPointers[bwtStartPointer];
 
 	}
@@ -364,9 +404,15 @@ public class BZip2BlockDecompressor {
 	 */
 	private int decodeNextBWTByte() {
 
-		int mergedPointer = this.bwtCurrentMergedPointer;
-		int nextDecodedByte =  mergedPointer & 0xff;
-		this.bwtCurrentMergedPointer = this.bwtMergedPointers[mergedPointer >>> 8];
+		int nextDecodedByte;
+		if (this.bwtMergedPointers == null) {
+			// The walk has already been performed by decodeInterleaved()
+			nextDecodedByte = this.bwtBlock[this.bwtBytesDecoded] & 0xff;
+		} else {
+			int mergedPointer = this.bwtCurrentMergedPointer;
+			nextDecodedByte =  mergedPointer & 0xff;
+			this.bwtCurrentMergedPointer = this.bwtMergedPointers[mergedPointer >>> 8];
+		}
 
 		if (this.blockRandomised) {
 			if (--this.randomCount == 0) {
@@ -384,16 +430,74 @@ public class BZip2BlockDecompressor {
 
 
 	/**
-	 * Decodes a byte from the final Run-Length Encoding stage, pulling a new byte from the
-	 * Burrows-Wheeler Transform stage when required
-	 * @return The decoded byte, or -1 if there are no more bytes
+	 * Performs the Inverse Burrows-Wheeler Transform walk for several blocks at once. Each step of
+	 * the walk through a single block depends on the result of the previous step, and as the merged
+	 * pointer array is far larger than the processor's caches, nearly every step is a cache miss.
+	 * Advancing the independent walks of several blocks in lock-step allows their memory accesses
+	 * to be overlapped. The output of each walk is written back to the block's (no longer needed)
+	 * BWT array, and is consumed by the final Run-Length Decoding stage through {@link #read()} in
+	 * the usual way. For a block that was not constructed to retain its BWT array, a new output
+	 * array is allocated
+	 * @param decompressors The block decompressors to decode. None of the decompressors may have
+	 *                      been read from
+	 * @param count The number of decompressors in the array to decode
 	 */
-	public int read() {
+	public static void decodeInterleaved (final BZip2BlockDecompressor[] decompressors, final int count) {
+
+		final int[][] mergedPointers = new int[count][];
+		final byte[][] outputs = new byte[count][];
+		final int[] currentPointers = new int[count];
+		int commonLength = (count > 0) ? Integer.MAX_VALUE : 0;
+
+		for (int i = 0; i < count; i++) {
+			final BZip2BlockDecompressor decompressor = decompressors[i];
+			if (decompressor.bwtBlock == null) {
+				decompressor.bwtBlock = new byte[decompressor.bwtBlockLength];
+			}
+			mergedPointers[i] = decompressor.bwtMergedPointers;
+			outputs[i] = decompressor.bwtBlock;
+			currentPointers[i] = decompressor.bwtCurrentMergedPointer;
+			commonLength = Math.min (commonLength, decompressor.bwtBlockLength);
+		}
+
+		// Walk all blocks in lock-step up to the length of the shortest block
+		for (int position = 0; position < commonLength; position++) {
+			for (int i = 0; i < count; i++) {
+				final int mergedPointer = currentPointers[i];
+				outputs[i][position] = (byte)mergedPointer;
+				currentPointers[i] = mergedPointers[i][mergedPointer >>> 8];
+			}
+		}
+
+		// Finish the remainder of each longer block individually
+		for (int i = 0; i < count; i++) {
+			final BZip2BlockDecompressor decompressor = decompressors[i];
+			final int[] blockMergedPointers = mergedPointers[i];
+			final byte[] output = outputs[i];
+			int mergedPointer = currentPointers[i];
+			for (int position = commonLength; position < decompressor.bwtBlockLength; position++) {
+				output[position] = (byte)mergedPointer;
+				mergedPointer = blockMergedPointers[mergedPointer >>> 8];
+			}
+			decompressor.bwtMergedPointers = null;
+		}
+
+	}
+
+
+	/**
+	 * Ensures that a decoded byte is available from the final Run-Length Encoding stage, pulling
+	 * new bytes from the Burrows-Wheeler Transform stage when required. On return, the byte is
+	 * {@link #rleLastDecodedByte}, repeated {@link #rleRepeat} times, and has been included in the
+	 * block CRC
+	 * @return {@code true} if a byte is available, or {@code false} if there are no more bytes
+	 */
+	private boolean decodeNextRun() {
 
 		while (this.rleRepeat < 1) {
 
 			if (this.bwtBytesDecoded == this.bwtBlockLength) {
-				return -1;
+				return false;
 			}
 
 			int nextByte = decodeNextBWTByte();
@@ -405,7 +509,8 @@ public class BZip2BlockDecompressor {
 				this.rleAccumulator = 1;
 				this.crc.updateCRC (nextByte);
 			} else {
-				if (++this.rleAccumulator == 4) {
+				// A valid block never ends before the repeat count, but a damaged block may
+				if ((++this.rleAccumulator == 4) && (this.bwtBytesDecoded < this.bwtBlockLength)) {
 					// Accumulation complete, start repetition
 					int rleRepeat = decodeNextBWTByte() + 1;
 					this.rleRepeat = rleRepeat;
@@ -419,6 +524,22 @@ public class BZip2BlockDecompressor {
 
 		}
 
+		return true;
+
+	}
+
+
+	/**
+	 * Decodes a byte from the final Run-Length Encoding stage, pulling a new byte from the
+	 * Burrows-Wheeler Transform stage when required
+	 * @return The decoded byte, or -1 if there are no more bytes
+	 */
+	public int read() {
+
+		if (!decodeNextRun()) {
+			return -1;
+		}
+
 		this.rleRepeat--;
 
 		return this.rleLastDecodedByte;
@@ -428,7 +549,7 @@ public class BZip2BlockDecompressor {
 
 	/**
 	 * Decodes multiple bytes from the final Run-Length Encoding stage, pulling new bytes from the
-	 * Burrows-Wheeler Transform stage when required
+	 * Burrows-Wheeler Transform stage when required. Repeated bytes are written a run at a time
 	 * @param destination The array to write to
 	 * @param offset The starting position within the array
 	 * @param length The number of bytes to read
@@ -436,15 +557,77 @@ public class BZip2BlockDecompressor {
 	 */
 	public int read (final byte[] destination, int offset, final int length) {
 
-		int i;
-		for (i = 0; i < length; i++, offset++) {
-			int decoded = read();
-			if (decoded == -1) {
-				return (i == 0) ? -1 : i;
+		int remaining = length;
+
+		while ((remaining > 0) && decodeNextRun()) {
+			final int count = Math.min (this.rleRepeat, remaining);
+			final byte value = (byte)this.rleLastDecodedByte;
+			for (int i = 0; i < count; i++) {
+				destination[offset++] = value;
 			}
-			destination[offset] = (byte)decoded;
+			this.rleRepeat -= count;
+			remaining -= count;
+		}
+
+		final int bytesRead = length - remaining;
+
+		return ((bytesRead == 0) && (length > 0)) ? -1 : bytesRead;
+
+	}
+
+
+	/**
+	 * Skips over bytes from the final Run-Length Encoding stage a run at a time, without writing
+	 * them anywhere. Skipped bytes are still included in the block CRC, so that corruption within
+	 * them is detected by {@link #checkCRC()}
+	 * @param count The number of bytes to skip
+	 * @return The number of bytes actually skipped, or -1 if there are no bytes left in the block
+	 */
+	public long skip (final long count) {
+
+		long remaining = count;
+
+		while ((remaining > 0) && decodeNextRun()) {
+			final int skipped = (int)Math.min (this.rleRepeat, remaining);
+			this.rleRepeat -= skipped;
+			remaining -= skipped;
+		}
+
+		final long bytesSkipped = count - remaining;
+
+		return ((bytesSkipped == 0) && (count > 0)) ? -1 : bytesSkipped;
+
+	}
+
+
+	/**
+	 * Decodes the whole block without output and verifies its CRC, then rewinds the block so that
+	 * it can be read in the usual way. This allows a damaged block to be detected before any of its
+	 * data is returned. The block must not have been read from
+	 * @return The decoded length of the block in bytes
+	 * @throws IOException if the CRC verification failed
+	 */
+	public long verifyCRC() throws IOException {
+
+		long decodedLength = 0;
+		long bytesSkipped;
+		while ((bytesSkipped = skip (Long.MAX_VALUE)) != -1) {
+			decodedLength += bytesSkipped;
 		}
-		return i;
+		checkCRC();
+
+		this.crc = new CRC32();
+		if (this.bwtMergedPointers != null) {
+			this.bwtCurrentMergedPointer = this.bwtMergedPointers[this.bwtStartPointer];
+		}
+		this.bwtBytesDecoded = 0;
+		this.rleLastDecodedByte = -1;
+		this.rleAccumulator = 0;
+		this.rleRepeat = 0;
+		this.randomIndex = 0;
+		this.randomCount = RNUMS[0] - 1;
+
+		return decodedLength;
 
 	}
 
@@ -466,6 +649,16 @@ public class BZip2BlockDecompressor {
 	}
 
 
+	/**
+	 * @return The CRC of the block as read from the block header
+	 */
+	int getStoredCRC() {
+
+		return this.blockCRC;
+
+	}
+
+
 	/**
 	 * @param bitInputStream The BZip2BitInputStream to read from
 	 * @param blockSize The maximum decoded size of the block
@@ -473,8 +666,33 @@ public class BZip2BlockDecompressor {
 	 */
 	public BZip2BlockDecompressor (final BZip2BitInputStream bitInputStream, final int blockSize) throws IOException {
 
+		this (bitInputStream, blockSize, null, null, false);
+
+	}
+
+
+	/**
+	 * Constructs a block decompressor that uses caller supplied working arrays where they are large
+	 * enough, so that the arrays can be reused from block to block. The arrays are in use until
+	 * the block has been fully read or verified
+	 * @param bitInputStream The BZip2BitInputStream to read from
+	 * @param blockSize The maximum decoded size of the block
+	 * @param bwtBlock An array of at least {@code blockSize} bytes, or {@code null}
+	 * @param bwtMergedPointers An array of at least {@code blockSize} integers, or {@code null}
+	 * @param retainBWTBlock If {@code true}, the BWT array is retained to receive the output of
+	 *                       {@link #decodeInterleaved(BZip2BlockDecompressor[], int)}; otherwise,
+	 *                       it is released once the merged pointer array has been built
+	 * @throws IOException If the block could not be decoded
+	 */
+	BZip2BlockDecompressor (final BZip2BitInputStream bitInputStream, final int blockSize, final byte[] bwtBlock, final int[] bwtMergedPointers,
+			final boolean retainBWTBlock) throws IOException
+	{
+
 		this.bitInputStream = bitInputStream;
-		this.bwtBlock = new byte[blockSize];
+		this.blockSize = blockSize;
+		this.bwtBlock = ((bwtBlock != null) && (bwtBlock.length >= blockSize)) ? bwtBlock : new byte[blockSize];
+		this.bwtMergedPointersBuffer = bwtMergedPointers;
+		this.retainBWTBlock = retainBWTBlock;
 
 		final int bwtStartPointer;
 
@@ -0,0 +1,699 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * <p>An index of the blocks within a BZip2 file, allowing random access to its decompressed
+ * content (see {@link BZip2SeekableInputStream})</p>
+ *
+ * <p>A file may consist of several concatenated BZip2 streams, as written by
+ * {@link BZip2OutputStream#flushBlock()} or by parallel compressors, each of which is indexed. For
+ * each stream, the index holds the bit offset of its header, its declared block size, the bit
+ * offset of its end-of-stream marker and its combined CRC. For each block, the index holds the bit
+ * offset of the block's header marker within the compressed file, the offset and length of the
+ * block's decompressed content within the whole decompressed file, and the block's CRC. An index
+ * is built by decompressing the whole file once, and can be persisted alongside the compressed data
+ * (see {@link #forFile(File)})</p>
+ *
+ * <p>As with the bzip2 tool, data following the last stream that does not begin with a valid
+ * stream header is ignored</p>
+ */
+public class BZip2BlockIndex {
+
+	/**
+	 * A single indexed stream
+	 */
+	public static class Stream {
+
+		/**
+		 * The bit offset of the stream's header within the compressed file
+		 */
+		private final long bitOffset;
+
+		/**
+		 * The declared block size of the stream
+		 */
+		private final int streamBlockSize;
+
+		/**
+		 * The index of the stream's first block
+		 */
+		private final int firstBlock;
+
+		/**
+		 * The number of blocks in the stream
+		 */
+		private final int blockCount;
+
+		/**
+		 * The bit offset of the stream's end-of-stream marker within the compressed file
+		 */
+		private final long streamEndBitOffset;
+
+		/**
+		 * The combined CRC of the stream
+		 */
+		private final int streamCRC;
+
+
+		/**
+		 * @return The bit offset of the stream's header within the compressed file
+		 */
+		public long getBitOffset() {
+
+			return this.bitOffset;
+
+		}
+
+
+		/**
+		 * @return The declared block size of the stream
+		 */
+		public int getStreamBlockSize() {
+
+			return this.streamBlockSize;
+
+		}
+
+
+		/**
+		 * @return The index of the stream's first block
+		 */
+		public int getFirstBlock() {
+
+			return this.firstBlock;
+
+		}
+
+
+		/**
+		 * @return The number of blocks in the stream
+		 */
+		public int getBlockCount() {
+
+			return this.blockCount;
+
+		}
+
+
+		/**
+		 * @return The bit offset of the stream's end-of-stream marker within the compressed file
+		 */
+		public long getStreamEndBitOffset() {
+
+			return this.streamEndBitOffset;
+
+		}
+
+
+		/**
+		 * @return The combined CRC of the stream
+		 */
+		public int getStreamCRC() {
+
+			return this.streamCRC;
+
+		}
+
+
+		/**
+		 * @param bitOffset The bit offset of the stream's header within the compressed file
+		 * @param streamBlockSize The declared block size of the stream
+		 * @param firstBlock The index of the stream's first block
+		 * @param blockCount The number of blocks in the stream
+		 * @param streamEndBitOffset The bit offset of the stream's end-of-stream marker within the
+		 *                           compressed file
+		 * @param streamCRC The combined CRC of the stream
+		 */
+		public Stream (final long bitOffset, final int streamBlockSize, final int firstBlock, final int blockCount, final long streamEndBitOffset,
+				final int streamCRC)
+		{
+
+			this.bitOffset = bitOffset;
+			this.streamBlockSize = streamBlockSize;
+			this.firstBlock = firstBlock;
+			this.blockCount = blockCount;
+			this.streamEndBitOffset = streamEndBitOffset;
+			this.streamCRC = streamCRC;
+
+		}
+
+	}
+
+
+	/**
+	 * A single indexed block
+	 */
+	public static class Entry {
+
+		/**
+		 * The bit offset of the block's header marker within the compressed file
+		 */
+		private final long bitOffset;
+
+		/**
+		 * The offset of the block's first byte within the decompressed file
+		 */
+		private final long uncompressedOffset;
+
+		/**
+		 * The decompressed length of the block
+		 */
+		private final int uncompressedLength;
+
+		/**
+		 * The block's CRC
+		 */
+		private final int blockCRC;
+
+		/**
+		 * The index of the stream containing the block
+		 */
+		private final int streamIndex;
+
+
+		/**
+		 * @return The bit offset of the block's header marker within the compressed file
+		 */
+		public long getBitOffset() {
+
+			return this.bitOffset;
+
+		}
+
+
+		/**
+		 * @return The offset of the block's first byte within the decompressed file
+		 */
+		public long getUncompressedOffset() {
+
+			return this.uncompressedOffset;
+
+		}
+
+
+		/**
+		 * @return The decompressed length of the block
+		 */
+		public int getUncompressedLength() {
+
+			return this.uncompressedLength;
+
+		}
+
+
+		/**
+		 * @return The block's CRC
+		 */
+		public int getBlockCRC() {
+
+			return this.blockCRC;
+
+		}
+
+
+		/**
+		 * @return The index of the stream containing the block
+		 */
+		public int getStreamIndex() {
+
+			return this.streamIndex;
+
+		}
+
+
+		/**
+		 * @param bitOffset The bit offset of the block's header marker within the compressed file
+		 * @param uncompressedOffset The offset of the block's first byte within the decompressed
+		 *                           file
+		 * @param uncompressedLength The decompressed length of the block
+		 * @param blockCRC The block's CRC
+		 * @param streamIndex The index of the stream containing the block
+		 */
+		public Entry (final long bitOffset, final long uncompressedOffset, final int uncompressedLength, final int blockCRC, final int streamIndex) {
+
+			this.bitOffset = bitOffset;
+			this.uncompressedOffset = uncompressedOffset;
+			this.uncompressedLength = uncompressedLength;
+			this.blockCRC = blockCRC;
+			this.streamIndex = streamIndex;
+
+		}
+
+	}
+
+	/**
+	 * Identifies a persisted index ("BZIX")
+	 */
+	private static final int INDEX_MAGIC = 0x425a4958;
+
+	/**
+	 * The persisted index format version. Version 1 indices, which covered only the first stream,
+	 * are rejected and rebuilt
+	 */
+	private static final int INDEX_VERSION = 2;
+
+	/**
+	 * The suffix appended to a compressed file's name to give the name of its sidecar index
+	 */
+	public static final String SIDECAR_SUFFIX = ".idx";
+
+	/**
+	 * The length in bytes of the indexed compressed data, to the end of the last stream
+	 */
+	private final long compressedLength;
+
+	/**
+	 * The indexed streams, in file order
+	 */
+	private final Stream[] streams;
+
+	/**
+	 * The indexed blocks of all streams, in file order
+	 */
+	private final Entry[] entries;
+
+
+	/**
+	 * @return The length in bytes of the indexed compressed data, to the end of the last stream.
+	 *         Any data following the last stream is not included
+	 */
+	public long getCompressedLength() {
+
+		return this.compressedLength;
+
+	}
+
+
+	/**
+	 * @return The number of streams in the file
+	 */
+	public int getStreamCount() {
+
+		return this.streams.length;
+
+	}
+
+
+	/**
+	 * @param stream The index of the stream
+	 * @return The stream
+	 */
+	public Stream getStream (final int stream) {
+
+		return this.streams[stream];
+
+	}
+
+
+	/**
+	 * @return The number of blocks in all streams
+	 */
+	public int getBlockCount() {
+
+		return this.entries.length;
+
+	}
+
+
+	/**
+	 * @param block The index of the block
+	 * @return The entry for the block
+	 */
+	public Entry getEntry (final int block) {
+
+		return this.entries[block];
+
+	}
+
+
+	/**
+	 * @return The total decompressed length of all streams
+	 */
+	public long getUncompressedLength() {
+
+		if (this.entries.length == 0) {
+			return 0;
+		}
+
+		final Entry lastEntry = this.entries[this.entries.length - 1];
+		return lastEntry.uncompressedOffset + lastEntry.uncompressedLength;
+
+	}
+
+
+	/**
+	 * Finds the block that contains a given offset within the decompressed file
+	 * @param uncompressedOffset The offset to find
+	 * @return The index of the block containing the offset, or -1 if the offset is outside the
+	 *         decompressed file
+	 */
+	public int findBlock (final long uncompressedOffset) {
+
+		final Entry[] entries = this.entries;
+
+		int low = 0;
+		int high = entries.length - 1;
+
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final Entry entry = entries[middle];
+			if (uncompressedOffset < entry.uncompressedOffset) {
+				high = middle - 1;
+			} else if (uncompressedOffset >= entry.uncompressedOffset + entry.uncompressedLength) {
+				low = middle + 1;
+			} else {
+				return middle;
+			}
+		}
+
+		return -1;
+
+	}
+
+
+	/**
+	 * Writes the index in a form that can be read by {@link #read(InputStream)}
+	 * @param outputStream The stream to write to
+	 * @throws IOException on any I/O error writing to the stream
+	 */
+	public void write (final OutputStream outputStream) throws IOException {
+
+		final DataOutputStream dataOutputStream = new DataOutputStream (outputStream);
+
+		dataOutputStream.writeInt (INDEX_MAGIC);
+		dataOutputStream.writeInt (INDEX_VERSION);
+		dataOutputStream.writeLong (this.compressedLength);
+		dataOutputStream.writeInt (this.streams.length);
+		for (final Stream stream : this.streams) {
+			dataOutputStream.writeLong (stream.bitOffset);
+			dataOutputStream.writeInt (stream.streamBlockSize);
+			dataOutputStream.writeInt (stream.blockCount);
+			dataOutputStream.writeLong (stream.streamEndBitOffset);
+			dataOutputStream.writeInt (stream.streamCRC);
+		}
+		dataOutputStream.writeInt (this.entries.length);
+		for (final Entry entry : this.entries) {
+			dataOutputStream.writeLong (entry.bitOffset);
+			dataOutputStream.writeLong (entry.uncompressedOffset);
+			dataOutputStream.writeInt (entry.uncompressedLength);
+			dataOutputStream.writeInt (entry.blockCRC);
+		}
+		dataOutputStream.flush();
+
+	}
+
+
+	/**
+	 * Reads an index written by {@link #write(OutputStream)}
+	 * @param inputStream The stream to read from
+	 * @return The index
+	 * @throws IOException if the data is not a valid index, or on any I/O error reading from the
+	 *                     stream
+	 */
+	public static BZip2BlockIndex read (final InputStream inputStream) throws IOException {
+
+		final DataInputStream dataInputStream = new DataInputStream (inputStream);
+
+		if ((dataInputStream.readInt() != INDEX_MAGIC) || (dataInputStream.readInt() != INDEX_VERSION)) {
+			throw new BZip2Exception ("Invalid BZip2 block index");
+		}
+
+		final long compressedLength = dataInputStream.readLong();
+		final int streamCount = dataInputStream.readInt();
+
+		if (streamCount < 0) {
+			throw new BZip2Exception ("Invalid BZip2 block index");
+		}
+
+		final List<Stream> streams = new ArrayList<Stream>();
+		int firstBlock = 0;
+		for (int i = 0; i < streamCount; i++) {
+			final Stream stream = new Stream (dataInputStream.readLong(), dataInputStream.readInt(), firstBlock, dataInputStream.readInt(),
+					dataInputStream.readLong(), dataInputStream.readInt());
+			if ((stream.streamBlockSize < 100000) || (stream.streamBlockSize > 900000) || (stream.blockCount < 0)) {
+				throw new BZip2Exception ("Invalid BZip2 block index");
+			}
+			firstBlock += stream.blockCount;
+			streams.add (stream);
+		}
+
+		final int blockCount = dataInputStream.readInt();
+
+		if (blockCount != firstBlock) {
+			throw new BZip2Exception ("Invalid BZip2 block index");
+		}
+
+		final List<Entry> entries = new ArrayList<Entry>();
+		long uncompressedOffset = 0;
+		int streamIndex = 0;
+		for (int i = 0; i < blockCount; i++) {
+			while (i >= streams.get (streamIndex).firstBlock + streams.get (streamIndex).blockCount) {
+				streamIndex++;
+			}
+			final Entry entry = new Entry (dataInputStream.readLong(), dataInputStream.readLong(), dataInputStream.readInt(), dataInputStream.readInt(),
+					streamIndex);
+			if ((entry.uncompressedOffset != uncompressedOffset) || (entry.uncompressedLength < 0)) {
+				throw new BZip2Exception ("Invalid BZip2 block index");
+			}
+			uncompressedOffset += entry.uncompressedLength;
+			entries.add (entry);
+		}
+
+		return new BZip2BlockIndex (compressedLength, streams.toArray (new Stream[streams.size()]), entries.toArray (new Entry[entries.size()]));
+
+	}
+
+
+	/**
+	 * Reads a stream header
+	 * @param bitInputStream The stream to read from
+	 * @return The declared block size of the stream
+	 * @throws IOException if the stream header is not valid
+	 */
+	private static int readStreamHeader (final BZip2BitInputStream bitInputStream) throws IOException {
+
+		final int marker1 = bitInputStream.readBits (16);
+		final int marker2 = bitInputStream.readBits (8);
+		final int blockSize = (bitInputStream.readBits (8) - '0');
+
+		if ((marker1 != BZip2Constants.STREAM_START_MARKER_1) || (marker2 != BZip2Constants.STREAM_START_MARKER_2)
+				|| (blockSize < 1) || (blockSize > 9))
+		{
+			throw new BZip2Exception ("Invalid BZip2 header");
+		}
+
+		return blockSize * 100000;
+
+	}
+
+
+	/**
+	 * Builds an index by decompressing the whole of a BZip2 file, including any concatenated
+	 * streams. Every block CRC and stream CRC is verified
+	 * @param inputStream The stream to read the compressed data from. The first stream's leading
+	 *                    "BZ" identifier bytes must not have been read away
+	 * @return The index
+	 * @throws IOException if the compressed data is invalid, or on any I/O error reading from the
+	 *                     stream
+	 */
+	public static BZip2BlockIndex build (final InputStream inputStream) throws IOException {
+
+		final BZip2BitInputStream bitInputStream = new BZip2BitInputStream (inputStream);
+		final List<Stream> streams = new ArrayList<Stream>();
+		final List<Entry> entries = new ArrayList<Entry>();
+		final byte[] buffer = new byte[65536];
+		long uncompressedOffset = 0;
+		long compressedLength = 0;
+
+		for (;;) {
+			final long streamBitOffset = bitInputStream.getBitPosition();
+			final int streamBlockSize;
+
+			/* Read the stream header. Data following the first stream that is not a valid stream
+			 * header is ignored, as it is by the bzip2 tool */
+			if (streams.isEmpty()) {
+				streamBlockSize = readStreamHeader (bitInputStream);
+			} else {
+				try {
+					streamBlockSize = readStreamHeader (bitInputStream);
+				} catch (BZip2Exception e) {
+					break;
+				}
+			}
+
+			final int streamIndex = streams.size();
+			final int firstBlock = entries.size();
+			int streamCRC = 0;
+
+			/* Decode each block, recording its position, length and CRC */
+			for (;;) {
+				final long bitOffset = bitInputStream.getBitPosition();
+				final int blockMarker1 = bitInputStream.readBits (24);
+				final int blockMarker2 = bitInputStream.readBits (24);
+
+				if ((blockMarker1 == BZip2Constants.BLOCK_HEADER_MARKER_1) && (blockMarker2 == BZip2Constants.BLOCK_HEADER_MARKER_2)) {
+					final BZip2BlockDecompressor blockDecompressor = new BZip2BlockDecompressor (bitInputStream, streamBlockSize);
+					int uncompressedLength = 0;
+					int bytesRead;
+					while ((bytesRead = blockDecompressor.read (buffer, 0, buffer.length)) != -1) {
+						uncompressedLength += bytesRead;
+					}
+					final int blockCRC = blockDecompressor.checkCRC();
+					streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ blockCRC;
+					entries.add (new Entry (bitOffset, uncompressedOffset, uncompressedLength, blockCRC, streamIndex));
+					uncompressedOffset += uncompressedLength;
+				} else if ((blockMarker1 == BZip2Constants.STREAM_END_MARKER_1) && (blockMarker2 == BZip2Constants.STREAM_END_MARKER_2)) {
+					if (bitInputStream.readInteger() != streamCRC) {
+						throw new BZip2Exception ("BZip2 stream CRC error");
+					}
+					streams.add (new Stream (streamBitOffset, streamBlockSize, firstBlock, entries.size() - firstBlock, bitOffset, streamCRC));
+					break;
+				} else {
+					throw new BZip2Exception ("BZip2 stream format error");
+				}
+			}
+
+			/* Each stream is padded to a whole number of bytes */
+			bitInputStream.alignToByte();
+			compressedLength = bitInputStream.getBitPosition() >>> 3;
+			if (!bitInputStream.hasMoreData()) {
+				break;
+			}
+		}
+
+		return new BZip2BlockIndex (compressedLength, streams.toArray (new Stream[streams.size()]), entries.toArray (new Entry[entries.size()]));
+
+	}
+
+
+	/**
+	 * Gets the index for a compressed file, reading it from the file's sidecar index if one exists
+	 * and matches the file, or otherwise building it and writing the sidecar index. The sidecar
+	 * index is named by appending {@link #SIDECAR_SUFFIX} to the compressed file's name.<br>
+	 * A sidecar index that cannot be read for any reason, including one truncated by an
+	 * interrupted write, is rebuilt. A new sidecar index is written to a temporary file in the same
+	 * directory and then renamed into place, so that a concurrent or interrupted writer never
+	 * leaves a partial index behind. As the sidecar index is only a cache, failure to write it (for
+	 * instance, to a read-only directory) is ignored and the built index is still returned
+	 * @param file The compressed file
+	 * @return The index
+	 * @throws IOException if the compressed data is invalid, or on any I/O error reading the file
+	 */
+	public static BZip2BlockIndex forFile (final File file) throws IOException {
+
+		final File sidecarFile = new File (file.getPath() + SIDECAR_SUFFIX);
+
+		if (sidecarFile.isFile() && (sidecarFile.lastModified() >= file.lastModified())) {
+			try {
+				final InputStream sidecarInputStream = new BufferedInputStream (new FileInputStream (sidecarFile));
+				try {
+					final BZip2BlockIndex index = read (sidecarInputStream);
+					if (index.compressedLength <= file.length()) {
+						return index;
+					}
+				} finally {
+					sidecarInputStream.close();
+				}
+			} catch (IOException e) {
+				// Rebuild an unreadable or invalid index
+			}
+		}
+
+		final BZip2BlockIndex index;
+		final InputStream fileInputStream = new BufferedInputStream (new FileInputStream (file), 65536);
+		try {
+			index = build (fileInputStream);
+		} finally {
+			fileInputStream.close();
+		}
+
+		try {
+			writeSidecar (index, sidecarFile);
+		} catch (IOException e) {
+			// The sidecar index is only a cache
+		}
+
+		return index;
+
+	}
+
+
+	/**
+	 * Writes a sidecar index through a temporary file in the same directory, which is then
+	 * atomically renamed over any existing sidecar index
+	 * @param index The index to write
+	 * @param sidecarFile The sidecar index file
+	 * @throws IOException on any I/O error writing or renaming the temporary file
+	 */
+	private static void writeSidecar (final BZip2BlockIndex index, final File sidecarFile) throws IOException {
+
+		final File directory = sidecarFile.getAbsoluteFile().getParentFile();
+		final File temporaryFile = File.createTempFile (sidecarFile.getName(), ".tmp", directory);
+		try {
+			final OutputStream sidecarOutputStream = new BufferedOutputStream (new FileOutputStream (temporaryFile));
+			try {
+				index.write (sidecarOutputStream);
+			} finally {
+				sidecarOutputStream.close();
+			}
+			Files.move (temporaryFile.toPath(), sidecarFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temporaryFile.delete();
+		}
+
+	}
+
+
+	/**
+	 * @param compressedLength The length in bytes of the indexed compressed data, to the end of
+	 *                         the last stream
+	 * @param streams The indexed streams, in file order
+	 * @param entries The indexed blocks of all streams, in file order
+	 */
+	public BZip2BlockIndex (final long compressedLength, final Stream[] streams, final Entry[] entries) {
+
+		this.compressedLength = compressedLength;
+		this.streams = streams.clone();
+		this.entries = entries.clone();
+
+	}
+
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * <p>One-shot BZip2 compression and decompression between arrays and buffers</p>
+ *
+ * <p>The compressor here declares the smallest block size that will hold the whole input, rather
+ * than the block size requested. A decompressor sizes its working space by the declared block
+ * size, so small payloads cost memory and time in proportion to their size to decompress as well
+ * as to compress</p>
+ */
+public final class BZip2Codec {
+
+	/**
+	 * An OutputStream that writes to a ByteBuffer, failing if the buffer's remaining space is
+	 * exhausted
+	 */
+	private static class ByteBufferOutputStream extends OutputStream {
+
+		/**
+		 * The buffer to write to
+		 */
+		private final ByteBuffer buffer;
+
+
+		/* (non-Javadoc)
+		 * @see java.io.OutputStream#write(int)
+		 */
+		@Override
+		public void write (final int value) throws IOException {
+
+			if (!this.buffer.hasRemaining()) {
+				throw new BZip2Exception ("Insufficient space in destination buffer");
+			}
+			this.buffer.put ((byte)value);
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.io.OutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write (final byte[] data, final int offset, final int length) throws IOException {
+
+			if (this.buffer.remaining() < length) {
+				throw new BZip2Exception ("Insufficient space in destination buffer");
+			}
+			this.buffer.put (data, offset, length);
+
+		}
+
+
+		/**
+		 * @param buffer The buffer to write to
+		 */
+		public ByteBufferOutputStream (final ByteBuffer buffer) {
+
+			this.buffer = buffer;
+
+		}
+
+	}
+
+
+	/**
+	 * An InputStream that reads from a ByteBuffer
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+
+		/**
+		 * The buffer to read from
+		 */
+		private final ByteBuffer buffer;
+
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() {
+
+			return this.buffer.hasRemaining() ? (this.buffer.get() & 0xff) : -1;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read (final byte[] destination, final int offset, final int length) {
+
+			if (length == 0) {
+				return 0;
+			}
+
+			final int bytesRead = Math.min (length, this.buffer.remaining());
+			if (bytesRead == 0) {
+				return -1;
+			}
+			this.buffer.get (destination, offset, bytesRead);
+
+			return bytesRead;
+
+		}
+
+
+		/**
+		 * @param buffer The buffer to read from
+		 */
+		public ByteBufferInputStream (final ByteBuffer buffer) {
+
+			this.buffer = buffer;
+
+		}
+
+	}
+
+
+	/**
+	 * Checks that a range lies within an array
+	 * @param array The array
+	 * @param offset The start of the range
+	 * @param length The length of the range
+	 */
+	private static void checkRange (final byte[] array, final int offset, final int length) {
+
+		if ((offset < 0) || (length < 0) || (offset > array.length - length)) {
+			throw new IndexOutOfBoundsException();
+		}
+
+	}
+
+
+	/**
+	 * Returns an upper bound on the compressed size of input of a given length, for any input and
+	 * any block size. The bound is derived from the structural limits of the format rather than
+	 * from expected compression ratios, and is therefore loose (around 1.5 times the input length
+	 * for large inputs); incompressible input typically expands by less than 1% plus a few hundred
+	 * bytes
+	 * @param length The input length
+	 * @return The maximum compressed length
+	 * @throws IllegalArgumentException if the length is negative, or if the bound does not fit in
+	 *                                  an {@code int}
+	 */
+	public static int maxCompressedLength (final int length) {
+
+		if (length < 0) {
+			throw new IllegalArgumentException ("Invalid length " + length);
+		}
+
+		// Run-Length Encoding[1] expands its input by at most one byte in four. Each block holds at
+		// least 99,994 bytes of RLE'd data (the smallest block size, less the space reserved for
+		// the block's final run)
+		final long rleLength = length + (length >>> 2) + 1;
+		final long blocks = Math.max (1, (rleLength + 99993) / 99994);
+
+		// Each block contributes at most one symbol per RLE'd byte plus an end-of-block symbol.
+		// Huffman tables are generated from the actual symbol frequencies, so no symbol costs more
+		// on average than a 9-bit fixed length code over the maximum 258 symbol alphabet. Each
+		// group of 50 symbols costs a selector of at most 6 bits
+		final long symbols = rleLength + blocks;
+		final long dataBits = (9 * symbols) + (6 * (symbols / BZip2Constants.HUFFMAN_GROUP_RUN_LENGTH + blocks));
+
+		// Per block: header (105 bits), symbol map (272 bits), table and selector counts (18 bits)
+		// and up to 6 delta coded tables of up to 258 code lengths, each costing at most 39 bits
+		final long blockBits = 105 + 272 + 18 + (BZip2Constants.HUFFMAN_MAXIMUM_TABLES * (5 + (BZip2Constants.HUFFMAN_MAXIMUM_ALPHABET_SIZE * 39)));
+
+		// Per stream: header (32 bits), end-of-stream marker and CRC (80 bits), and padding
+		final long bound = (dataBits + (blocks * blockBits) + 32 + 80 + 7) / 8;
+
+		if (bound > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException ("Length too large " + length);
+		}
+
+		return (int)bound;
+
+	}
+
+
+	/**
+	 * Compresses a range of an array to a single BZip2 stream
+	 * @param source The array to compress from
+	 * @param sourceOffset The offset within the source array to compress from
+	 * @param length The number of bytes to compress
+	 * @param destination The array to write the compressed stream to
+	 * @param destinationOffset The offset within the destination array to write to
+	 * @param blockSizeMultiplier The maximum BZip2 block size as a multiple of 100,000 bytes
+	 *                            (minimum 1, maximum 9). Inputs that are smaller than the maximum
+	 *                            block size are compressed with a smaller block size
+	 * @return The length of the compressed stream
+	 * @throws IOException if the destination array has insufficient space (see
+	 *                     {@link #maxCompressedLength(int)})
+	 */
+	public static int compress (final byte[] source, final int sourceOffset, final int length, final byte[] destination,
+			final int destinationOffset, final int blockSizeMultiplier) throws IOException
+	{
+
+		checkRange (source, sourceOffset, length);
+		checkRange (destination, destinationOffset, 0);
+
+		final ByteBuffer destinationBuffer = ByteBuffer.wrap (destination, destinationOffset, destination.length - destinationOffset);
+		compress (source, sourceOffset, length, new ByteBufferOutputStream (destinationBuffer), blockSizeMultiplier);
+
+		return destinationBuffer.position() - destinationOffset;
+
+	}
+
+
+	/**
+	 * Compresses a range of an array to a single BZip2 stream with a maximum block size of 900,000
+	 * bytes
+	 * @param source The array to compress from
+	 * @param sourceOffset The offset within the source array to compress from
+	 * @param length The number of bytes to compress
+	 * @param destination The array to write the compressed stream to
+	 * @param destinationOffset The offset within the destination array to write to
+	 * @return The length of the compressed stream
+	 * @throws IOException if the destination array has insufficient space (see
+	 *                     {@link #maxCompressedLength(int)})
+	 */
+	public static int compress (final byte[] source, final int sourceOffset, final int length, final byte[] destination,
+			final int destinationOffset) throws IOException
+	{
+
+		return compress (source, sourceOffset, length, destination, destinationOffset, 9);
+
+	}
+
+
+	/**
+	 * Compresses the remaining content of a buffer to a single BZip2 stream with a maximum block
+	 * size of 900,000 bytes. On success, the source buffer's position is advanced to its limit, and
+	 * the destination buffer's position is advanced past the compressed stream
+	 * @param source The buffer to compress from
+	 * @param destination The buffer to write the compressed stream to
+	 * @return The length of the compressed stream
+	 * @throws IOException if the destination buffer has insufficient space (see
+	 *                     {@link #maxCompressedLength(int)})
+	 */
+	public static int compress (final ByteBuffer source, final ByteBuffer destination) throws IOException {
+
+		final int length = source.remaining();
+		final byte[] sourceArray;
+		final int sourceOffset;
+
+		if (source.hasArray()) {
+			sourceArray = source.array();
+			sourceOffset = source.arrayOffset() + source.position();
+		} else {
+			sourceArray = new byte[length];
+			sourceOffset = 0;
+			source.duplicate().get (sourceArray);
+		}
+
+		final int startPosition = destination.position();
+		compress (sourceArray, sourceOffset, length, new ByteBufferOutputStream (destination), 9);
+		source.position (source.limit());
+
+		return destination.position() - startPosition;
+
+	}
+
+
+	/**
+	 * Compresses a range of an array to a single BZip2 stream written to an OutputStream
+	 * @param source The array to compress from
+	 * @param offset The offset within the source array to compress from
+	 * @param length The number of bytes to compress
+	 * @param outputStream The stream to write to
+	 * @param blockSizeMultiplier The maximum BZip2 block size as a multiple of 100,000 bytes
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	private static void compress (final byte[] source, int offset, int length, final OutputStream outputStream,
+			final int blockSizeMultiplier) throws IOException
+	{
+
+		if ((blockSizeMultiplier < 1) || (blockSizeMultiplier > 9)) {
+			throw new IllegalArgumentException ("Invalid BZip2 block size " + blockSizeMultiplier);
+		}
+
+		// Size the block to hold the whole input if possible. Run-Length Encoding[1] expands its
+		// input by at most one byte in four, and the block compressor reserves 6 bytes for its
+		// final run
+		final int blockSize = (int) Math.min (blockSizeMultiplier * 100000, length + (length >>> 2) + 7L);
+		final int declaredBlockSizeMultiplier = (blockSize + 99999) / 100000;
+
+		final BZip2BitOutputStream bitOutputStream = new BZip2BitOutputStream (outputStream);
+		bitOutputStream.writeBits (16, BZip2Constants.STREAM_START_MARKER_1);
+		bitOutputStream.writeBits (8,  BZip2Constants.STREAM_START_MARKER_2);
+		bitOutputStream.writeBits (8, '0' + declaredBlockSizeMultiplier);
+
+		int streamCRC = 0;
+		while (length > 0) {
+			final BZip2BlockCompressor blockCompressor = new BZip2BlockCompressor (bitOutputStream, blockSize);
+			final int bytesWritten = blockCompressor.write (source, offset, length);
+			blockCompressor.close();
+			final int blockCRC = blockCompressor.getCRC();
+			streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ blockCRC;
+			offset += bytesWritten;
+			length -= bytesWritten;
+		}
+
+		bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_1);
+		bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_2);
+		bitOutputStream.writeInteger (streamCRC);
+		bitOutputStream.flush();
+
+	}
+
+
+	/**
+	 * Decompresses a single BZip2 stream from a range of an array. Any data following the end of
+	 * the stream within the range is ignored
+	 * @param source The array to decompress from
+	 * @param sourceOffset The offset within the source array of the compressed stream
+	 * @param length The maximum length of the compressed stream
+	 * @param destination The array to write the decompressed data to
+	 * @param destinationOffset The offset within the destination array to write to
+	 * @return The length of the decompressed data
+	 * @throws IOException if the compressed stream is invalid, or if the destination array has
+	 *                     insufficient space
+	 */
+	public static int decompress (final byte[] source, final int sourceOffset, final int length, final byte[] destination,
+			final int destinationOffset) throws IOException
+	{
+
+		checkRange (source, sourceOffset, length);
+		checkRange (destination, destinationOffset, 0);
+
+		final ByteBuffer sourceBuffer = ByteBuffer.wrap (source, sourceOffset, length);
+		return decompress (new BZip2InputStream (new ByteBufferInputStream (sourceBuffer), false), destination, destinationOffset,
+				destination.length - destinationOffset);
+
+	}
+
+
+	/**
+	 * Decompresses a single BZip2 stream from the remaining content of a buffer. On success, the
+	 * source buffer's position is advanced past the compressed stream, and the destination
+	 * buffer's position is advanced past the decompressed data
+	 * @param source The buffer to decompress from
+	 * @param destination The buffer to write the decompressed data to
+	 * @return The length of the decompressed data
+	 * @throws IOException if the compressed stream is invalid, or if the destination buffer has
+	 *                     insufficient space
+	 */
+	public static int decompress (final ByteBuffer source, final ByteBuffer destination) throws IOException {
+
+		final BZip2InputStream inputStream = new BZip2InputStream (new ByteBufferInputStream (source), false);
+
+		if (destination.hasArray()) {
+			final int position = destination.position();
+			final int decompressedLength = decompress (inputStream, destination.array(), destination.arrayOffset() + position, destination.remaining());
+			destination.position (position + decompressedLength);
+			return decompressedLength;
+		}
+
+		final byte[] buffer = new byte[Math.min (destination.remaining(), 65536)];
+		int decompressedLength = 0;
+		int bytesRead;
+		while ((bytesRead = inputStream.read (buffer, 0, Math.min (buffer.length, destination.remaining()))) > 0) {
+			destination.put (buffer, 0, bytesRead);
+			decompressedLength += bytesRead;
+		}
+		if ((bytesRead == 0) && (inputStream.read() != -1)) {
+			throw new BZip2Exception ("Insufficient space in destination buffer");
+		}
+
+		return decompressedLength;
+
+	}
+
+
+	/**
+	 * Decompresses the whole of a BZip2 stream to an array
+	 * @param inputStream The stream to decompress from
+	 * @param destination The array to write to
+	 * @param offset The offset within the array to write to
+	 * @param length The space available within the array
+	 * @return The length of the decompressed data
+	 * @throws IOException if the compressed stream is invalid, or if the destination array has
+	 *                     insufficient space
+	 */
+	private static int decompress (final BZip2InputStream inputStream, final byte[] destination, final int offset, final int length)
+			throws IOException
+	{
+
+		int decompressedLength = 0;
+		int bytesRead;
+		while ((decompressedLength < length)
+				&& ((bytesRead = inputStream.read (destination, offset + decompressedLength, length - decompressedLength)) != -1))
+		{
+			decompressedLength += bytesRead;
+		}
+
+		if (inputStream.read() != -1) {
+			throw new BZip2Exception ("Insufficient space in destination buffer");
+		}
+
+		return decompressedLength;
+
+	}
+
+
+	/**
+	 * Not instantiable
+	 */
+	private BZip2Codec() {
+
+	}
+
+}
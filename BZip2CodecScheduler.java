@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+ * <p>A pool of worker threads shared between any number of pipelined {@link BZip2OutputStream}s
+ * and {@link BZip2InputStream}s, so that a large number of concurrent streams does not require a
+ * thread pool per stream</p>
+ *
+ * <p>A stream constructed with a scheduler as its executor attaches to it through one or more
+ * <i>lanes</i>. Each lane runs its tasks one at a time and in order; idle workers choose between
+ * lanes that have work waiting by stride scheduling, so that each lane receives a share of the
+ * workers in proportion to its weight regardless of how much work it has queued. A lane that
+ * has been idle does not accumulate credit, and so cannot monopolise the workers when it becomes
+ * busy again. Decompression lanes are given a greater weight than compression lanes
+ * ({@link #DECOMPRESSION_WEIGHT} and {@link #COMPRESSION_WEIGHT}), as a reader is normally
+ * waiting on their result</p>
+ *
+ * <p>Each worker thread holds scratch buffers (the suffix sort's bucket arrays and the Huffman
+ * encoder's working tables) that are reused by every block it compresses</p>
+ *
+ * <p>Tasks passed directly to {@link #execute(Runnable)} are each given a lane of their own.</p>
+ *
+ * <p>Instances of this class are threadsafe.</p>
+ */
+public class BZip2CodecScheduler implements Executor {
+
+	/**
+	 * The lane weight used by compression pipelines
+	 */
+	public static final int COMPRESSION_WEIGHT = 1;
+
+	/**
+	 * The lane weight used by decompression pipelines
+	 */
+	public static final int DECOMPRESSION_WEIGHT = 2;
+
+	/**
+	 * The virtual time a lane of weight 1 is charged for running a task
+	 */
+	private static final long STRIDE = 1 << 20;
+
+	/**
+	 * The process-wide shared scheduler, once created
+	 */
+	private static BZip2CodecScheduler sharedScheduler = null;
+
+
+	/**
+	 * Per-worker buffers reused between blocks
+	 */
+	static final class Scratch {
+
+		/**
+		 * The suffix sort's single byte bucket array
+		 */
+		final int[] bucketA = new int[256];
+
+		/**
+		 * The suffix sort's two byte bucket array
+		 */
+		final int[] bucketB = new int[65536];
+
+		/**
+		 * The Huffman encoder's per-table symbol frequencies
+		 */
+		final int[][] tableFrequencies = new int[BZip2Constants.HUFFMAN_MAXIMUM_TABLES][BZip2Constants.HUFFMAN_MAXIMUM_ALPHABET_SIZE];
+
+		/**
+		 * The Huffman encoder's merged frequency and index array
+		 */
+		final int[] mergedFrequenciesAndIndices = new int[BZip2Constants.HUFFMAN_MAXIMUM_ALPHABET_SIZE];
+
+		/**
+		 * The Huffman encoder's sorted frequency array
+		 */
+		private int[] sortedFrequencies = new int[0];
+
+		/**
+		 * @param alphabetSize The Huffman alphabet size
+		 * @return The Huffman encoder's sorted frequency array, of exactly the requested length. The
+		 *         array is reused while successive tables have the same alphabet size
+		 */
+		int[] getSortedFrequencies (final int alphabetSize) {
+
+			if (this.sortedFrequencies.length != alphabetSize) {
+				this.sortedFrequencies = new int[alphabetSize];
+			}
+
+			return this.sortedFrequencies;
+
+		}
+
+	}
+
+
+	/**
+	 * A worker thread
+	 */
+	private final class Worker extends Thread {
+
+		/**
+		 * The worker's scratch buffers
+		 */
+		final Scratch scratch = new Scratch();
+
+		/* (non-Javadoc)
+		 * @see java.lang.Thread#run()
+		 */
+		@Override
+		public void run() {
+
+			runWorker();
+
+		}
+
+		/**
+		 * @param name The thread's name
+		 */
+		Worker (final String name) {
+
+			super (name);
+
+		}
+
+	}
+
+
+	/**
+	 * A serial queue of tasks belonging to one stream
+	 */
+	private final class Lane implements Executor {
+
+		/**
+		 * The lane's share of the workers relative to other lanes
+		 */
+		final int weight;
+
+		/**
+		 * The order in which the lane was created, used to break ties between lanes
+		 */
+		final long sequence;
+
+		/**
+		 * Tasks waiting to be run
+		 */
+		final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+
+		/**
+		 * The virtual time at which the lane's next task is due
+		 */
+		long pass;
+
+		/**
+		 * {@code true} if one of the lane's tasks is running or the lane is waiting in the ready
+		 * queue
+		 */
+		boolean scheduled = false;
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+		 */
+		public void execute (final Runnable task) {
+
+			submit (this, task);
+
+		}
+
+		/**
+		 * @param weight The lane's share of the workers relative to other lanes
+		 * @param sequence The order in which the lane was created
+		 */
+		Lane (final int weight, final long sequence) {
+
+			this.weight = weight;
+			this.sequence = sequence;
+
+		}
+
+	}
+
+
+	/**
+	 * Lanes that have tasks waiting and none running, in the order they are due
+	 */
+	private final PriorityQueue<Lane> readyLanes = new PriorityQueue<Lane> (16, new Comparator<Lane>() {
+		public int compare (final Lane lane1, final Lane lane2) {
+			if (lane1.pass != lane2.pass) {
+				return (lane1.pass < lane2.pass) ? -1 : 1;
+			}
+			return (lane1.sequence < lane2.sequence) ? -1 : ((lane1.sequence == lane2.sequence) ? 0 : 1);
+		}
+	});
+
+	/**
+	 * The scheduler's virtual time; the pass of the lane most recently chosen to run
+	 */
+	private long virtualTime = 0;
+
+	/**
+	 * The number of lanes created so far
+	 */
+	private long laneCount = 0;
+
+	/**
+	 * The number of lanes that have tasks waiting or running
+	 */
+	private int activeLaneCount = 0;
+
+	/**
+	 * The number of tasks waiting to be run
+	 */
+	private int queuedTaskCount = 0;
+
+	/**
+	 * The number of tasks completed
+	 */
+	private long completedTaskCount = 0;
+
+	/**
+	 * {@code true} once {@link #shutdown()} has been called
+	 */
+	private boolean shutdown = false;
+
+	/**
+	 * The scheduler's worker threads
+	 */
+	private final Worker[] workers;
+
+
+	/**
+	 * Returns the process-wide shared scheduler, creating it if required. The shared scheduler has
+	 * one daemon worker thread per available processor
+	 * @return The shared scheduler
+	 */
+	public static synchronized BZip2CodecScheduler getShared() {
+
+		if (sharedScheduler == null) {
+			sharedScheduler = new BZip2CodecScheduler (Runtime.getRuntime().availableProcessors());
+		}
+
+		return sharedScheduler;
+
+	}
+
+
+	/**
+	 * Creates an ordered pipeline stage on an executor. If the executor is a scheduler the stage is
+	 * one of its lanes, otherwise it is a {@link BZip2SerialExecutor}
+	 * @param executor The executor
+	 * @param weight The weight to give the lane if the executor is a scheduler
+	 * @return The stage
+	 */
+	static Executor createStage (final Executor executor, final int weight) {
+
+		if (executor instanceof BZip2CodecScheduler) {
+			return ((BZip2CodecScheduler)executor).createLane (weight);
+		}
+
+		return new BZip2SerialExecutor (executor);
+
+	}
+
+
+	/**
+	 * @return The scratch buffers of the current thread if it is a worker of any scheduler,
+	 *         otherwise {@code null}
+	 */
+	static Scratch currentScratch() {
+
+		final Thread thread = Thread.currentThread();
+
+		return (thread instanceof Worker) ? ((Worker)thread).scratch : null;
+
+	}
+
+
+	/**
+	 * Creates a lane. Tasks submitted to the lane run one at a time, in the order they were
+	 * submitted
+	 * @param weight The lane's share of the workers relative to other lanes (minimum 1)
+	 * @return The lane
+	 */
+	public synchronized Executor createLane (final int weight) {
+
+		if (weight < 1) {
+			throw new IllegalArgumentException ("Invalid weight " + weight);
+		}
+
+		return new Lane (weight, this.laneCount++);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public void execute (final Runnable task) {
+
+		createLane (COMPRESSION_WEIGHT).execute (task);
+
+	}
+
+
+	/**
+	 * Queues a task on a lane
+	 * @param lane The lane
+	 * @param task The task
+	 */
+	private synchronized void submit (final Lane lane, final Runnable task) {
+
+		if (task == null) {
+			throw new NullPointerException();
+		}
+
+		if (this.shutdown) {
+			throw new RejectedExecutionException ("Scheduler has been shut down");
+		}
+
+		lane.tasks.add (task);
+		this.queuedTaskCount++;
+
+		if (!lane.scheduled) {
+			lane.scheduled = true;
+			this.activeLaneCount++;
+			lane.pass = Math.max (lane.pass, this.virtualTime);
+			this.readyLanes.add (lane);
+			notify();
+		}
+
+	}
+
+
+	/**
+	 * Runs tasks from the ready lanes until the scheduler is shut down and no tasks remain
+	 */
+	private void runWorker() {
+
+		while (true) {
+
+			final Lane lane;
+			final Runnable task;
+
+			synchronized (this) {
+				while (this.readyLanes.isEmpty()) {
+					if (this.shutdown) {
+						return;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Workers only exit on shutdown
+					}
+				}
+				lane = this.readyLanes.poll();
+				task = lane.tasks.poll();
+				this.queuedTaskCount--;
+				this.virtualTime = lane.pass;
+				lane.pass += STRIDE / lane.weight;
+			}
+
+			try {
+				task.run();
+			} catch (Throwable t) {
+				final Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException (thread, t);
+			}
+
+			synchronized (this) {
+				this.completedTaskCount++;
+				if (lane.tasks.isEmpty()) {
+					lane.scheduled = false;
+					this.activeLaneCount--;
+				} else {
+					this.readyLanes.add (lane);
+					notify();
+				}
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Stops accepting new tasks. Tasks already queued are run, after which the worker threads exit
+	 */
+	public synchronized void shutdown() {
+
+		this.shutdown = true;
+		notifyAll();
+
+	}
+
+
+	/**
+	 * @return The number of worker threads
+	 */
+	public int getWorkerCount() {
+
+		return this.workers.length;
+
+	}
+
+
+	/**
+	 * @return The number of tasks waiting to be run
+	 */
+	public synchronized int getQueuedTaskCount() {
+
+		return this.queuedTaskCount;
+
+	}
+
+
+	/**
+	 * @return The number of lanes that have tasks waiting or running
+	 */
+	public synchronized int getActiveLaneCount() {
+
+		return this.activeLaneCount;
+
+	}
+
+
+	/**
+	 * @return The number of tasks completed
+	 */
+	public synchronized long getCompletedTaskCount() {
+
+		return this.completedTaskCount;
+
+	}
+
+
+	/**
+	 * @param threads The number of worker threads (minimum 1). Worker threads are daemon threads
+	 */
+	public BZip2CodecScheduler (final int threads) {
+
+		if (threads < 1) {
+			throw new IllegalArgumentException ("Invalid thread count " + threads);
+		}
+
+		this.workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			final Worker worker = new Worker ("bzip2-codec-" + i);
+			worker.setDaemon (true);
+			this.workers[i] = worker;
+		}
+		for (Worker worker : this.workers) {
+			worker.start();
+		}
+
+	}
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+
+/**
+ * <p>A {@link Flow.Processor} that compresses the buffers it receives into a single BZip2
+ * stream</p>
+ *
+ * <p>Input is accumulated into a {@link BZip2BlockCompressor}. Each time a block fills it is
+ * compressed, and the complete bytes of its compressed form are emitted as one buffer; the final
+ * block and the end of the stream are emitted when the upstream publisher completes. All
+ * compression is performed on the executor supplied at construction, never on the threads that
+ * signal the processor</p>
+ *
+ * <p>Received buffers are read from their position to their limit and are not modified. They must
+ * not be modified by the publisher until they have been consumed, which may be after
+ * {@link #onNext(ByteBuffer)} has returned</p>
+ */
+public class BZip2CompressingProcessor extends BZip2FlowProcessor {
+
+	/**
+	 * The size of the array used to copy input from buffers that are not backed by an array
+	 */
+	private static final int COPY_BUFFER_SIZE = 65536;
+
+	/**
+	 * Collects the compressed output of each block
+	 */
+	private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+	/**
+	 * The bit stream through which compressed data is written to {@link #output}
+	 */
+	private final BZip2BitOutputStream bitOutputStream = new BZip2BitOutputStream (this.output);
+
+	/**
+	 * The declared maximum block size of the stream (before final run-length decoding)
+	 */
+	private final int streamBlockSize;
+
+	/**
+	 * The merged CRC of all blocks compressed so far
+	 */
+	private int streamCRC = 0;
+
+	/**
+	 * The compressor for the current block
+	 */
+	private BZip2BlockCompressor blockCompressor;
+
+	/**
+	 * {@code true} once the end of the stream has been written
+	 */
+	private boolean streamFinished = false;
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2FlowProcessor#input(java.nio.ByteBuffer)
+	 */
+	@Override
+	void input (final ByteBuffer buffer) throws IOException {
+
+		if (buffer.hasArray()) {
+			write (buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		} else {
+			final ByteBuffer source = buffer.duplicate();
+			final byte[] data = new byte[Math.min (COPY_BUFFER_SIZE, source.remaining())];
+			while (source.hasRemaining()) {
+				final int length = Math.min (data.length, source.remaining());
+				source.get (data, 0, length);
+				write (data, 0, length);
+			}
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2FlowProcessor#inputComplete()
+	 */
+	@Override
+	void inputComplete() throws IOException {
+
+		closeBlock();
+
+		this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_1);
+		this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_2);
+		this.bitOutputStream.writeInteger (this.streamCRC);
+		this.bitOutputStream.flush();
+		emitOutput();
+
+		this.streamFinished = true;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2FlowProcessor#produce()
+	 */
+	@Override
+	boolean produce() {
+
+		// All output is produced as input is consumed
+		return false;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2FlowProcessor#isFinished()
+	 */
+	@Override
+	boolean isFinished() {
+
+		return this.streamFinished;
+
+	}
+
+
+	/**
+	 * Writes data to the current block, compressing and emitting blocks as they fill
+	 * @param data The array to write
+	 * @param offset The offset within the array to write from
+	 * @param length The number of bytes to write
+	 * @throws IOException on any error compressing a block
+	 */
+	private void write (final byte[] data, int offset, int length) throws IOException {
+
+		while (length > 0) {
+			final int bytesWritten = this.blockCompressor.write (data, offset, length);
+			offset += bytesWritten;
+			length -= bytesWritten;
+			if (length > 0) {
+				closeBlock();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Compresses and emits the current block if it contains any data, and starts a new block
+	 * @throws IOException on any error compressing the block
+	 */
+	private void closeBlock() throws IOException {
+
+		if (this.blockCompressor.isEmpty()) {
+			return;
+		}
+
+		this.blockCompressor.close();
+		final int blockCRC = this.blockCompressor.getCRC();
+		this.streamCRC = ((this.streamCRC << 1) | (this.streamCRC >>> 31)) ^ blockCRC;
+		emitOutput();
+
+		this.blockCompressor = new BZip2BlockCompressor (this.bitOutputStream, this.streamBlockSize);
+
+	}
+
+
+	/**
+	 * Emits the complete bytes written so far. Bits of an incomplete final byte remain within the
+	 * bit stream until further data is written
+	 */
+	private void emitOutput() {
+
+		if (this.output.size() > 0) {
+			emit (ByteBuffer.wrap (this.output.toByteArray()));
+			this.output.reset();
+		}
+
+	}
+
+
+	/**
+	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
+	 * maximum 9)
+	 * @param executor The executor on which compression is performed. If the executor is a
+	 *                 {@link BZip2CodecScheduler}, the processor's work is scheduled fairly against
+	 *                 that of other streams sharing it
+	 */
+	public BZip2CompressingProcessor (final int blockSizeMultiplier, final Executor executor) {
+
+		super (executor, BZip2CodecScheduler.COMPRESSION_WEIGHT);
+
+		if ((blockSizeMultiplier < 1) || (blockSizeMultiplier > 9)) {
+			throw new IllegalArgumentException ("Invalid BZip2 block size " + blockSizeMultiplier);
+		}
+
+		this.streamBlockSize = blockSizeMultiplier * 100000;
+		this.blockCompressor = new BZip2BlockCompressor (this.bitOutputStream, this.streamBlockSize);
+
+		try {
+			this.bitOutputStream.writeBits (16, BZip2Constants.STREAM_START_MARKER_1);
+			this.bitOutputStream.writeBits (8,  BZip2Constants.STREAM_START_MARKER_2);
+			this.bitOutputStream.writeBits (8, '0' + blockSizeMultiplier);
+		} catch (IOException e) {
+			// Cannot occur when writing to a ByteArrayOutputStream
+			throw new IllegalStateException (e);
+		}
+
+	}
+
+}
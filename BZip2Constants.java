@@ -73,6 +73,22 @@ interface BZip2Constants {
 	 */
 	static final int HUFFMAN_MAXIMUM_SELECTORS = (900000 / HUFFMAN_GROUP_RUN_LENGTH) + 1;
 
+	/**
+	 * The greatest length in bytes of a compressed block that the decoder accepts, at the maximum
+	 * block size. A block of at most 900,000 bytes has at most 900,001 Huffman symbols including
+	 * its end-of-block symbol, each coded in at most {@link #HUFFMAN_DECODE_MAXIMUM_CODE_LENGTH}
+	 * bits. Code lengths are assumed to be delta coded without redundant steps, as every encoder
+	 * writes them; the decoder cannot bound a table that steps back and forth
+	 */
+	static final int MAXIMUM_COMPRESSED_BLOCK_SIZE = (
+			  105                                                          // Block header marker, CRC, randomised flag and start pointer
+			+ 16 + (16 * 16)                                               // Symbol map
+			+ 3 + 15                                                       // Table and selector counts
+			+ (HUFFMAN_MAXIMUM_SELECTORS * HUFFMAN_MAXIMUM_TABLES)         // Unary coded selectors
+			+ (HUFFMAN_MAXIMUM_TABLES * (5 + (HUFFMAN_MAXIMUM_ALPHABET_SIZE * ((2 * (HUFFMAN_DECODE_MAXIMUM_CODE_LENGTH - 1)) + 1))))
+			+ ((900000 + 1) * HUFFMAN_DECODE_MAXIMUM_CODE_LENGTH)          // Huffman coded symbols
+			+ 7) / 8;
+
 	/**
 	 * Huffman symbol used for run-length encoding
 	 */
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+
+/**
+ * <p>A {@link Flow.Processor} that decompresses a single BZip2 stream from the buffers it
+ * receives. Any data following the end of the stream is ignored</p>
+ *
+ * <p>Received data is accumulated until the whole of the next block is available. Blocks are
+ * decoded with a {@link BZip2BlockDecompressor} one at a time as the downstream subscriber's
+ * demand requires, and their output is emitted in buffers of at most {@link #OUTPUT_BUFFER_SIZE}
+ * bytes. As block boundaries are not visible in the compressed data, a block is decoded
+ * speculatively from the data received so far; if the data runs out, decoding is retried once
+ * the amount received has doubled, so that the work repeated stays proportional to the block
+ * size. All decompression is performed on the executor supplied at construction, never on the
+ * threads that signal the processor</p>
+ */
+public class BZip2DecompressingProcessor extends BZip2FlowProcessor {
+
+	/**
+	 * The maximum size of each emitted buffer
+	 */
+	public static final int OUTPUT_BUFFER_SIZE = 65536;
+
+	/**
+	 * The initial size of the received data array
+	 */
+	private static final int INITIAL_INPUT_LENGTH = 65536;
+
+
+	/**
+	 * Thrown by {@link InputBuffer} when the data received so far is exhausted
+	 */
+	private static class InsufficientInputException extends IOException {
+
+		/**
+		 * Serial version UID
+		 */
+		private static final long serialVersionUID = 1L;
+
+	}
+
+
+	/**
+	 * An InputStream over the data received so far
+	 */
+	private static class InputBuffer extends InputStream {
+
+		/**
+		 * The received data
+		 */
+		private final byte[] data;
+
+		/**
+		 * The position of the next byte to read
+		 */
+		private int position;
+
+		/**
+		 * The length of the received data
+		 */
+		private final int limit;
+
+		/**
+		 * If {@code true}, no further data will be received, and the end of the data is the end
+		 * of the stream. Otherwise, reading past the end of the data throws an
+		 * {@link InsufficientInputException}
+		 */
+		private final boolean complete;
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+
+			if (this.position < this.limit) {
+				return this.data[this.position++] & 0xff;
+			}
+
+			if (this.complete) {
+				return -1;
+			}
+
+			throw new InsufficientInputException();
+
+		}
+
+		/**
+		 * @param data The received data
+		 * @param position The position of the first byte to read
+		 * @param limit The length of the received data
+		 * @param complete If {@code true}, no further data will be received
+		 */
+		public InputBuffer (final byte[] data, final int position, final int limit, final boolean complete) {
+
+			this.data = data;
+			this.position = position;
+			this.limit = limit;
+			this.complete = complete;
+
+		}
+
+	}
+
+
+	/**
+	 * The data received but not yet decoded. Begins with the byte containing the next unread bit
+	 */
+	private byte[] input = new byte[INITIAL_INPUT_LENGTH];
+
+	/**
+	 * The length of the data in {@link #input}
+	 */
+	private int inputLength = 0;
+
+	/**
+	 * The number of bits of the first byte of {@link #input} that have already been decoded
+	 */
+	private int inputBitOffset = 0;
+
+	/**
+	 * {@code true} once the upstream publisher has completed
+	 */
+	private boolean inputComplete = false;
+
+	/**
+	 * The value of {@link #inputLength} at or above which a decode that ran out of data should be
+	 * retried
+	 */
+	private int retryLength = 0;
+
+	/**
+	 * The declared maximum block size of the stream, or {@code 0} if the stream header has not yet
+	 * been read
+	 */
+	private int streamBlockSize = 0;
+
+	/**
+	 * The merged CRC of all blocks decompressed so far
+	 */
+	private int streamCRC = 0;
+
+	/**
+	 * The block whose output is being emitted, or {@code null}
+	 */
+	private BZip2BlockDecompressor blockDecompressor = null;
+
+	/**
+	 * {@code true} once the end-of-stream marker has been read and the stream CRC verified
+	 */
+	private boolean streamEndRead = false;
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2FlowProcessor#input(java.nio.ByteBuffer)
+	 */
+	@Override
+	void input (final ByteBuffer buffer) {
+
+		if (this.streamEndRead) {
+			return;
+		}
+
+		final int length = buffer.remaining();
+		if (this.inputLength + length > this.input.length) {
+			final byte[] newInput = new byte[Math.max (this.input.length * 2, this.inputLength + length)];
+			System.arraycopy (this.input, 0, newInput, 0, this.inputLength);
+			this.input = newInput;
+		}
+
+		buffer.duplicate().get (this.input, this.inputLength, length);
+		this.inputLength += length;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2FlowProcessor#inputComplete()
+	 */
+	@Override
+	void inputComplete() {
+
+		this.inputComplete = true;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2FlowProcessor#produce()
+	 */
+	@Override
+	boolean produce() throws IOException {
+
+		// Emit the next part of the current block's output, if any remains
+		if (this.blockDecompressor != null) {
+			final byte[] output = new byte[OUTPUT_BUFFER_SIZE];
+			final int bytesRead = this.blockDecompressor.read (output, 0, output.length);
+			if (bytesRead == -1) {
+				final int blockCRC = this.blockDecompressor.checkCRC();
+				this.streamCRC = ((this.streamCRC << 1) | (this.streamCRC >>> 31)) ^ blockCRC;
+				this.blockDecompressor = null;
+			} else {
+				emit (ByteBuffer.wrap (output, 0, bytesRead));
+			}
+			return true;
+		}
+
+		if (this.streamEndRead || (!this.inputComplete && (this.inputLength < this.retryLength))) {
+			return false;
+		}
+
+		// Attempt to decode the stream header, or the next block or end-of-stream marker
+		final BZip2BitInputStream bitInputStream = new BZip2BitInputStream (new InputBuffer (this.input, 0, this.inputLength, this.inputComplete));
+		try {
+			if (this.inputBitOffset > 0) {
+				bitInputStream.readBits (this.inputBitOffset);
+			}
+			if (this.streamBlockSize == 0) {
+				readStreamHeader (bitInputStream);
+			} else {
+				readNextBlock (bitInputStream);
+			}
+		} catch (InsufficientInputException e) {
+			this.retryLength = Math.max (this.inputLength + 1, this.inputLength * 2);
+			return false;
+		}
+
+		if (this.streamEndRead) {
+			this.input = null;
+			return true;
+		}
+
+		// Discard the data that has been decoded
+		final long bitPosition = bitInputStream.getBitPosition();
+		final int consumedBytes = (int)(bitPosition >>> 3);
+		System.arraycopy (this.input, consumedBytes, this.input, 0, this.inputLength - consumedBytes);
+		this.inputLength -= consumedBytes;
+		this.inputBitOffset = (int)(bitPosition & 7);
+		this.retryLength = 0;
+
+		return true;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2FlowProcessor#isFinished()
+	 */
+	@Override
+	boolean isFinished() {
+
+		return this.streamEndRead && (this.blockDecompressor == null);
+
+	}
+
+
+	/**
+	 * Reads and validates the stream header
+	 * @param bitInputStream The bit stream to read from
+	 * @throws IOException if the stream header is not valid
+	 */
+	private void readStreamHeader (final BZip2BitInputStream bitInputStream) throws IOException {
+
+		final int marker1 = bitInputStream.readBits (16);
+		final int marker2 = bitInputStream.readBits (8);
+		final int blockSize = (bitInputStream.readBits (8) - '0');
+
+		if (
+				   (marker1 != BZip2Constants.STREAM_START_MARKER_1)
+				|| (marker2 != BZip2Constants.STREAM_START_MARKER_2)
+				|| (blockSize < 1) || (blockSize > 9))
+		{
+			throw new BZip2Exception ("Invalid BZip2 header");
+		}
+
+		this.streamBlockSize = blockSize * 100000;
+
+	}
+
+
+	/**
+	 * Reads a block-header or end-of-stream marker. For a block header, the following block is
+	 * decoded through to the Inverse Burrows Wheeler Transform stage. For an end-of-stream marker,
+	 * the stream CRC is verified
+	 * @param bitInputStream The bit stream to read from
+	 * @throws IOException if the following data is not a valid block-header or end-of-file marker,
+	 *                     if the following block could not be decoded, or if the stream CRC check
+	 *                     failed
+	 */
+	private void readNextBlock (final BZip2BitInputStream bitInputStream) throws IOException {
+
+		final int marker1 = bitInputStream.readBits (24);
+		final int marker2 = bitInputStream.readBits (24);
+
+		if (marker1 == BZip2Constants.BLOCK_HEADER_MARKER_1 && marker2 == BZip2Constants.BLOCK_HEADER_MARKER_2) {
+			final BZip2BlockDecompressor blockDecompressor = new BZip2BlockDecompressor (bitInputStream, this.streamBlockSize, null, null, true);
+			BZip2BlockDecompressor.decodeInterleaved (new BZip2BlockDecompressor[] { blockDecompressor }, 1);
+			this.blockDecompressor = blockDecompressor;
+		} else if (marker1 == BZip2Constants.STREAM_END_MARKER_1 && marker2 == BZip2Constants.STREAM_END_MARKER_2) {
+			final int storedStreamCRC = bitInputStream.readInteger();
+			if (storedStreamCRC != this.streamCRC) {
+				throw new BZip2Exception ("BZip2 stream CRC error");
+			}
+			this.streamEndRead = true;
+		} else {
+			throw new BZip2Exception ("BZip2 stream format error");
+		}
+
+	}
+
+
+	/**
+	 * @param executor The executor on which decompression is performed. If the executor is a
+	 *                 {@link BZip2CodecScheduler}, the processor's work is scheduled fairly against
+	 *                 that of other streams sharing it
+	 */
+	public BZip2DecompressingProcessor (final Executor executor) {
+
+		super (executor, BZip2CodecScheduler.DECOMPRESSION_WEIGHT);
+
+	}
+
+}
@@ -23,6 +23,7 @@
 
 package org.itadaki.bzip2;
 
+import java.util.Arrays;
 
 /**
  * DivSufSort suffix array generator
@@ -2494,12 +2495,26 @@ public class BZip2DivSufSort {
 	 */
 	public int bwt() {
 
+		return bwt (new int[BZip2DivSufSort.BUCKET_A_SIZE], new int[BZip2DivSufSort.BUCKET_B_SIZE]);
+
+	}
+
+
+	/**
+	 * Performs a Burrows Wheeler Transform on the input array, using caller supplied bucket arrays.
+	 * The arrays are cleared before use, and may be reused between transforms
+	 * @param bucketA An array of at least 256 elements
+	 * @param bucketB An array of at least 65536 elements
+	 * @return the index of the first character of the input array within the output array
+	 */
+	public int bwt (final int[] bucketA, final int[] bucketB) {
+
 		final int[] SA = this.SA;
 		final byte[] T = this.T;
 		final int n = this.n;
 
-		final int[] bucketA = new int[BZip2DivSufSort.BUCKET_A_SIZE];
-		final int[] bucketB = new int[BZip2DivSufSort.BUCKET_B_SIZE];
+		Arrays.fill (bucketA, 0, BZip2DivSufSort.BUCKET_A_SIZE, 0);
+		Arrays.fill (bucketB, 0, BZip2DivSufSort.BUCKET_B_SIZE, 0);
 
 		if (n == 0) {
 			return 0;
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * <p>A size-bounded cache of encoded BZip2 blocks, keyed by a SHA-256 digest of the block's
+ * Run-Length Encoded contents and the declared block size. A {@link BZip2OutputStream} that
+ * compresses a block identical to one already cached copies out the cached block's bits,
+ * skipping the Burrows Wheeler Transform and the following encoding stages. Blocks are evicted
+ * in least recently used order once the total size of the cached blocks exceeds the cache's
+ * capacity</p>
+ *
+ * <p>Instances of this class are threadsafe, and may be shared between any number of
+ * {@link BZip2OutputStream}s.</p>
+ */
+public class BZip2EncodedBlockCache {
+
+	/**
+	 * A cache key
+	 */
+	static final class Key {
+
+		/**
+		 * The SHA-256 digest of the block's Run-Length Encoded contents
+		 */
+		private final byte[] digest;
+
+		/**
+		 * The declared block size
+		 */
+		private final int blockSize;
+
+		/**
+		 * The hash code of the key
+		 */
+		private final int hashCode;
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+
+			return this.hashCode;
+
+		}
+
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals (final Object other) {
+
+			if (!(other instanceof Key)) {
+				return false;
+			}
+
+			final Key otherKey = (Key)other;
+			return (this.blockSize == otherKey.blockSize) && Arrays.equals (this.digest, otherKey.digest);
+
+		}
+
+
+		/**
+		 * @param digest The SHA-256 digest of the block's Run-Length Encoded contents
+		 * @param blockSize The declared block size
+		 */
+		public Key (final byte[] digest, final int blockSize) {
+
+			this.digest = digest;
+			this.blockSize = blockSize;
+			this.hashCode = Arrays.hashCode (digest) * 31 + blockSize;
+
+		}
+
+	}
+
+
+	/**
+	 * An encoded block
+	 */
+	static final class Entry {
+
+		/**
+		 * The block's bits, from the block header marker to the end of the encoded data, most
+		 * significant bit first. The final byte is zero padded
+		 */
+		final byte[] data;
+
+		/**
+		 * The number of bits in the block
+		 */
+		final long bitLength;
+
+		/**
+		 * The final code lengths of each of the block's Huffman tables, with which a stream that
+		 * copies out the block seeds its next block's tables (see {@link BZip2HuffmanWarmStart})
+		 */
+		final int[][] codeLengths;
+
+
+		/**
+		 * @param data The block's bits
+		 * @param bitLength The number of bits in the block
+		 * @param codeLengths The final code lengths of each of the block's Huffman tables
+		 */
+		public Entry (final byte[] data, final long bitLength, final int[][] codeLengths) {
+
+			this.data = data;
+			this.bitLength = bitLength;
+			this.codeLengths = codeLengths;
+
+		}
+
+	}
+
+
+	/**
+	 * The maximum total size in bytes of the cached blocks
+	 */
+	private final long capacity;
+
+	/**
+	 * The cached blocks, in least to most recently used order
+	 */
+	private final LinkedHashMap<Key,Entry> blocks = new LinkedHashMap<Key,Entry> (16, 0.75f, true);
+
+	/**
+	 * The total size in bytes of the cached blocks
+	 */
+	private long size = 0;
+
+	/**
+	 * The number of blocks found in the cache
+	 */
+	private long hitCount = 0;
+
+	/**
+	 * The number of blocks not found in the cache
+	 */
+	private long missCount = 0;
+
+	/**
+	 * The number of blocks evicted from the cache
+	 */
+	private long evictionCount = 0;
+
+
+	/**
+	 * Creates a key for a block
+	 * @param block The block's Run-Length Encoded contents
+	 * @param length The length of the contents
+	 * @param blockSize The declared block size
+	 * @return The key
+	 */
+	static Key createKey (final byte[] block, final int length, final int blockSize) {
+
+		final MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance ("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Cannot happen, as every Java platform is required to support SHA-256
+			throw new IllegalStateException (e);
+		}
+		messageDigest.update (block, 0, length);
+
+		return new Key (messageDigest.digest(), blockSize);
+
+	}
+
+
+	/**
+	 * Looks up an encoded block
+	 * @param key The block's key
+	 * @return The encoded block, or {@code null} if it is not cached
+	 */
+	synchronized Entry get (final Key key) {
+
+		final Entry entry = this.blocks.get (key);
+		if (entry != null) {
+			this.hitCount++;
+		} else {
+			this.missCount++;
+		}
+
+		return entry;
+
+	}
+
+
+	/**
+	 * Adds an encoded block to the cache, evicting the least recently used blocks as required.
+	 * Blocks larger than the cache's capacity are not cached
+	 * @param key The block's key
+	 * @param entry The encoded block
+	 */
+	synchronized void put (final Key key, final Entry entry) {
+
+		if (entry.data.length > this.capacity) {
+			return;
+		}
+
+		final Entry previousEntry = this.blocks.put (key, entry);
+		if (previousEntry != null) {
+			this.size -= previousEntry.data.length;
+		}
+		this.size += entry.data.length;
+
+		final Iterator<Entry> iterator = this.blocks.values().iterator();
+		while (this.size > this.capacity) {
+			this.size -= iterator.next().data.length;
+			iterator.remove();
+			this.evictionCount++;
+		}
+
+	}
+
+
+	/**
+	 * Removes all blocks from the cache. Statistics are not reset
+	 */
+	public synchronized void clear() {
+
+		this.blocks.clear();
+		this.size = 0;
+
+	}
+
+
+	/**
+	 * @return The maximum total size in bytes of the cached blocks
+	 */
+	public long getCapacity() {
+
+		return this.capacity;
+
+	}
+
+
+	/**
+	 * @return The total size in bytes of the cached blocks
+	 */
+	public synchronized long getSize() {
+
+		return this.size;
+
+	}
+
+
+	/**
+	 * @return The number of blocks currently cached
+	 */
+	public synchronized int getBlockCount() {
+
+		return this.blocks.size();
+
+	}
+
+
+	/**
+	 * @return The number of blocks found in the cache
+	 */
+	public synchronized long getHitCount() {
+
+		return this.hitCount;
+
+	}
+
+
+	/**
+	 * @return The number of blocks not found in the cache
+	 */
+	public synchronized long getMissCount() {
+
+		return this.missCount;
+
+	}
+
+
+	/**
+	 * @return The proportion of blocks found in the cache, or {@code 0} if no blocks have been
+	 *         looked up
+	 */
+	public synchronized double getHitRate() {
+
+		final long lookupCount = this.hitCount + this.missCount;
+
+		return (lookupCount == 0) ? 0 : (double)this.hitCount / lookupCount;
+
+	}
+
+
+	/**
+	 * @return The number of blocks evicted from the cache
+	 */
+	public synchronized long getEvictionCount() {
+
+		return this.evictionCount;
+
+	}
+
+
+	/**
+	 * @param capacity The maximum total size in bytes of the cached blocks
+	 */
+	public BZip2EncodedBlockCache (final long capacity) {
+
+		if (capacity < 0) {
+			throw new IllegalArgumentException ("Invalid capacity " + capacity);
+		}
+
+		this.capacity = capacity;
+
+	}
+
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+
+/**
+ * <p>Base class for the BZip2 {@link Flow.Processor}s. Every signal received, from the upstream
+ * publisher or the downstream subscriber, is handed to a serial stage on an executor and handled
+ * there, so the processor's state is only ever touched by one thread at a time and no signalling
+ * thread is blocked by compression or decompression work</p>
+ *
+ * <p>The processor requests one buffer at a time from upstream, and only when the downstream
+ * subscriber has outstanding demand that cannot be met from output already produced. Output
+ * buffers are handed to the downstream subscriber only against its demand.</p>
+ */
+abstract class BZip2FlowProcessor implements Flow.Processor<ByteBuffer, ByteBuffer> {
+
+	/**
+	 * The serial stage on which all signals are handled
+	 */
+	private final Executor stage;
+
+	/**
+	 * {@code true} once a downstream subscriber has subscribed. Guarded by {@code this}
+	 */
+	private boolean subscribed = false;
+
+	/**
+	 * The upstream subscription, once received
+	 */
+	private Flow.Subscription upstream = null;
+
+	/**
+	 * The downstream subscriber, once subscribed
+	 */
+	private Flow.Subscriber<? super ByteBuffer> downstream = null;
+
+	/**
+	 * Output buffers produced but not yet delivered downstream
+	 */
+	private final Queue<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * The downstream subscriber's outstanding demand
+	 */
+	private long demand = 0;
+
+	/**
+	 * {@code true} if a buffer has been requested from upstream and not yet received
+	 */
+	private boolean upstreamRequested = false;
+
+	/**
+	 * {@code true} once the upstream publisher has completed
+	 */
+	private boolean upstreamComplete = false;
+
+	/**
+	 * The failure to be signalled downstream, if any
+	 */
+	private Throwable failure = null;
+
+	/**
+	 * {@code true} once a terminal signal has been sent downstream, or the downstream subscriber
+	 * has cancelled
+	 */
+	private boolean terminated = false;
+
+
+	/**
+	 * The subscription handed to the downstream subscriber
+	 */
+	private final Flow.Subscription subscription = new Flow.Subscription() {
+
+		public void request (final long count) {
+			BZip2FlowProcessor.this.stage.execute (new Runnable() {
+				public void run() {
+					handleRequest (count);
+				}
+			});
+		}
+
+		public void cancel() {
+			BZip2FlowProcessor.this.stage.execute (new Runnable() {
+				public void run() {
+					handleCancel();
+				}
+			});
+		}
+
+	};
+
+
+	/**
+	 * Consumes a buffer of input received from upstream
+	 * @param buffer The buffer
+	 * @throws IOException on any error processing the input
+	 */
+	abstract void input (ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Signals that no further input will be received
+	 * @throws IOException on any error processing the remaining input
+	 */
+	abstract void inputComplete() throws IOException;
+
+	/**
+	 * Attempts to produce further output from the input already consumed
+	 * @return {@code true} if progress was made, or {@code false} if more input is required
+	 * @throws IOException on any error processing the input
+	 */
+	abstract boolean produce() throws IOException;
+
+	/**
+	 * @return {@code true} if no further output will be produced
+	 */
+	abstract boolean isFinished();
+
+
+	/**
+	 * Queues a buffer of output for delivery downstream
+	 * @param buffer The buffer
+	 */
+	void emit (final ByteBuffer buffer) {
+
+		this.pending.add (buffer);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.Flow.Subscriber)
+	 */
+	public void subscribe (final Flow.Subscriber<? super ByteBuffer> subscriber) {
+
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+
+		final boolean accepted;
+		synchronized (this) {
+			accepted = !this.subscribed;
+			this.subscribed = true;
+		}
+
+		this.stage.execute (new Runnable() {
+			public void run() {
+				if (accepted) {
+					BZip2FlowProcessor.this.downstream = subscriber;
+					subscriber.onSubscribe (BZip2FlowProcessor.this.subscription);
+					drain();
+				} else {
+					subscriber.onSubscribe (new Flow.Subscription() {
+						public void request (final long count) { }
+						public void cancel() { }
+					});
+					subscriber.onError (new IllegalStateException ("Processor already has a subscriber"));
+				}
+			}
+		});
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Flow.Subscriber#onSubscribe(java.util.concurrent.Flow.Subscription)
+	 */
+	public void onSubscribe (final Flow.Subscription subscription) {
+
+		if (subscription == null) {
+			throw new NullPointerException();
+		}
+
+		this.stage.execute (new Runnable() {
+			public void run() {
+				if ((BZip2FlowProcessor.this.upstream != null) || BZip2FlowProcessor.this.terminated) {
+					subscription.cancel();
+					return;
+				}
+				BZip2FlowProcessor.this.upstream = subscription;
+				drain();
+			}
+		});
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Flow.Subscriber#onNext(java.lang.Object)
+	 */
+	public void onNext (final ByteBuffer item) {
+
+		if (item == null) {
+			throw new NullPointerException();
+		}
+
+		this.stage.execute (new Runnable() {
+			public void run() {
+				BZip2FlowProcessor.this.upstreamRequested = false;
+				if (BZip2FlowProcessor.this.terminated || (BZip2FlowProcessor.this.failure != null)) {
+					return;
+				}
+				try {
+					input (item);
+				} catch (Throwable t) {
+					fail (t);
+				}
+				drain();
+			}
+		});
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Flow.Subscriber#onError(java.lang.Throwable)
+	 */
+	public void onError (final Throwable throwable) {
+
+		if (throwable == null) {
+			throw new NullPointerException();
+		}
+
+		this.stage.execute (new Runnable() {
+			public void run() {
+				BZip2FlowProcessor.this.upstreamComplete = true;
+				fail (throwable);
+				drain();
+			}
+		});
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Flow.Subscriber#onComplete()
+	 */
+	public void onComplete() {
+
+		this.stage.execute (new Runnable() {
+			public void run() {
+				BZip2FlowProcessor.this.upstreamComplete = true;
+				if (BZip2FlowProcessor.this.terminated || (BZip2FlowProcessor.this.failure != null)) {
+					return;
+				}
+				try {
+					inputComplete();
+				} catch (Throwable t) {
+					fail (t);
+				}
+				drain();
+			}
+		});
+
+	}
+
+
+	/**
+	 * Handles a request from the downstream subscriber
+	 * @param count The number of buffers requested
+	 */
+	private void handleRequest (final long count) {
+
+		if (this.terminated) {
+			return;
+		}
+
+		if (count <= 0) {
+			fail (new IllegalArgumentException ("Non-positive request " + count));
+		} else {
+			this.demand = (this.demand + count < 0) ? Long.MAX_VALUE : this.demand + count;
+		}
+		drain();
+
+	}
+
+
+	/**
+	 * Handles cancellation by the downstream subscriber
+	 */
+	private void handleCancel() {
+
+		if (!this.terminated) {
+			this.terminated = true;
+			this.pending.clear();
+			cancelUpstream();
+		}
+
+	}
+
+
+	/**
+	 * Records a failure, to be signalled downstream in place of any remaining output
+	 * @param throwable The failure
+	 */
+	private void fail (final Throwable throwable) {
+
+		if (this.failure == null) {
+			this.failure = throwable;
+			this.pending.clear();
+			cancelUpstream();
+		}
+
+	}
+
+
+	/**
+	 * Cancels the upstream subscription if it may still deliver signals
+	 */
+	private void cancelUpstream() {
+
+		if ((this.upstream != null) && !this.upstreamComplete) {
+			this.upstreamComplete = true;
+			this.upstream.cancel();
+		}
+
+	}
+
+
+	/**
+	 * Delivers output against the downstream subscriber's demand, producing more output or
+	 * requesting more input as required, and signals completion or failure once due
+	 */
+	private void drain() {
+
+		final Flow.Subscriber<? super ByteBuffer> downstream = this.downstream;
+
+		if (this.terminated || (downstream == null)) {
+			return;
+		}
+
+		try {
+			while (this.failure == null) {
+				while ((this.demand > 0) && !this.pending.isEmpty()) {
+					this.demand--;
+					downstream.onNext (this.pending.poll());
+				}
+				if (!this.pending.isEmpty()) {
+					return;
+				}
+				if (isFinished()) {
+					this.terminated = true;
+					cancelUpstream();
+					downstream.onComplete();
+					return;
+				}
+				if ((this.demand == 0) || !produce()) {
+					break;
+				}
+			}
+		} catch (Throwable t) {
+			fail (t);
+		}
+
+		if (this.failure != null) {
+			this.terminated = true;
+			downstream.onError (this.failure);
+			return;
+		}
+
+		if ((this.demand > 0) && (this.upstream != null) && !this.upstreamComplete && !this.upstreamRequested) {
+			this.upstreamRequested = true;
+			this.upstream.request (1);
+		}
+
+	}
+
+
+	/**
+	 * @param executor The executor on which the processor's work is performed
+	 * @param weight The weight of the processor's lane if the executor is a
+	 *               {@link BZip2CodecScheduler}
+	 */
+	BZip2FlowProcessor (final Executor executor, final int weight) {
+
+		if (executor == null) {
+			throw new IllegalArgumentException ("Null executor");
+		}
+
+		this.stage = BZip2CodecScheduler.createStage (executor, weight);
+
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+
+/**
+ * <p>A policy under which a {@link BZip2OutputStream} ends its current stream early (see
+ * {@link BZip2OutputStream#flushBlock()}), so that the data written so far can be decoded by a
+ * consumer without waiting for a block to fill</p>
+ *
+ * <p>Each early flush costs the end of one stream and the header of the next (about 15 bytes),
+ * plus the poorer compression of a smaller block, so triggers should not be set lower than the
+ * required latency demands</p>
+ *
+ * <p>The time trigger is best-effort. As a BZip2OutputStream is not threadsafe, it is not flushed
+ * from a timer; instead, the time since the first unflushed byte was written is checked when an
+ * array is written, every {@link BZip2OutputStream#FLUSH_DELAY_CHECK_INTERVAL} bytes written
+ * singly, and when {@link BZip2OutputStream#flush()} is called. A stream that is not written to
+ * is therefore not flushed by the passage of time alone; a producer that may fall idle should
+ * call {@code flush()} periodically, on the thread that writes the stream</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public class BZip2FlushPolicy {
+
+	/**
+	 * If {@code true}, {@link BZip2OutputStream#flush()} ends the current stream
+	 */
+	private final boolean flushOnFlush;
+
+	/**
+	 * The number of uncompressed bytes written after which the current stream is ended, or
+	 * {@code 0}
+	 */
+	private final long maximumBytes;
+
+	/**
+	 * The time in milliseconds since the first unflushed byte was written after which the current
+	 * stream is ended, or {@code 0}
+	 */
+	private final long maximumDelayMillis;
+
+
+	/**
+	 * @return {@code true} if {@link BZip2OutputStream#flush()} ends the current stream
+	 */
+	public boolean isFlushOnFlush() {
+
+		return this.flushOnFlush;
+
+	}
+
+
+	/**
+	 * @return The number of uncompressed bytes written after which the current stream is ended, or
+	 *         {@code 0} if there is no size trigger
+	 */
+	public long getMaximumBytes() {
+
+		return this.maximumBytes;
+
+	}
+
+
+	/**
+	 * @return The time in milliseconds since the first unflushed byte was written after which the
+	 *         current stream is ended, or {@code 0} if there is no time trigger
+	 */
+	public long getMaximumDelayMillis() {
+
+		return this.maximumDelayMillis;
+
+	}
+
+
+	/**
+	 * @param flushOnFlush If {@code true}, {@link BZip2OutputStream#flush()} ends the current
+	 *                     stream. If {@code false}, it only evaluates the time trigger
+	 * @param maximumBytes The number of uncompressed bytes written after which the current stream
+	 *                     is ended, or {@code 0} for no size trigger
+	 * @param maximumDelayMillis The time in milliseconds since the first unflushed byte was written
+	 *                           after which the current stream is ended, or {@code 0} for no time
+	 *                           trigger
+	 */
+	public BZip2FlushPolicy (final boolean flushOnFlush, final long maximumBytes, final long maximumDelayMillis) {
+
+		if (maximumBytes < 0) {
+			throw new IllegalArgumentException ("Invalid maximum bytes " + maximumBytes);
+		}
+
+		if (maximumDelayMillis < 0) {
+			throw new IllegalArgumentException ("Invalid maximum delay " + maximumDelayMillis);
+		}
+
+		this.flushOnFlush = flushOnFlush;
+		this.maximumBytes = maximumBytes;
+		this.maximumDelayMillis = maximumDelayMillis;
+
+	}
+
+
+	/**
+	 * Constructs a flush policy with no time trigger
+	 * @param flushOnFlush If {@code true}, {@link BZip2OutputStream#flush()} ends the current
+	 *                     stream. If {@code false}, it does nothing
+	 * @param maximumBytes The number of uncompressed bytes written after which the current stream
+	 *                     is ended, or {@code 0} for no size trigger
+	 */
+	public BZip2FlushPolicy (final boolean flushOnFlush, final long maximumBytes) {
+
+		this (flushOnFlush, maximumBytes, 0);
+
+	}
+
+}
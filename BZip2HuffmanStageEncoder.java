@@ -36,6 +36,18 @@ class BZip2HuffmanStageEncoder {
 	 */
 	private static final int HUFFMAN_HIGH_SYMBOL_COST = 15;
 
+	/**
+	 * The width in bits of each table's field within a packed cost. A group of 50 symbols encoded
+	 * at the maximum code length of 20 bits costs at most 1000 bits, which fits in 10 bits, allowing
+	 * the costs for all 6 tables to be accumulated within a single {@code long}
+	 */
+	private static final int HUFFMAN_PACKED_COST_BITS = 10;
+
+	/**
+	 * A mask for a single table's field within a packed cost
+	 */
+	private static final int HUFFMAN_PACKED_COST_MASK = (1 << HUFFMAN_PACKED_COST_BITS) - 1;
+
 	/**
 	 * The BZip2BitOutputStream to which the Huffman tables and data is written
 	 */
@@ -44,7 +56,7 @@ class BZip2HuffmanStageEncoder {
 	/**
 	 * The output of the Move To Front Transform and Run Length Encoding[2] stages
 	 */
-	private final char[] mtfBlock;
+	private final int[] mtfBlock;
 
 	/**
 	 * The actual number of values contained in the {@link mtfBlock} array
@@ -76,13 +88,24 @@ class BZip2HuffmanStageEncoder {
 	 */
 	private final byte[] selectors;
 
+	/**
+	 * The Huffman tables of the stream's previous block, or {@code null} if tables are not seeded
+	 * from the previous block
+	 */
+	private final BZip2HuffmanWarmStart.State warmStartState;
+
+	/**
+	 * {@code true} if the tables are seeded from the previous block's tables
+	 */
+	private final boolean warmStart;
+
 
 	/**
 	 * Selects an appropriate table count for a given MTF length
 	 * @param mtfLength The length to select a table count for
 	 * @return The selected table count
 	 */
-	private static int selectTableCount (final int mtfLength) {
+	static int selectTableCount (final int mtfLength) {
 
 		if (mtfLength >= 2400) return 6;
 		if (mtfLength >= 1200) return 5;
@@ -98,11 +121,12 @@ class BZip2HuffmanStageEncoder {
 	 * @param alphabetSize The total number of symbols
 	 * @param symbolFrequencies The frequencies of the symbols
 	 * @param codeLengths The array to which the generated code lengths should be written
+	 * @param scratch The current thread's scratch buffers, or {@code null}
 	 */
-	private static void generateHuffmanCodeLengths (final int alphabetSize, final int[] symbolFrequencies, final int[] codeLengths) {
+	private static void generateHuffmanCodeLengths (final int alphabetSize, final int[] symbolFrequencies, final int[] codeLengths, final BZip2CodecScheduler.Scratch scratch) {
 
-		final int[] mergedFrequenciesAndIndices = new int[alphabetSize];
-		final int[] sortedFrequencies = new int[alphabetSize];
+		final int[] mergedFrequenciesAndIndices = (scratch == null) ? new int[alphabetSize] : scratch.mergedFrequenciesAndIndices;
+		final int[] sortedFrequencies = (scratch == null) ? new int[alphabetSize] : scratch.getSortedFrequencies (alphabetSize);
 
 		// The Huffman allocator needs its input symbol frequencies to be sorted, but we need to return code lengths in the same order as the
 		// corresponding frequencies are passed in
@@ -114,7 +138,7 @@ class BZip2HuffmanStageEncoder {
 		for (int i = 0; i < alphabetSize; i++) {
 			mergedFrequenciesAndIndices[i] = (symbolFrequencies[i] << 9) | i;
 		}
-		Arrays.sort (mergedFrequenciesAndIndices);
+		Arrays.sort (mergedFrequenciesAndIndices, 0, alphabetSize);
 		for (int i = 0; i < alphabetSize; i++) {
 			sortedFrequencies[i] = mergedFrequenciesAndIndices[i] >>> 9;
 		}
@@ -175,6 +199,30 @@ class BZip2HuffmanStageEncoder {
 	}
 
 
+	/**
+	 * Generate initial Huffman code length tables from the final tables of the previous block.
+	 * Symbols beyond the previous block's alphabet are given a high cost, and the end of block
+	 * symbol takes the cost of the previous block's end of block symbol
+	 */
+	private void generateWarmStartSeeds() {
+
+		final int[][] huffmanCodeLengths = this.huffmanCodeLengths;
+		final int[][] previousCodeLengths = this.warmStartState.codeLengths;
+		final int mtfAlphabetSize = this.mtfAlphabetSize;
+
+		for (int i = 0; i < huffmanCodeLengths.length; i++) {
+			final int[] tableCodeLengths = huffmanCodeLengths[i];
+			final int[] previousTableCodeLengths = previousCodeLengths[i];
+			final int previousEndOfBlock = previousTableCodeLengths.length - 1;
+			for (int j = 0; j < mtfAlphabetSize - 1; j++) {
+				tableCodeLengths[j] = (j < previousEndOfBlock) ? previousTableCodeLengths[j] : HUFFMAN_HIGH_SYMBOL_COST;
+			}
+			tableCodeLengths[mtfAlphabetSize - 1] = previousTableCodeLengths[previousEndOfBlock];
+		}
+
+	}
+
+
 	/**
 	 * Co-optimise the selector list and the alternative Huffman table code lengths. This method is
 	 * called repeatedly in the hope that the total encoded size of the selectors, the Huffman code
@@ -185,14 +233,34 @@ class BZip2HuffmanStageEncoder {
 	 */
 	private void optimiseSelectorsAndHuffmanTables (final boolean storeSelectors) {
 
-		final char[] mtfBlock = this.mtfBlock;
+		final int[] mtfBlock = this.mtfBlock;
 		final byte[] selectors = this.selectors;
 		final int[][] huffmanCodeLengths = this.huffmanCodeLengths;
 		final int mtfLength = this.mtfLength;
 		final int mtfAlphabetSize = this.mtfAlphabetSize;
 
 		final int totalTables = huffmanCodeLengths.length;
-		final int[][] tableFrequencies = new int[totalTables][mtfAlphabetSize];
+		final BZip2CodecScheduler.Scratch scratch = BZip2CodecScheduler.currentScratch();
+		final int[][] tableFrequencies;
+		if (scratch == null) {
+			tableFrequencies = new int[totalTables][mtfAlphabetSize];
+		} else {
+			tableFrequencies = scratch.tableFrequencies;
+			for (int i = 0; i < totalTables; i++) {
+				Arrays.fill (tableFrequencies[i], 0, mtfAlphabetSize, 0);
+			}
+		}
+		final long[] packedCodeLengths = new long[mtfAlphabetSize];
+
+		// Pack the code lengths of each symbol for all tables into a single value, so that the costs
+		// for every table can be accumulated with a single addition per symbol
+		for (int i = 0; i < totalTables; i++) {
+			final int[] tableCodeLengths = huffmanCodeLengths[i];
+			final int shift = i * HUFFMAN_PACKED_COST_BITS;
+			for (int j = 0; j < mtfAlphabetSize; j++) {
+				packedCodeLengths[j] |= (long)tableCodeLengths[j] << shift;
+			}
+		}
 
 		int selectorIndex = 0;
 
@@ -202,19 +270,16 @@ class BZip2HuffmanStageEncoder {
 			final int groupEnd = Math.min (groupStart + BZip2Constants.HUFFMAN_GROUP_RUN_LENGTH, mtfLength) - 1;
 
 			// Calculate the cost of this group when encoded by each table
-			short[] cost = new short[totalTables];
+			long packedCost = 0;
 			for (int i = groupStart; i <= groupEnd; i++) {
-				final int value = mtfBlock[i];
-				for (int j = 0; j < totalTables; j++) {
-					cost[j] += huffmanCodeLengths[j][value];
-				}
+				packedCost += packedCodeLengths[mtfBlock[i]];
 			}
 
 			// Find the table with the least cost for this group
 			byte bestTable = 0;
-			int bestCost = cost[0];
+			int bestCost = (int)packedCost & HUFFMAN_PACKED_COST_MASK;
 			for (byte i = 1 ; i < totalTables; i++) {
-				final int tableCost = cost[i];
+				final int tableCost = (int)(packedCost >>> (i * HUFFMAN_PACKED_COST_BITS)) & HUFFMAN_PACKED_COST_MASK;
 				if (tableCost < bestCost) {
 					bestCost = tableCost;
 					bestTable = i;
@@ -238,7 +303,7 @@ class BZip2HuffmanStageEncoder {
 
 		// Generate new Huffman code lengths based on the frequencies for each table accumulated in this iteration
 		for (int i = 0; i < totalTables; i++) {
-			generateHuffmanCodeLengths (mtfAlphabetSize, tableFrequencies[i], huffmanCodeLengths[i]);
+			generateHuffmanCodeLengths (mtfAlphabetSize, tableFrequencies[i], huffmanCodeLengths[i], scratch);
 		}
 
 	}
@@ -341,7 +406,7 @@ class BZip2HuffmanStageEncoder {
 		final BZip2BitOutputStream bitOutputStream = this.bitOutputStream;
 		final int[][] huffmanMergedCodeSymbols = this.huffmanMergedCodeSymbols;
 		final byte[] selectors = this.selectors;
-		final char[] mtf = this.mtfBlock;
+		final int[] mtf = this.mtfBlock;
 		final int mtfLength = this.mtfLength;
 
 		int selectorIndex = 0;
@@ -366,12 +431,25 @@ class BZip2HuffmanStageEncoder {
 	public void encode() throws IOException {
 
 		// Create optimised selector list and Huffman tables
-		generateHuffmanOptimisationSeeds();
-		for (int i = 3; i >= 0; i--) {
+		final int iterations;
+		if (this.warmStart) {
+			generateWarmStartSeeds();
+			iterations = this.warmStartState.policy.getWarmIterations();
+		} else {
+			generateHuffmanOptimisationSeeds();
+			iterations = BZip2HuffmanWarmStart.COLD_ITERATIONS;
+		}
+		for (int i = iterations - 1; i >= 0; i--) {
 			optimiseSelectorsAndHuffmanTables (i == 0);
 		}
 		assignHuffmanCodeSymbols();
 
+		// Keep the final tables to seed the stream's next block
+		if (this.warmStartState != null) {
+			this.warmStartState.codeLengths = this.huffmanCodeLengths;
+			this.warmStartState.policy.recordBlock (this.warmStart, iterations);
+		}
+
 		// Write out the tables and the block data encoded with them
 		writeSelectorsAndHuffmanTables();
 		writeBlockData();
@@ -379,22 +457,56 @@ class BZip2HuffmanStageEncoder {
 	}
 
 
+	/**
+	 * @return The final Canonical Huffman code lengths of each table. Valid only after
+	 *         {@link #encode()} has been called
+	 */
+	int[][] getHuffmanCodeLengths() {
+
+		return this.huffmanCodeLengths;
+
+	}
+
+
+	/**
+	 * @param bitOutputStream The BZip2BitOutputStream to write to
+	 * @param mtfBlock The MTF block data
+	 * @param mtfLength The actual length of the MTF block
+	 * @param mtfAlphabetSize The size of the MTF block's alphabet
+	 * @param mtfSymbolFrequencies The frequencies the MTF block's symbols
+	 */
+	public BZip2HuffmanStageEncoder (final BZip2BitOutputStream bitOutputStream, final int[] mtfBlock, final int mtfLength, final int mtfAlphabetSize, final int[] mtfSymbolFrequencies) {
+
+		this (bitOutputStream, mtfBlock, mtfLength, mtfAlphabetSize, mtfSymbolFrequencies, null);
+
+	}
+
+
 	/**
 	 * @param bitOutputStream The BZip2BitOutputStream to write to
 	 * @param mtfBlock The MTF block data
 	 * @param mtfLength The actual length of the MTF block
 	 * @param mtfAlphabetSize The size of the MTF block's alphabet
 	 * @param mtfSymbolFrequencies The frequencies the MTF block's symbols
+	 * @param warmStartState The Huffman tables of the stream's previous block, to seed the block's
+	 *                       tables from and to be updated with them, or {@code null}
 	 */
-	public BZip2HuffmanStageEncoder (final BZip2BitOutputStream bitOutputStream, final char[] mtfBlock, final int mtfLength, final int mtfAlphabetSize, final int[] mtfSymbolFrequencies) {
+	public BZip2HuffmanStageEncoder (final BZip2BitOutputStream bitOutputStream, final int[] mtfBlock, final int mtfLength, final int mtfAlphabetSize, final int[] mtfSymbolFrequencies,
+			final BZip2HuffmanWarmStart.State warmStartState)
+	{
 
 		this.bitOutputStream = bitOutputStream;
 		this.mtfBlock = mtfBlock;
 		this.mtfLength = mtfLength;
 		this.mtfAlphabetSize = mtfAlphabetSize;
 		this.mtfSymbolFrequencies = mtfSymbolFrequencies;
+		this.warmStartState = warmStartState;
 
-		final int totalTables = selectTableCount (mtfLength);
+		// A block is seeded from the previous block's tables, including their count, unless it is
+		// too short to make use of that many tables
+		final int[][] previousCodeLengths = (warmStartState == null) ? null : warmStartState.codeLengths;
+		this.warmStart = (previousCodeLengths != null) && (previousCodeLengths.length <= selectTableCount (mtfLength));
+		final int totalTables = this.warmStart ? previousCodeLengths.length : selectTableCount (mtfLength);
 
 		this.huffmanCodeLengths = new int[totalTables][mtfAlphabetSize];
 		this.huffmanMergedCodeSymbols = new int[totalTables][mtfAlphabetSize];
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+
+/**
+ * <p>A policy under which each block's Huffman tables are seeded from the final tables of the
+ * previous block of the same stream, rather than from a partition of the block's own symbol
+ * frequencies. Consecutive blocks of homogeneous data (logs, tables) tend to have similar symbol
+ * statistics, so seeded tables converge in fewer optimisation iterations. A block is encoded from
+ * its own frequencies if it is the first in its stream, or if it would use fewer tables than the
+ * previous block</p>
+ *
+ * <p>A block that is not seeded is optimised through {@link #COLD_ITERATIONS} iterations. The
+ * number of iterations applied to a seeded block is configurable; {@link #FAST_ITERATIONS}
+ * (a single pass) retains most of the compression ratio for homogeneous data at a fraction of the
+ * cost of the Huffman stage</p>
+ *
+ * <p>When a block is copied out of a {@link BZip2EncodedBlockCache} rather than encoded, the
+ * following block is seeded from the cached block's tables, which are those actually written.
+ * The cached block itself was encoded under the seeding of whichever stream first encoded it, so
+ * a stream that shares blocks with other input may differ from one compressed without the cache;
+ * a stream whose blocks were all cached by compressing the same input is unaffected</p>
+ *
+ * <p>Instances of this class are threadsafe, and may be shared between any number of
+ * {@link BZip2OutputStream}s in order to gather their statistics together.</p>
+ */
+public class BZip2HuffmanWarmStart {
+
+	/**
+	 * The number of optimisation iterations applied to a block whose tables are not seeded
+	 */
+	public static final int COLD_ITERATIONS = 4;
+
+	/**
+	 * The number of optimisation iterations applied to a seeded block at the fast level
+	 */
+	public static final int FAST_ITERATIONS = 1;
+
+
+	/**
+	 * The Huffman tables of the most recently encoded block of a single stream. Instances of this
+	 * class are not threadsafe; each is used by the encoding stage of one stream, which encodes its
+	 * blocks one at a time and in order
+	 */
+	static final class State {
+
+		/**
+		 * The policy under which the state is used
+		 */
+		final BZip2HuffmanWarmStart policy;
+
+		/**
+		 * The final code lengths of each table of the previous block, or {@code null} if no
+		 * block has been encoded
+		 */
+		int[][] codeLengths = null;
+
+
+		/**
+		 * @param policy The policy under which the state is used
+		 */
+		State (final BZip2HuffmanWarmStart policy) {
+
+			this.policy = policy;
+
+		}
+
+	}
+
+
+	/**
+	 * The number of optimisation iterations applied to a seeded block
+	 */
+	private final int warmIterations;
+
+	/**
+	 * The number of blocks encoded
+	 */
+	private long blockCount = 0;
+
+	/**
+	 * The number of blocks whose tables were seeded from the previous block
+	 */
+	private long warmStartedBlockCount = 0;
+
+	/**
+	 * The total number of optimisation iterations performed
+	 */
+	private long iterationCount = 0;
+
+
+	/**
+	 * Records the encoding of a block
+	 * @param warmStarted {@code true} if the block's tables were seeded from the previous block
+	 * @param iterations The number of optimisation iterations performed
+	 */
+	synchronized void recordBlock (final boolean warmStarted, final int iterations) {
+
+		this.blockCount++;
+		if (warmStarted) {
+			this.warmStartedBlockCount++;
+		}
+		this.iterationCount += iterations;
+
+	}
+
+
+	/**
+	 * @return The number of optimisation iterations applied to a seeded block
+	 */
+	public int getWarmIterations() {
+
+		return this.warmIterations;
+
+	}
+
+
+	/**
+	 * @return The number of blocks encoded
+	 */
+	public synchronized long getBlockCount() {
+
+		return this.blockCount;
+
+	}
+
+
+	/**
+	 * @return The number of blocks whose tables were seeded from the previous block
+	 */
+	public synchronized long getWarmStartedBlockCount() {
+
+		return this.warmStartedBlockCount;
+
+	}
+
+
+	/**
+	 * @return The total number of optimisation iterations performed
+	 */
+	public synchronized long getIterationCount() {
+
+		return this.iterationCount;
+
+	}
+
+
+	/**
+	 * @return The number of optimisation iterations saved, compared to optimising every block
+	 *         through {@link #COLD_ITERATIONS} iterations
+	 */
+	public synchronized long getIterationsSaved() {
+
+		return (this.blockCount * COLD_ITERATIONS) - this.iterationCount;
+
+	}
+
+
+	/**
+	 * @param warmIterations The number of optimisation iterations to apply to a seeded block
+	 *                       (minimum 1, maximum {@link #COLD_ITERATIONS})
+	 */
+	public BZip2HuffmanWarmStart (final int warmIterations) {
+
+		if ((warmIterations < 1) || (warmIterations > COLD_ITERATIONS)) {
+			throw new IllegalArgumentException ("Invalid iteration count " + warmIterations);
+		}
+
+		this.warmIterations = warmIterations;
+
+	}
+
+}
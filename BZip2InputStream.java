@@ -22,8 +22,14 @@
 
 package org.itadaki.bzip2;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 
 /**
@@ -43,10 +49,225 @@ import java.io.InputStream;
  * If this possibility is of concern, you should read and store the entire decompressed stream
  * before further processing.</p>
  *
+ * <p>In recovery mode (see {@link Options#setRecoveryListener(BZip2RecoveryListener)}), each
+ * block is instead verified before any of its data is returned. A block that cannot be decoded or
+ * fails verification is skipped: the decompressor scans forward for the next block-header or
+ * end-of-stream marker, reports the skipped region to a listener, and continues decoding from
+ * there</p>
+ *
+ * <p>Concatenated stream decoding, interleaved and pipelined decoding and recovery mode are
+ * selected through {@link Options}, and may be combined</p>
+ *
  * <p>Instances of this class are not threadsafe.</p>
  */
 public class BZip2InputStream extends InputStream {
 
+	/**
+	 * <p>Optional decoding modes for a {@link BZip2InputStream}. Each setter returns the options
+	 * object, so that calls may be chained. The modes may be freely combined</p>
+	 *
+	 * <p>Instances of this class are not threadsafe. An options object may be reused to construct
+	 * any number of streams; later changes do not affect streams already constructed</p>
+	 */
+	public static final class Options {
+
+		/**
+		 * If {@code true}, streams concatenated after the first are decoded
+		 */
+		private boolean decodeConcatenated = true;
+
+		/**
+		 * The maximum number of blocks decoded together
+		 */
+		private int interleavedBlocks = 1;
+
+		/**
+		 * The executor on which following blocks are read and decoded, or {@code null}
+		 */
+		private Executor executor = null;
+
+		/**
+		 * The listener to which skipped regions are reported, or {@code null}
+		 */
+		private BZip2RecoveryListener recoveryListener = null;
+
+
+		/**
+		 * @return {@code true} if streams concatenated after the first are decoded
+		 */
+		public boolean isDecodeConcatenated() {
+
+			return this.decodeConcatenated;
+
+		}
+
+
+		/**
+		 * Sets whether streams concatenated after the first, such as those written by
+		 * {@link BZip2OutputStream#flushBlock()} or produced by concatenating BZip2 files, are
+		 * decoded as a continuation of the first, as the bzip2 tool decodes them. Each stream's
+		 * CRC is verified in turn. Trailing data that does not begin with a stream header is
+		 * ignored. If {@code false}, any data following the first stream is ignored
+		 * @param decodeConcatenated {@code true} (the default) to decode concatenated streams
+		 * @return This options object
+		 */
+		public Options setDecodeConcatenated (final boolean decodeConcatenated) {
+
+			this.decodeConcatenated = decodeConcatenated;
+			return this;
+
+		}
+
+
+		/**
+		 * @return The maximum number of blocks decoded together
+		 */
+		public int getInterleavedBlocks() {
+
+			return this.interleavedBlocks;
+
+		}
+
+
+		/**
+		 * Sets the number of blocks read and decoded at a time, whose Inverse Burrows-Wheeler
+		 * Transform walks are then performed together (see
+		 * {@link BZip2BlockDecompressor#decodeInterleaved(BZip2BlockDecompressor[], int)}). Output
+		 * is returned in order as usual. This trades additional memory - each block held requires
+		 * up to 5 times the stream's declared block size - for improved single-threaded throughput.
+		 * A set of blocks never spans the end of a stream. The default is {@code 1}, which disables
+		 * interleaving
+		 * @param interleavedBlocks The maximum number of blocks to decode together (minimum 1)
+		 * @return This options object
+		 */
+		public Options setInterleavedBlocks (final int interleavedBlocks) {
+
+			if (interleavedBlocks < 1) {
+				throw new IllegalArgumentException ("Invalid interleaved block count " + interleavedBlocks);
+			}
+
+			this.interleavedBlocks = interleavedBlocks;
+			return this;
+
+		}
+
+
+		/**
+		 * @return The executor on which following blocks are read and decoded, or {@code null}
+		 */
+		public Executor getExecutor() {
+
+			return this.executor;
+
+		}
+
+
+		/**
+		 * Sets an executor for pipelined decoding. While the caller reads the decompressed output
+		 * of one block (the final Run-Length Decoding stage), the following block (or set of
+		 * interleaved blocks) is read and decoded through the Inverse Burrows-Wheeler Transform
+		 * stage on the executor. Blocks are returned and their CRCs verified in order. The
+		 * wrapped InputStream is read only from the executor's threads once the stream header has
+		 * been read, except for the headers of concatenated streams.<br>
+		 * As the calling thread performs no block decoding and waits for the executor without
+		 * holding any monitor, this mode may also be used to keep CPU-bound decoding off virtual
+		 * threads, by supplying an executor of platform threads such as
+		 * {@link BZip2CodecScheduler#getShared()}. If the executor is a {@link BZip2CodecScheduler},
+		 * the stream's work is scheduled fairly against that of other streams sharing it
+		 * @param executor The executor on which following blocks are read and decoded, or
+		 *                 {@code null} (the default) to decode each block on the reading thread
+		 * @return This options object
+		 */
+		public Options setExecutor (final Executor executor) {
+
+			this.executor = executor;
+			return this;
+
+		}
+
+
+		/**
+		 * @return The listener to which skipped regions are reported, or {@code null}
+		 */
+		public BZip2RecoveryListener getRecoveryListener() {
+
+			return this.recoveryListener;
+
+		}
+
+
+		/**
+		 * Sets a listener for recovery mode. Each block is decoded and its CRC verified before any
+		 * of its data is returned. A block that fails is skipped by scanning forward for the next
+		 * marker, and the skipped region is reported to the listener; decoding then continues. As
+		 * the stream CRC cannot be verified once a region of a stream has been skipped, it is
+		 * verified only for undamaged streams. A damaged stream header is not recoverable.<br>
+		 * Verification decodes each block's final Run-Length Decoding stage twice, and compressed
+		 * data is buffered from the start of each block so that the block can be rescanned. In
+		 * pipelined mode, the listener is called from the executor's threads
+		 * @param recoveryListener The listener to which skipped regions are reported, or
+		 *                         {@code null} (the default) to disable recovery mode
+		 * @return This options object
+		 */
+		public Options setRecoveryListener (final BZip2RecoveryListener recoveryListener) {
+
+			this.recoveryListener = recoveryListener;
+			return this;
+
+		}
+
+	}
+
+
+	/**
+	 * A set of blocks that have been read and decoded together
+	 */
+	private static final class BlockBatch {
+
+		/**
+		 * The decoded blocks
+		 */
+		final BZip2BlockDecompressor[] blocks;
+
+		/**
+		 * The number of valid entries in {@link #blocks}
+		 */
+		int count = 0;
+
+		/**
+		 * The index of the next unconsumed entry in {@link #blocks}
+		 */
+		int index = 0;
+
+		/**
+		 * An exception encountered while reading the set, to be thrown once the blocks that
+		 * preceded it have been consumed
+		 */
+		IOException exception = null;
+
+
+		/**
+		 * @param size The maximum number of blocks in the set
+		 */
+		BlockBatch (final int size) {
+
+			this.blocks = new BZip2BlockDecompressor[size];
+
+		}
+
+	}
+
+
+	/**
+	 * The largest array that {@link #readAllBytes()} will allocate
+	 */
+	private static final int MAXIMUM_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	/**
+	 * In recovery mode, the size of the buffer through which compressed data is read
+	 */
+	private static final int RECOVERY_BUFFER_SIZE = 65536;
+
 	/**
 	 * The stream from which compressed BZip2 data is read and decoded
 	 */
@@ -63,6 +284,12 @@ public class BZip2InputStream extends InputStream {
 	 */
 	private final boolean headerless;
 
+	/**
+	 * If {@code true}, streams concatenated after the first are decoded in turn as a continuation
+	 * of the first
+	 */
+	private final boolean decodeConcatenated;
+
 	/**
 	 * (@code true} if the end of the compressed stream has been reached, otherwise {@code false}
 	 */
@@ -82,11 +309,60 @@ public class BZip2InputStream extends InputStream {
 	 */
 	private int streamCRC = 0;
 
+	/**
+	 * The combined CRC read from the end-of-stream marker, once it has been reached
+	 */
+	private int storedStreamCRC;
+
+	/**
+	 * {@code true} if the end-of-stream marker has been read from the compressed stream. When
+	 * blocks are decoded ahead of time, this may happen before the preceding blocks are consumed
+	 */
+	private boolean streamEndRead = false;
+
 	/**
 	 * The decompressor for the current block
 	 */
 	private BZip2BlockDecompressor blockDecompressor = null;
 
+	/**
+	 * The maximum number of blocks decoded together. Interleaving is disabled if {@code 1}
+	 */
+	private final int interleavedBlocks;
+
+	/**
+	 * In interleaved or pipelined mode, the blocks that have been decoded together, otherwise
+	 * {@code null}
+	 */
+	private BlockBatch blockBatch = null;
+
+	/**
+	 * In pipelined mode, the executor on which following blocks are read and decoded, otherwise
+	 * {@code null}
+	 */
+	private final Executor pipelineExecutor;
+
+	/**
+	 * In pipelined mode, the task reading and decoding the following blocks, if one is outstanding
+	 */
+	private FutureTask<BlockBatch> pipelineTask = null;
+
+	/**
+	 * In recovery mode, the listener to which skipped regions are reported, otherwise {@code null}
+	 */
+	private final BZip2RecoveryListener recoveryListener;
+
+	/**
+	 * In recovery mode, the total decoded length of the blocks returned so far
+	 */
+	private long recoveredLength = 0;
+
+	/**
+	 * In recovery mode, {@code true} if a region of the current stream has been skipped, so that
+	 * the stream CRC can no longer be verified
+	 */
+	private boolean streamDamaged = false;
+
 
 	/* (non-Javadoc)
 	 * @see java.io.InputStream#read()
@@ -136,6 +412,134 @@ public class BZip2InputStream extends InputStream {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#readNBytes(byte[], int, int)
+	 */
+	@Override
+	public int readNBytes (final byte[] destination, final int offset, final int length) throws IOException {
+
+		if ((offset < 0) || (length < 0) || (length > destination.length - offset)) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		int totalRead = 0;
+		while (totalRead < length) {
+			final int bytesRead = read (destination, offset + totalRead, length - totalRead);
+			if (bytesRead == -1) {
+				break;
+			}
+			totalRead += bytesRead;
+		}
+
+		return totalRead;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#readAllBytes()
+	 */
+	@Override
+	public byte[] readAllBytes() throws IOException {
+
+		if ((this.blockDecompressor == null) && !initialiseFirstBlock()) {
+			return new byte[0];
+		}
+
+		// Each block is decoded directly into the result, which grows as required
+		byte[] result = new byte[this.streamBlockSize];
+		int length = 0;
+		while (true) {
+			if (length == result.length) {
+				if (length == MAXIMUM_ARRAY_LENGTH) {
+					throw new OutOfMemoryError ("Required array size too large");
+				}
+				result = Arrays.copyOf (result, (int)Math.min ((long)length * 2, MAXIMUM_ARRAY_LENGTH));
+			}
+			final int bytesRead = this.blockDecompressor.read (result, length, result.length - length);
+			if (bytesRead == -1) {
+				if (!initialiseNextBlock()) {
+					break;
+				}
+			} else {
+				length += bytesRead;
+			}
+		}
+
+		return (length == result.length) ? result : Arrays.copyOf (result, length);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#transferTo(java.io.OutputStream)
+	 */
+	@Override
+	public long transferTo (final OutputStream outputStream) throws IOException {
+
+		if (outputStream == null) {
+			throw new NullPointerException();
+		}
+
+		if ((this.blockDecompressor == null) && !initialiseFirstBlock()) {
+			return 0;
+		}
+
+		/* Each block is decoded in one pass into a buffer of the block size and written with a
+		 * single call. Only a block that run-length decoding expands beyond its block size is
+		 * written in more than one call */
+		byte[] buffer = new byte[this.streamBlockSize];
+		long transferred = 0;
+		while (true) {
+			final int bytesRead = this.blockDecompressor.read (buffer, 0, buffer.length);
+			if (bytesRead == -1) {
+				if (!initialiseNextBlock()) {
+					break;
+				}
+				if (buffer.length < this.streamBlockSize) {
+					buffer = new byte[this.streamBlockSize];
+				}
+			} else {
+				outputStream.write (buffer, 0, bytesRead);
+				transferred += bytesRead;
+			}
+		}
+
+		return transferred;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#skip(long)
+	 */
+	@Override
+	public long skip (final long count) throws IOException {
+
+		long remaining = count;
+
+		while (remaining > 0) {
+			long bytesSkipped = -1;
+			if (this.blockDecompressor == null) {
+				initialiseStream();
+			} else {
+				bytesSkipped = this.blockDecompressor.skip (remaining);
+			}
+
+			if (bytesSkipped == -1) {
+				if (!initialiseNextBlock()) {
+					break;
+				}
+			} else {
+				remaining -= bytesSkipped;
+			}
+		}
+
+		return Math.max (0, count - remaining);
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see java.io.InputStream#close()
 	 */
@@ -143,9 +547,16 @@ public class BZip2InputStream extends InputStream {
 	public void close() throws IOException {
 
 		if (this.bitInputStream != null) {
+			// Wait for any outstanding background read before closing the wrapped stream
+			if (this.pipelineTask != null) {
+				BZip2Tasks.awaitQuietly (this.pipelineTask);
+				this.pipelineTask = null;
+			}
+
 			this.streamComplete = true;
 			this.blockDecompressor = null;
 			this.bitInputStream = null;
+			this.blockBatch = null;
 
 			try {
 				this.inputStream.close();
@@ -157,6 +568,20 @@ public class BZip2InputStream extends InputStream {
 	}
 
 
+	/**
+	 * Reads the stream header and the first block, for the bulk transfer methods
+	 * @return {@code true} if a block was read, or {@code false} if the stream is complete
+	 * @throws IOException if the stream header or first block is not valid
+	 */
+	private boolean initialiseFirstBlock() throws IOException {
+
+		initialiseStream();
+
+		return initialiseNextBlock();
+
+	}
+
+
 	/**
 	 * Reads the stream header and checks that the data appears to be a valid BZip2 stream
 	 * @throws IOException if the stream header is not valid
@@ -221,37 +646,299 @@ public class BZip2InputStream extends InputStream {
 			this.streamCRC = ((this.streamCRC << 1) | (this.streamCRC >>> 31)) ^ blockCRC;
 		}
 
-		/* Read block-header or end-of-stream marker */
-		final int marker1 = this.bitInputStream.readBits (24);
-		final int marker2 = this.bitInputStream.readBits (24);
+		while (true) {
 
-		if (marker1 == BZip2Constants.BLOCK_HEADER_MARKER_1 && marker2 == BZip2Constants.BLOCK_HEADER_MARKER_2) {
-			// Initialise a new block
+			/* Fetch the next block */
 			try {
-				this.blockDecompressor = new BZip2BlockDecompressor (this.bitInputStream, this.streamBlockSize);
+				if ((this.interleavedBlocks > 1) || (this.pipelineExecutor != null)) {
+					this.blockDecompressor = nextBatchedBlock();
+				} else {
+					this.blockDecompressor = readNextBlockInMode();
+				}
 			} catch (IOException e) {
-				// If the block could not be decoded, stop trying to read more data
+				// If the block could not be read, stop trying to read more data
 				this.streamComplete = true;
 				throw e;
 			}
-			return true;
-		} else if (marker1 == BZip2Constants.STREAM_END_MARKER_1 && marker2 == BZip2Constants.STREAM_END_MARKER_2) {
-			// Read and verify the end-of-stream CRC
-			this.streamComplete = true;
-			final int storedCombinedCRC = this.bitInputStream.readInteger();
-			if (storedCombinedCRC != this.streamCRC) {
+
+			if (this.blockDecompressor != null) {
+				return true;
+			}
+
+			/* The end-of-stream marker was reached. Verify the end-of-stream CRC */
+			if (!this.streamDamaged && (this.storedStreamCRC != this.streamCRC)) {
+				this.streamComplete = true;
 				throw new BZip2Exception ("BZip2 stream CRC error");
 			}
+
+			/* If a further stream follows and is to be decoded, continue with its first block */
+			try {
+				if (!this.decodeConcatenated || !readNextStreamHeader()) {
+					this.streamComplete = true;
+					return false;
+				}
+			} catch (IOException e) {
+				this.streamComplete = true;
+				throw e;
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Reads the header of a further stream concatenated after the end of the current stream. As
+	 * with the bzip2 tool, trailing data that is not a valid stream header is ignored
+	 * @return {@code true} if a stream header was read, or {@code false} if no further stream
+	 *         follows the current stream
+	 * @throws IOException on any I/O error reading the input stream
+	 */
+	private boolean readNextStreamHeader() throws IOException {
+
+		// Each stream is padded to a whole number of bytes
+		this.bitInputStream.alignToByte();
+		if (!this.bitInputStream.hasMoreData()) {
 			return false;
 		}
 
+		final int marker1;
+		final int marker2;
+		final int blockSize;
+		try {
+			marker1 = this.bitInputStream.readBits (16);
+			marker2 = this.bitInputStream.readBits (8);
+			blockSize = (this.bitInputStream.readBits (8) - '0');
+		} catch (BZip2Exception e) {
+			// Trailing data shorter than a stream header
+			return false;
+		}
+
+		if (
+				   (marker1 != BZip2Constants.STREAM_START_MARKER_1)
+				|| (marker2 != BZip2Constants.STREAM_START_MARKER_2)
+				|| (blockSize < 1) || (blockSize > 9))
+		{
+			return false;
+		}
+
+		this.streamBlockSize = blockSize * 100000;
+		this.streamCRC = 0;
+		this.streamEndRead = false;
+		this.streamDamaged = false;
+
+		return true;
+
+	}
+
+
+	/**
+	 * Reads a block-header or end-of-stream marker. For a block header, the following block is
+	 * decoded through to the Inverse Burrows Wheeler Transform stage. For an end-of-stream marker,
+	 * the stored stream CRC is read
+	 * @return The decompressor for the block, or {@code null} if the end-of-stream marker was read
+	 * @throws IOException if the following data is not a valid block-header or end-of-file marker,
+	 *                     or if the following block could not be decoded
+	 */
+	private BZip2BlockDecompressor readNextBlock() throws IOException {
+
+		/* Read block-header or end-of-stream marker */
+		final int marker1 = this.bitInputStream.readBits (24);
+		final int marker2 = this.bitInputStream.readBits (24);
+
+		if (marker1 == BZip2Constants.BLOCK_HEADER_MARKER_1 && marker2 == BZip2Constants.BLOCK_HEADER_MARKER_2) {
+			// The BWT array is retained only where it will receive the output of an interleaved walk
+			final boolean retainBWTBlock = (this.interleavedBlocks > 1) || (this.pipelineExecutor != null);
+			return new BZip2BlockDecompressor (this.bitInputStream, this.streamBlockSize, null, null, retainBWTBlock);
+		} else if (marker1 == BZip2Constants.STREAM_END_MARKER_1 && marker2 == BZip2Constants.STREAM_END_MARKER_2) {
+			this.streamEndRead = true;
+			this.storedStreamCRC = this.bitInputStream.readInteger();
+			return null;
+		}
+
 		/* If what was read is not a valid block-header or end-of-stream marker, the stream is broken */
-		this.streamComplete = true;
 		throw new BZip2Exception ("BZip2 stream format error");
 
 	}
 
 
+	/**
+	 * Reads and verifies the next block in recovery mode. If the block cannot be decoded or fails
+	 * verification, the input is scanned forward from the start of the block for the next marker,
+	 * and the skipped region is reported to the recovery listener
+	 * @return The decompressor for the block, or {@code null} if the end-of-stream marker was read
+	 *         or the input ended while scanning for a marker
+	 * @throws IOException on any I/O error reading the input stream
+	 */
+	private BZip2BlockDecompressor readNextBlockRecovering() throws IOException {
+
+		final BZip2BitInputStream bitInputStream = this.bitInputStream;
+		long regionStartBitOffset = bitInputStream.getBitPosition();
+		boolean blockHeaderRead = false;
+
+		for (;;) {
+			// Hold enough compressed data to return to the start of the longest possible block
+			bitInputStream.mark (BZip2Constants.MAXIMUM_COMPRESSED_BLOCK_SIZE);
+
+			final BZip2BlockDecompressor blockDecompressor;
+			try {
+				blockDecompressor = blockHeaderRead ? new BZip2BlockDecompressor (bitInputStream, this.streamBlockSize) : readNextBlock();
+				if (blockDecompressor != null) {
+					this.recoveredLength += blockDecompressor.verifyCRC();
+				}
+				return blockDecompressor;
+			} catch (BZip2Exception e) {
+				this.streamDamaged = true;
+
+				// Scan forward from the bit following the start of the damaged block
+				bitInputStream.reset();
+				final boolean blockHeaderFound;
+				try {
+					bitInputStream.readBoolean();
+					blockHeaderFound = bitInputStream.readToNextMarker();
+				} catch (BZip2Exception endOfInput) {
+					this.recoveryListener.regionSkipped (this.recoveredLength, regionStartBitOffset, bitInputStream.getBitPosition(), e);
+					this.streamEndRead = true;
+					return null;
+				}
+
+				final long markerBitOffset = bitInputStream.getBitPosition() - 48;
+				this.recoveryListener.regionSkipped (this.recoveredLength, regionStartBitOffset, markerBitOffset, e);
+
+				if (!blockHeaderFound) {
+					this.streamEndRead = true;
+					this.storedStreamCRC = bitInputStream.readInteger();
+					return null;
+				}
+
+				regionStartBitOffset = markerBitOffset;
+				blockHeaderRead = true;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Reads the next block, in recovery mode if it is enabled
+	 * @return The decompressor for the block, or {@code null} if the end of the stream was reached
+	 * @throws IOException if the block could not be read
+	 */
+	private BZip2BlockDecompressor readNextBlockInMode() throws IOException {
+
+		return (this.recoveryListener != null) ? readNextBlockRecovering() : readNextBlock();
+
+	}
+
+
+	/**
+	 * Reads and decodes a set of up to {@link #interleavedBlocks} blocks, stopping at the end of
+	 * the current stream, then performs their Inverse Burrows-Wheeler Transform walks together
+	 * @return The set of blocks. An empty set indicates the end of the current stream
+	 * @throws IOException if the first block of the set could not be read. An error reading a
+	 *                     later block is deferred until the blocks that preceded it are consumed
+	 */
+	private BlockBatch readBlockBatch() throws IOException {
+
+		final BlockBatch blockBatch = new BlockBatch (this.interleavedBlocks);
+
+		try {
+			while (!this.streamEndRead && (blockBatch.count < blockBatch.blocks.length)) {
+				final BZip2BlockDecompressor decompressor = readNextBlockInMode();
+				if (decompressor != null) {
+					blockBatch.blocks[blockBatch.count++] = decompressor;
+				}
+			}
+		} catch (IOException e) {
+			if (blockBatch.count == 0) {
+				throw e;
+			}
+			blockBatch.exception = e;
+		}
+
+		BZip2BlockDecompressor.decodeInterleaved (blockBatch.blocks, blockBatch.count);
+
+		return blockBatch;
+
+	}
+
+
+	/**
+	 * Returns the next of the blocks that have been decoded together, first reading and decoding a
+	 * new set of blocks (or in pipelined mode, waiting for the set being decoded in the
+	 * background) if required
+	 * @return The decompressor for the block, or {@code null} if the end-of-stream marker has been
+	 *         reached
+	 * @throws IOException if an error was encountered while reading ahead, and all blocks that
+	 *                     preceded the error have been consumed
+	 */
+	private BZip2BlockDecompressor nextBatchedBlock() throws IOException {
+
+		BlockBatch blockBatch = this.blockBatch;
+
+		if ((blockBatch == null) || (blockBatch.index == blockBatch.count)) {
+			if ((blockBatch != null) && (blockBatch.exception != null)) {
+				throw blockBatch.exception;
+			}
+
+			blockBatch = (this.pipelineExecutor != null) ? nextPipelinedBatch() : readBlockBatch();
+			this.blockBatch = blockBatch;
+		}
+
+		if (blockBatch.index == blockBatch.count) {
+			return null;
+		}
+
+		final BZip2BlockDecompressor decompressor = blockBatch.blocks[blockBatch.index];
+		blockBatch.blocks[blockBatch.index++] = null;
+		return decompressor;
+
+	}
+
+
+	/**
+	 * Returns the set of blocks read and decoded in the background, then starts reading and
+	 * decoding the following set in the background. The calling thread waits for the first set
+	 * rather than decoding it itself, so that no block decoding is performed on the calling thread
+	 * @return The set of blocks. An empty set indicates the end of the current stream
+	 * @throws IOException if the first block of the set could not be read
+	 */
+	private BlockBatch nextPipelinedBatch() throws IOException {
+
+		if (this.pipelineTask == null) {
+			submitPipelinedBatch();
+		}
+
+		final FutureTask<BlockBatch> pipelineTask = this.pipelineTask;
+		this.pipelineTask = null;
+		final BlockBatch blockBatch = BZip2Tasks.await (pipelineTask);
+
+		if ((blockBatch.count > 0) && (blockBatch.exception == null) && !this.streamEndRead) {
+			submitPipelinedBatch();
+		}
+
+		return blockBatch;
+
+	}
+
+
+	/**
+	 * Starts reading the next set of blocks in the background, and decoding them through the
+	 * Inverse Burrows Wheeler Transform stage
+	 */
+	private void submitPipelinedBatch() {
+
+		final FutureTask<BlockBatch> pipelineTask = new FutureTask<BlockBatch> (new Callable<BlockBatch>() {
+			public BlockBatch call() throws IOException {
+				return readBlockBatch();
+			}
+		});
+		this.pipelineExecutor.execute (pipelineTask);
+		this.pipelineTask = pipelineTask;
+
+	}
+
+
 	/**
 	 * @param inputStream The InputStream to wrap
 	 * @param headerless If {@code true}, the caller is assumed to have read away the stream's
@@ -259,13 +946,35 @@ public class BZip2InputStream extends InputStream {
 	 */
 	public BZip2InputStream (final InputStream inputStream, final boolean headerless) {
 
+		this (inputStream, headerless, new Options());
+
+	}
+
+
+	/**
+	 * @param inputStream The InputStream to wrap
+	 * @param headerless If {@code true}, the caller is assumed to have read away the first
+	 *                   stream's leading "BZ" identifier bytes
+	 * @param options The decoding modes to use
+	 */
+	public BZip2InputStream (final InputStream inputStream, final boolean headerless, final Options options) {
+
 		if (inputStream == null) {
 			throw new IllegalArgumentException ("Null input stream");
 		}
 
-		this.inputStream = inputStream;
-		this.bitInputStream = new BZip2BitInputStream (inputStream);
+		if (options == null) {
+			throw new IllegalArgumentException ("Null options");
+		}
+
+		this.inputStream = (options.recoveryListener != null) ? new BufferedInputStream (inputStream, RECOVERY_BUFFER_SIZE) : inputStream;
+		this.bitInputStream = new BZip2BitInputStream (this.inputStream);
 		this.headerless = headerless;
+		this.decodeConcatenated = options.decodeConcatenated;
+		this.interleavedBlocks = options.interleavedBlocks;
+		this.pipelineExecutor = (options.executor != null) ?
+				BZip2CodecScheduler.createStage (options.executor, BZip2CodecScheduler.DECOMPRESSION_WEIGHT) : null;
+		this.recoveryListener = options.recoveryListener;
 
 	}
 
@@ -24,9 +24,12 @@ public class BZip2MTFAndRLE2StageEncoder {
 	private final boolean[] bwtValuesInUse;
 
 	/**
-	 * The output of the Move To Front Transform and Run-Length Encoding[2] stages
+	 * The output of the Move To Front Transform and Run-Length Encoding[2] stages. This is the same
+	 * array as {@link #bwtBlock}, and is written in place behind the position being read. As each
+	 * input value produces at most one output symbol, output never overtakes input, and no separate
+	 * array need be allocated for the output
 	 */
-	private final char[] mtfBlock;
+	private final int[] mtfBlock;
 
 	/**
 	 * The actual number of values contained in the {@link mtfBlock} array
@@ -52,7 +55,7 @@ public class BZip2MTFAndRLE2StageEncoder {
 		final int bwtLength = this.bwtLength;
 		final boolean[] bwtValuesInUse = this.bwtValuesInUse;
 		final int[] bwtBlock = this.bwtBlock;
-		final char[] mtfBlock = this.mtfBlock;
+		final int[] mtfBlock = this.mtfBlock;
 		final int[] mtfSymbolFrequencies = this.mtfSymbolFrequencies;
 		final byte[] huffmanSymbolMap = new byte[256];
 		final MoveToFront symbolMTF = new MoveToFront();
@@ -99,7 +102,7 @@ public class BZip2MTFAndRLE2StageEncoder {
 					repeatCount = 0;
 				}
 
-				mtfBlock[mtfIndex++] = (char) (mtfPosition + 1);
+				mtfBlock[mtfIndex++] = mtfPosition + 1;
 				mtfSymbolFrequencies[mtfPosition + 1]++;
 			}
 
@@ -123,7 +126,7 @@ public class BZip2MTFAndRLE2StageEncoder {
 			}
 		}
 
-		mtfBlock[mtfIndex] = (char) endOfBlockSymbol;
+		mtfBlock[mtfIndex] = endOfBlockSymbol;
 		mtfSymbolFrequencies[endOfBlockSymbol]++;
 		mtfSymbolFrequencies[BZip2Constants.HUFFMAN_SYMBOL_RUNA] += totalRunAs;
 		mtfSymbolFrequencies[BZip2Constants.HUFFMAN_SYMBOL_RUNB] += totalRunBs;
@@ -135,9 +138,10 @@ public class BZip2MTFAndRLE2StageEncoder {
 
 
 	/**
-	 * @return The encoded MTF block
+	 * @return The encoded MTF block. This is the Burrows Wheeler Transformed block array passed to
+	 *         the constructor, which is overwritten by {@link #encode()}
 	 */
-	public char[] getMtfBlock() {
+	public int[] getMtfBlock() {
 
 		return this.mtfBlock;
 
@@ -175,7 +179,9 @@ public class BZip2MTFAndRLE2StageEncoder {
 
 
 	/**
-	 * @param bwtBlock The Burrows Wheeler Transformed block data
+	 * @param bwtBlock The Burrows Wheeler Transformed block data. The array must have space for at
+	 *            least one value beyond the end of the BWT data, and will be overwritten with the
+	 *            encoded MTF block
 	 * @param bwtLength The actual length of the BWT data
 	 * @param bwtValuesPresent The values that are present within the BWT data. For each index,
 	 *            {@code true} if that value is present within the data, otherwise {@code false}
@@ -185,7 +191,7 @@ public class BZip2MTFAndRLE2StageEncoder {
 		this.bwtBlock = bwtBlock;
 		this.bwtLength = bwtLength;
 		this.bwtValuesInUse = bwtValuesPresent;
-		this.mtfBlock = new char[bwtLength + 1];
+		this.mtfBlock = bwtBlock;
 
 	}
 
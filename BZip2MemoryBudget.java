@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * <p>A limit on the working memory held by blocks that are queued for or undergoing compression
+ * in pipelined {@link BZip2OutputStream}s. A single budget may be shared between any number of
+ * streams; a stream that would take the total over the budget's capacity waits until enough
+ * blocks belonging to any of the streams have been written out</p>
+ *
+ * <p>Each block is charged the working memory it actually holds, which grows with the length of
+ * its data rather than being fixed by the stream's declared block size (see
+ * {@link #getBlockCost(int, int)}). A block filled to its declared size costs
+ * {@link #getBlockCost(int)}, so a capacity of {@code n * getBlockCost (blockSizeMultiplier)}
+ * admits at least {@code n} blocks of that size at once; blocks ended early, by
+ * {@link BZip2OutputStream#flushBlock()}, a flush policy or an rsyncable cut point, cost less and
+ * are admitted in greater numbers. A block whose cost alone exceeds the capacity is admitted when
+ * no other blocks are in flight. Producers that would rather not wait may poll
+ * {@link #getAvailable()} before writing</p>
+ *
+ * <p>Waiting producers park on a {@link ReentrantLock} condition rather than a monitor, so a
+ * waiting virtual thread releases its carrier thread.</p>
+ *
+ * <p>Instances of this class are threadsafe.</p>
+ */
+public class BZip2MemoryBudget {
+
+	/**
+	 * The maximum total cost in bytes of the blocks in flight
+	 */
+	private final long capacity;
+
+	/**
+	 * Guards the budget's state
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when blocks are released
+	 */
+	private final Condition released = this.lock.newCondition();
+
+	/**
+	 * The total cost in bytes of the blocks in flight
+	 */
+	private long inFlightBytes = 0;
+
+	/**
+	 * The number of blocks in flight
+	 */
+	private int inFlightBlocks = 0;
+
+	/**
+	 * The greatest number of blocks that have been in flight at once
+	 */
+	private int peakInFlightBlocks = 0;
+
+	/**
+	 * The number of producers currently waiting for space
+	 */
+	private int waitingProducers = 0;
+
+	/**
+	 * The number of admissions that had to wait for space
+	 */
+	private long waitCount = 0;
+
+	/**
+	 * The total time in nanoseconds spent by producers waiting for space
+	 */
+	private long waitNanos = 0;
+
+
+	/**
+	 * The size in bytes of the suffix sort's bucket arrays
+	 */
+	private static final long BUCKET_ARRAYS_COST = (256 + 65536) * 4;
+
+
+	/**
+	 * Calculates the working memory used to compress a block filled to a declared block size. This
+	 * is the greatest cost that a block of a stream with that block size can be charged
+	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes
+	 * @return The cost in bytes
+	 */
+	public static long getBlockCost (final int blockSizeMultiplier) {
+
+		final int blockSize = blockSizeMultiplier * 100000;
+
+		return getBlockCost (blockSize + 1, blockSize);
+
+	}
+
+
+	/**
+	 * Calculates the working memory used to compress a block. This comprises the Run-Length
+	 * Encoded block array at the length to which it has grown, the Burrows Wheeler Transform and
+	 * MTF output array (four bytes per byte of block data), and the suffix sort's bucket arrays
+	 * @param blockArrayLength The length of the block's Run-Length Encoded data array
+	 * @param blockLength The length of the block's Run-Length Encoded data
+	 * @return The cost in bytes
+	 */
+	public static long getBlockCost (final int blockArrayLength, final int blockLength) {
+
+		return blockArrayLength + ((blockLength + 1) * 4L) + BUCKET_ARRAYS_COST;
+
+	}
+
+
+	/**
+	 * Admits a block, waiting if necessary until there is space for it
+	 * @param cost The cost of the block in bytes
+	 * @throws InterruptedIOException if the calling thread is interrupted while waiting
+	 */
+	void acquire (final long cost) throws InterruptedIOException {
+
+		this.lock.lock();
+		try {
+			if (!hasSpace (cost)) {
+				final long startTime = System.nanoTime();
+				this.waitCount++;
+				this.waitingProducers++;
+				try {
+					while (!hasSpace (cost)) {
+						this.released.await();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				} finally {
+					this.waitingProducers--;
+					this.waitNanos += System.nanoTime() - startTime;
+				}
+			}
+
+			this.inFlightBytes += cost;
+			this.inFlightBlocks++;
+			this.peakInFlightBlocks = Math.max (this.peakInFlightBlocks, this.inFlightBlocks);
+		} finally {
+			this.lock.unlock();
+		}
+
+	}
+
+
+	/**
+	 * Releases a block previously admitted through {@link #acquire(long)}
+	 * @param cost The cost of the block in bytes
+	 */
+	void release (final long cost) {
+
+		this.lock.lock();
+		try {
+			this.inFlightBytes -= cost;
+			this.inFlightBlocks--;
+			this.released.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+
+	}
+
+
+	/**
+	 * @param cost The cost of a block in bytes
+	 * @return {@code true} if the block can be admitted without waiting
+	 */
+	private boolean hasSpace (final long cost) {
+
+		return (this.inFlightBlocks == 0) || (this.inFlightBytes + cost <= this.capacity);
+
+	}
+
+
+	/**
+	 * @return The maximum total cost in bytes of the blocks in flight
+	 */
+	public long getCapacity() {
+
+		return this.capacity;
+
+	}
+
+
+	/**
+	 * @return The remaining capacity in bytes. A producer about to complete a block costing more
+	 *         than this will wait
+	 */
+	public long getAvailable() {
+
+		this.lock.lock();
+		try {
+			return Math.max (0, this.capacity - this.inFlightBytes);
+		} finally {
+			this.lock.unlock();
+		}
+
+	}
+
+
+	/**
+	 * @return The total cost in bytes of the blocks in flight
+	 */
+	public long getInFlightBytes() {
+
+		this.lock.lock();
+		try {
+			return this.inFlightBytes;
+		} finally {
+			this.lock.unlock();
+		}
+
+	}
+
+
+	/**
+	 * @return The number of blocks queued for or undergoing compression
+	 */
+	public int getInFlightBlocks() {
+
+		this.lock.lock();
+		try {
+			return this.inFlightBlocks;
+		} finally {
+			this.lock.unlock();
+		}
+
+	}
+
+
+	/**
+	 * @return The greatest number of blocks that have been in flight at once
+	 */
+	public int getPeakInFlightBlocks() {
+
+		this.lock.lock();
+		try {
+			return this.peakInFlightBlocks;
+		} finally {
+			this.lock.unlock();
+		}
+
+	}
+
+
+	/**
+	 * @return The number of producers currently waiting for space
+	 */
+	public int getWaitingProducers() {
+
+		this.lock.lock();
+		try {
+			return this.waitingProducers;
+		} finally {
+			this.lock.unlock();
+		}
+
+	}
+
+
+	/**
+	 * @return The number of blocks whose admission had to wait for space
+	 */
+	public long getWaitCount() {
+
+		this.lock.lock();
+		try {
+			return this.waitCount;
+		} finally {
+			this.lock.unlock();
+		}
+
+	}
+
+
+	/**
+	 * @return The total time in nanoseconds spent by producers waiting for space
+	 */
+	public long getWaitNanos() {
+
+		this.lock.lock();
+		try {
+			return this.waitNanos;
+		} finally {
+			this.lock.unlock();
+		}
+
+	}
+
+
+	/**
+	 * @param capacity The maximum total cost in bytes of the blocks in flight. A capacity of
+	 *                 {@code n * getBlockCost (9)} allows {@code n} full size blocks in flight
+	 */
+	public BZip2MemoryBudget (final long capacity) {
+
+		if (capacity < 0) {
+			throw new IllegalArgumentException ("Invalid capacity " + capacity);
+		}
+
+		this.capacity = capacity;
+
+	}
+
+}
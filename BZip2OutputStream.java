@@ -22,17 +22,353 @@
 
 package org.itadaki.bzip2;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 
 /**
  * <p>An OutputStream wrapper that compresses BZip2 data</p>
  *
+ * <p>In pipelined mode (see {@link Options#setExecutor(Executor)}), each completed
+ * block is handed to a two stage pipeline running on an executor, in which one stage performs
+ * the Burrows Wheeler Transform and the other performs the remaining encoding stages and writes
+ * the encoded block. The writing thread is then free to accept and Run-Length Encode the following
+ * block's data. At most {@link #PIPELINE_DEPTH} blocks are held by the pipeline at once; further
+ * writes wait until a block has been written out. A {@link BZip2MemoryBudget} may additionally be
+ * supplied to limit the blocks in flight across all the streams that share it</p>
+ *
+ * <p>In pipelined mode the writing thread performs only the initial Run-Length Encoding, and waits
+ * for the pipeline without holding any monitor; the block CRC is calculated by the transform
+ * stage. Supplying an executor of platform threads (such as {@link BZip2CodecScheduler#getShared()})
+ * therefore keeps the CPU-bound block sorting and encoding off virtual threads, which park rather
+ * than pin their carrier while they wait. The initial Run-Length Encoding cannot move to the
+ * pipeline, as a block ends when its Run-Length Encoded length reaches the block size, and the
+ * writing thread must know where each block ends in order to wait for space in the pipeline before
+ * accepting more data</p>
+ *
  * <p>Instances of this class are not threadsafe.</p>
  */
 public class BZip2OutputStream extends OutputStream {
 
+	/**
+	 * The maximum number of completed blocks held by the pipeline in pipelined mode
+	 */
+	public static final int PIPELINE_DEPTH = 2;
+
+	/**
+	 * The number of bytes written singly through {@link #write(int)} between checks of a flush
+	 * policy's time trigger. Writes of an array check the trigger on each call
+	 */
+	public static final int FLUSH_DELAY_CHECK_INTERVAL = 4096;
+
+	/**
+	 * The number of bytes at the end of a file searched for the end of stream when appending. The
+	 * 80 bit end of stream marker and CRC, plus up to 7 bits of padding, occupy at most 11 bytes
+	 */
+	private static final int END_OF_STREAM_SEARCH_LENGTH = 11;
+
+	/**
+	 * The length of a stream header (4 bytes) and the block header or end of stream marker that
+	 * follows it (6 bytes), as searched for when appending
+	 */
+	private static final int STREAM_HEADER_SEQUENCE_LENGTH = 10;
+
+	/**
+	 * The number of bytes read at a time when searching for the final stream's header
+	 */
+	private static final int HEADER_SEARCH_BUFFER_LENGTH = 65536;
+
+
+	/**
+	 * The point at which an existing stream is continued when appending
+	 */
+	private static final class AppendPosition {
+
+		/**
+		 * The block size of the appended blocks as a multiple of 100,000 bytes
+		 */
+		final int blockSizeMultiplier;
+
+		/**
+		 * The combined CRC of the existing stream's blocks
+		 */
+		final int streamCRC;
+
+		/**
+		 * The number of bits (0-7) of the existing stream in its final, partial byte
+		 */
+		final int leadingBitCount;
+
+		/**
+		 * The existing stream's bits in its final, partial byte
+		 */
+		final int leadingBits;
+
+
+		/**
+		 * @param blockSizeMultiplier The block size of the appended blocks as a multiple of
+		 *                            100,000 bytes
+		 * @param streamCRC The combined CRC of the existing stream's blocks
+		 * @param leadingBitCount The number of bits (0-7) of the existing stream in its final,
+		 *                        partial byte
+		 * @param leadingBits The existing stream's bits in its final, partial byte
+		 */
+		AppendPosition (final int blockSizeMultiplier, final int streamCRC, final int leadingBitCount, final int leadingBits) {
+
+			this.blockSizeMultiplier = blockSizeMultiplier;
+			this.streamCRC = streamCRC;
+			this.leadingBitCount = leadingBitCount;
+			this.leadingBits = leadingBits;
+
+		}
+
+	}
+
+
+	/**
+	 * <p>Optional compression settings for a {@link BZip2OutputStream}. Each setter returns the
+	 * options object, so that calls may be chained</p>
+	 *
+	 * <p>Instances of this class are not threadsafe. An options object may be reused to construct
+	 * any number of streams; later changes do not affect streams already constructed</p>
+	 */
+	public static final class Options {
+
+		/**
+		 * The BZip2 block size as a multiple of 100,000 bytes
+		 */
+		private int blockSizeMultiplier = 9;
+
+		/**
+		 * The executor on which blocks are transformed and encoded, or {@code null}
+		 */
+		private Executor executor = null;
+
+		/**
+		 * The shared limit on blocks in flight, or {@code null}
+		 */
+		private BZip2MemoryBudget memoryBudget = null;
+
+		/**
+		 * The policy under which the current stream is ended early, or {@code null}
+		 */
+		private BZip2FlushPolicy flushPolicy = null;
+
+		/**
+		 * The policy under which blocks are ended at content-defined cut points, or {@code null}
+		 */
+		private BZip2RsyncablePolicy rsyncablePolicy = null;
+
+		/**
+		 * The cache of previously encoded blocks, or {@code null}
+		 */
+		private BZip2EncodedBlockCache encodedBlockCache = null;
+
+		/**
+		 * The Huffman table seeding policy, or {@code null}
+		 */
+		private BZip2HuffmanWarmStart huffmanWarmStart = null;
+
+
+		/**
+		 * @return The BZip2 block size as a multiple of 100,000 bytes
+		 */
+		public int getBlockSizeMultiplier() {
+
+			return this.blockSizeMultiplier;
+
+		}
+
+
+		/**
+		 * Sets the block size. Larger block sizes require more memory for both compression and
+		 * decompression, but give better compression ratios. The default, {@code 9}, will usually
+		 * be the best value to use
+		 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum
+		 *                            1, maximum 9)
+		 * @return This options object
+		 */
+		public Options setBlockSizeMultiplier (final int blockSizeMultiplier) {
+
+			if ((blockSizeMultiplier < 1) || (blockSizeMultiplier > 9)) {
+				throw new IllegalArgumentException ("Invalid BZip2 block size " + blockSizeMultiplier);
+			}
+
+			this.blockSizeMultiplier = blockSizeMultiplier;
+			return this;
+
+		}
+
+
+		/**
+		 * @return The executor on which blocks are transformed and encoded, or {@code null}
+		 */
+		public Executor getExecutor() {
+
+			return this.executor;
+
+		}
+
+
+		/**
+		 * Sets an executor for pipelined compression. Completed blocks are transformed and encoded
+		 * on the executor while the writing thread continues to accept data. The wrapped output
+		 * stream is then written to from the executor's threads, except for stream headers and the
+		 * end of the final stream. For the pipeline's two stages to run concurrently, the executor
+		 * must be able to run at least two tasks at once. If the executor is a
+		 * {@link BZip2CodecScheduler}, the stream's stages are scheduled fairly against those of
+		 * other streams sharing it
+		 * @param executor The executor on which blocks are transformed and encoded, or
+		 *                 {@code null} (the default) to compress each block on the writing thread
+		 * @return This options object
+		 */
+		public Options setExecutor (final Executor executor) {
+
+			this.executor = executor;
+			return this;
+
+		}
+
+
+		/**
+		 * @return The shared limit on blocks in flight, or {@code null}
+		 */
+		public BZip2MemoryBudget getMemoryBudget() {
+
+			return this.memoryBudget;
+
+		}
+
+
+		/**
+		 * Sets a memory budget against which the blocks in flight of a pipelined stream are
+		 * charged. Once the budget is exhausted, the writing thread waits until blocks from any
+		 * stream sharing the budget have been written out. Ignored unless an executor is set
+		 * @param memoryBudget The memory budget, or {@code null} (the default)
+		 * @return This options object
+		 */
+		public Options setMemoryBudget (final BZip2MemoryBudget memoryBudget) {
+
+			this.memoryBudget = memoryBudget;
+			return this;
+
+		}
+
+
+		/**
+		 * @return The policy under which the current stream is ended early, or {@code null}
+		 */
+		public BZip2FlushPolicy getFlushPolicy() {
+
+			return this.flushPolicy;
+
+		}
+
+
+		/**
+		 * Sets a policy under which the current stream is ended early, so that consumers can
+		 * decode recently written data promptly. The output then consists of concatenated BZip2
+		 * streams (see {@link BZip2OutputStream#flushBlock()})
+		 * @param flushPolicy The flush policy, or {@code null} (the default) to end the stream only
+		 *                    when finished
+		 * @return This options object
+		 */
+		public Options setFlushPolicy (final BZip2FlushPolicy flushPolicy) {
+
+			this.flushPolicy = flushPolicy;
+			return this;
+
+		}
+
+
+		/**
+		 * @return The policy under which blocks are ended at content-defined cut points, or
+		 *         {@code null}
+		 */
+		public BZip2RsyncablePolicy getRsyncablePolicy() {
+
+			return this.rsyncablePolicy;
+
+		}
+
+
+		/**
+		 * Sets a policy under which blocks are ended at content-defined cut points, so that the
+		 * unchanged regions of an edited input compress to identical blocks (see
+		 * {@link BZip2RsyncablePolicy})
+		 * @param rsyncablePolicy The content-defined block policy, or {@code null} (the default)
+		 *                        to end blocks only when they are full
+		 * @return This options object
+		 */
+		public Options setRsyncablePolicy (final BZip2RsyncablePolicy rsyncablePolicy) {
+
+			this.rsyncablePolicy = rsyncablePolicy;
+			return this;
+
+		}
+
+
+		/**
+		 * @return The cache of previously encoded blocks, or {@code null}
+		 */
+		public BZip2EncodedBlockCache getEncodedBlockCache() {
+
+			return this.encodedBlockCache;
+
+		}
+
+
+		/**
+		 * Sets a cache from which the encoding of any block identical to one compressed earlier is
+		 * copied out, rather than the block being compressed again (see
+		 * {@link BZip2EncodedBlockCache})
+		 * @param encodedBlockCache The encoded block cache, or {@code null} (the default)
+		 * @return This options object
+		 */
+		public Options setEncodedBlockCache (final BZip2EncodedBlockCache encodedBlockCache) {
+
+			this.encodedBlockCache = encodedBlockCache;
+			return this;
+
+		}
+
+
+		/**
+		 * @return The Huffman table seeding policy, or {@code null}
+		 */
+		public BZip2HuffmanWarmStart getHuffmanWarmStart() {
+
+			return this.huffmanWarmStart;
+
+		}
+
+
+		/**
+		 * Sets a policy under which each block's Huffman tables are seeded from those of the
+		 * previous block, reducing the work of the Huffman stage for homogeneous data (see
+		 * {@link BZip2HuffmanWarmStart})
+		 * @param huffmanWarmStart The Huffman table seeding policy, or {@code null} (the default)
+		 *                         to generate each block's tables from its own symbol frequencies
+		 * @return This options object
+		 */
+		public Options setHuffmanWarmStart (final BZip2HuffmanWarmStart huffmanWarmStart) {
+
+			this.huffmanWarmStart = huffmanWarmStart;
+			return this;
+
+		}
+
+	}
+
+
 	/**
 	 * The stream to which compressed BZip2 data is written
 	 */
@@ -63,6 +399,68 @@ public class BZip2OutputStream extends OutputStream {
 	 */
 	private BZip2BlockCompressor blockCompressor;
 
+	/**
+	 * In pipelined mode, the stage on which blocks are transformed, otherwise {@code null}
+	 */
+	private final Executor transformStage;
+
+	/**
+	 * In pipelined mode, the stage on which blocks are encoded and written, otherwise {@code null}
+	 */
+	private final Executor encodeStage;
+
+	/**
+	 * In pipelined mode, limits the number of blocks held by the pipeline
+	 */
+	private final Semaphore pipelinePermits = new Semaphore (PIPELINE_DEPTH);
+
+	/**
+	 * In pipelined mode, the shared limit on blocks in flight, or {@code null}
+	 */
+	private final BZip2MemoryBudget memoryBudget;
+
+	/**
+	 * In pipelined mode, the first failure encountered by the pipeline
+	 */
+	private volatile Throwable pipelineFailure = null;
+
+	/**
+	 * The policy under which the current stream is ended early, or {@code null}
+	 */
+	private final BZip2FlushPolicy flushPolicy;
+
+	/**
+	 * The policy under which blocks are ended at content-defined cut points, or {@code null}
+	 */
+	private final BZip2RsyncablePolicy rsyncablePolicy;
+
+	/**
+	 * The cache of previously encoded blocks, or {@code null}
+	 */
+	private final BZip2EncodedBlockCache encodedBlockCache;
+
+	/**
+	 * The Huffman tables of the previous block, or {@code null} if tables are not seeded from the
+	 * previous block
+	 */
+	private final BZip2HuffmanWarmStart.State huffmanWarmStartState;
+
+	/**
+	 * {@code true} if the header of the current stream has been written. After
+	 * {@link #flushBlock()}, the header of the next stream is not written until it has a block
+	 */
+	private boolean memberStarted = false;
+
+	/**
+	 * The number of uncompressed bytes written since the current stream was last ended early
+	 */
+	private long unflushedBytes = 0;
+
+	/**
+	 * The time, in nanoseconds, at which the first of the {@link #unflushedBytes} was written
+	 */
+	private long unflushedSince = 0;
+
 
 	/* (non-Javadoc)
 	 * @see java.io.OutputStream#write(int)
@@ -84,6 +482,10 @@ public class BZip2OutputStream extends OutputStream {
 			this.blockCompressor.write (value & 0xff);
 		}
 
+		if (this.flushPolicy != null) {
+			applyFlushPolicy (1);
+		}
+
 	}
 
 
@@ -101,6 +503,7 @@ public class BZip2OutputStream extends OutputStream {
 			throw new BZip2Exception ("Write beyond end of stream");
 		}
 
+		final int totalLength = length;
 		int bytesWritten;
 		while (length > 0) {
 			if ((bytesWritten = this.blockCompressor.write (data, offset, length)) < length) {
@@ -111,6 +514,134 @@ public class BZip2OutputStream extends OutputStream {
 			length -= bytesWritten;
 		}
 
+		if (this.flushPolicy != null) {
+			applyFlushPolicy (totalLength);
+		}
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		final BZip2FlushPolicy flushPolicy = this.flushPolicy;
+
+		if ((flushPolicy != null) && (this.outputStream != null) && !this.streamFinished) {
+			if (flushPolicy.isFlushOnFlush() || isFlushDelayExpired()) {
+				flushBlock();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Compresses and writes out the data written so far, ends the current BZip2 stream (padding
+	 * the output to a whole byte), and flushes the underlying OutputStream, so that a consumer can
+	 * decode all the data written so far. Data subsequently written begins a new BZip2 stream
+	 * concatenated to the first; a decompressor must therefore be able to decode concatenated
+	 * streams, as the bzip2 tool and a {@link BZip2InputStream} do by default. <b>A
+	 * BZip2InputStream for which {@link BZip2InputStream.Options#setDecodeConcatenated(boolean)}
+	 * has been cleared stops at the end of the first stream</b>, returning only the data written
+	 * before the first flush. If nothing has been written since the last flush, only the
+	 * underlying OutputStream is flushed
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public void flushBlock() throws IOException {
+
+		if (this.outputStream == null) {
+			throw new BZip2Exception ("Stream closed");
+		}
+
+		if (this.streamFinished) {
+			return;
+		}
+
+		this.unflushedBytes = 0;
+
+		if (this.memberStarted || !this.blockCompressor.isEmpty()) {
+			closeBlock();
+			initialiseNextBlock();
+			drainPipeline();
+			writeStreamTrailer();
+			this.streamCRC = 0;
+			this.memberStarted = false;
+		}
+
+		this.outputStream.flush();
+
+	}
+
+
+	/**
+	 * Counts data written against the flush policy, ending the current stream if a trigger has
+	 * been reached. To keep the clock off the path of {@link #write(int)}, the time trigger is
+	 * checked for single bytes only every {@link #FLUSH_DELAY_CHECK_INTERVAL} bytes
+	 * @param length The number of bytes written
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	private void applyFlushPolicy (final int length) throws IOException {
+
+		final BZip2FlushPolicy flushPolicy = this.flushPolicy;
+
+		if ((this.unflushedBytes == 0) && (flushPolicy.getMaximumDelayMillis() > 0)) {
+			this.unflushedSince = System.nanoTime();
+		}
+		this.unflushedBytes += length;
+
+		final long maximumBytes = flushPolicy.getMaximumBytes();
+		if (
+				   ((maximumBytes > 0) && (this.unflushedBytes >= maximumBytes))
+				|| (((length > 1) || ((this.unflushedBytes & (FLUSH_DELAY_CHECK_INTERVAL - 1)) == 0)) && isFlushDelayExpired()))
+		{
+			flushBlock();
+		}
+
+	}
+
+
+	/**
+	 * @return {@code true} if the flush policy's time trigger applies to the data written since
+	 *         the last flush
+	 */
+	private boolean isFlushDelayExpired() {
+
+		final long maximumDelayMillis = this.flushPolicy.getMaximumDelayMillis();
+
+		return (maximumDelayMillis > 0) && (this.unflushedBytes > 0)
+				&& ((System.nanoTime() - this.unflushedSince) >= maximumDelayMillis * 1000000L);
+
+	}
+
+
+	/**
+	 * Writes the header of a new stream
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	private void writeStreamHeader() throws IOException {
+
+		this.bitOutputStream.writeBits (16, BZip2Constants.STREAM_START_MARKER_1);
+		this.bitOutputStream.writeBits (8,  BZip2Constants.STREAM_START_MARKER_2);
+		this.bitOutputStream.writeBits (8, '0' + (this.streamBlockSize / 100000));
+		this.memberStarted = true;
+
+	}
+
+
+	/**
+	 * Writes the end of the current stream, padded to a whole byte
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	private void writeStreamTrailer() throws IOException {
+
+		this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_1);
+		this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_2);
+		this.bitOutputStream.writeInteger (this.streamCRC);
+		this.bitOutputStream.flush();
+
 	}
 
 
@@ -134,7 +665,8 @@ public class BZip2OutputStream extends OutputStream {
 	 */
 	private void initialiseNextBlock() {
 
-		this.blockCompressor = new BZip2BlockCompressor (this.bitOutputStream, this.streamBlockSize);
+		this.blockCompressor = new BZip2BlockCompressor (this.bitOutputStream, this.streamBlockSize, this.rsyncablePolicy, this.encodedBlockCache,
+				this.huffmanWarmStartState);
 
 	}
 
@@ -150,6 +682,15 @@ public class BZip2OutputStream extends OutputStream {
 			return;
 		}
 
+		if (!this.memberStarted) {
+			writeStreamHeader();
+		}
+
+		if (this.transformStage != null) {
+			submitBlock (this.blockCompressor);
+			return;
+		}
+
 		this.blockCompressor.close();
 		int blockCRC = this.blockCompressor.getCRC();
 		this.streamCRC = ((this.streamCRC << 1) | (this.streamCRC >>> 31)) ^ blockCRC;
@@ -157,6 +698,153 @@ public class BZip2OutputStream extends OutputStream {
 	}
 
 
+	/**
+	 * Hands a completed block to the pipeline, first waiting for space in the pipeline if required
+	 * @param blockCompressor The compressor for the completed block
+	 * @throws IOException if the pipeline has failed, or the calling thread was interrupted while
+	 *                     waiting
+	 */
+	private void submitBlock (final BZip2BlockCompressor blockCompressor) throws IOException {
+
+		checkPipeline();
+
+		try {
+			this.pipelinePermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		// The block is charged the working memory it will actually hold, not its declared size
+		final long blockCost = (this.memoryBudget == null) ? 0 : blockCompressor.getWorkingMemory();
+
+		if (this.memoryBudget != null) {
+			try {
+				this.memoryBudget.acquire (blockCost);
+			} catch (InterruptedIOException e) {
+				this.pipelinePermits.release();
+				throw e;
+			}
+		}
+
+		// A task discarded unrun by its stage fails the pipeline and releases its block
+		final Runnable encodeTask = new BZip2SerialExecutor.RejectableTask() {
+			public void rejected (final RejectedExecutionException exception) {
+				failPipeline (exception);
+				releaseBlock (blockCost);
+			}
+			public void run() {
+				try {
+					if (BZip2OutputStream.this.pipelineFailure == null) {
+						blockCompressor.encode();
+						final int streamCRC = BZip2OutputStream.this.streamCRC;
+						BZip2OutputStream.this.streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ blockCompressor.getCRC();
+					}
+				} catch (Throwable t) {
+					failPipeline (t);
+				} finally {
+					releaseBlock (blockCost);
+				}
+			}
+		};
+
+		final Runnable transformTask = new BZip2SerialExecutor.RejectableTask() {
+			public void rejected (final RejectedExecutionException exception) {
+				failPipeline (exception);
+				releaseBlock (blockCost);
+			}
+			public void run() {
+				try {
+					if (BZip2OutputStream.this.pipelineFailure == null) {
+						blockCompressor.transform();
+					}
+				} catch (Throwable t) {
+					failPipeline (t);
+				}
+				try {
+					BZip2OutputStream.this.encodeStage.execute (encodeTask);
+				} catch (RuntimeException e) {
+					failPipeline (e);
+					releaseBlock (blockCost);
+				}
+			}
+		};
+
+		try {
+			this.transformStage.execute (transformTask);
+		} catch (RuntimeException e) {
+			releaseBlock (blockCost);
+			throw e;
+		}
+
+	}
+
+
+	/**
+	 * Releases the pipeline's and the memory budget's hold on a block that has been written out or
+	 * discarded
+	 * @param blockCost The cost of the block against the memory budget
+	 */
+	private void releaseBlock (final long blockCost) {
+
+		if (this.memoryBudget != null) {
+			this.memoryBudget.release (blockCost);
+		}
+		this.pipelinePermits.release();
+
+	}
+
+
+	/**
+	 * Records a failure within the pipeline. Blocks that follow a failure are discarded
+	 * @param failure The failure
+	 */
+	private synchronized void failPipeline (final Throwable failure) {
+
+		if (this.pipelineFailure == null) {
+			this.pipelineFailure = failure;
+		}
+
+	}
+
+
+	/**
+	 * Throws the first failure encountered by the pipeline, if any
+	 * @throws IOException if the pipeline has failed
+	 */
+	private void checkPipeline() throws IOException {
+
+		final Throwable failure = this.pipelineFailure;
+
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IOException (failure);
+		}
+
+	}
+
+
+	/**
+	 * In pipelined mode, waits until all blocks held by the pipeline have been written out
+	 * @throws IOException if the pipeline has failed, or the calling thread was interrupted while
+	 *                     waiting
+	 */
+	private void drainPipeline() throws IOException {
+
+		if (this.transformStage != null) {
+			this.pipelinePermits.acquireUninterruptibly (PIPELINE_DEPTH);
+			this.pipelinePermits.release (PIPELINE_DEPTH);
+			checkPipeline();
+		}
+
+	}
+
+
 	/**
 	 * Compresses and writes out any as yet unwritten data, then writes the end of the BZip2 stream.
 	 * The underlying OutputStream is not closed
@@ -168,10 +856,10 @@ public class BZip2OutputStream extends OutputStream {
 			this.streamFinished = true;
 			try {
 				closeBlock();
-				this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_1);
-				this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_2);
-				this.bitOutputStream.writeInteger (this.streamCRC);
-				this.bitOutputStream.flush();
+				drainPipeline();
+				if (this.memberStarted) {
+					writeStreamTrailer();
+				}
 				this.outputStream.flush();
 			} finally {
 				this.blockCompressor = null;
@@ -181,6 +869,189 @@ public class BZip2OutputStream extends OutputStream {
 	}
 
 
+	/**
+	 * Opens an existing BZip2 file for appending. The file's final stream is extended in place:
+	 * the file is truncated at the bit position of that stream's end of stream marker, and the
+	 * returned stream continues writing blocks from that bit alignment, carrying the final
+	 * stream's combined CRC forward. The appended file therefore remains a single BZip2 stream
+	 * (if it was one to begin with), which any decoder reads in full.<br>
+	 * Blocks are appended with the smaller of the options' block size and the block size declared
+	 * by the header of the stream being extended, so that no appended block exceeds the size
+	 * decoders will accept for that stream. To find that header, the compressed data of the final
+	 * stream is scanned backwards for its byte aligned stream and block header markers; it is read
+	 * but neither decompressed nor rewritten, so the cost of an append is the data appended plus
+	 * one sequential read of the final stream.<br>
+	 * <b>Note:</b> As the existing end of stream is removed when this method returns, the file is
+	 * not a valid BZip2 file until the returned stream has been finished or closed
+	 * @param file The file to append to. The file must end with the end of a BZip2 stream
+	 * @param options The compression settings to use
+	 * @return A stream that appends to the file
+	 * @throws IOException if the file does not begin with a valid BZip2 stream header and end with
+	 *                     the end of a BZip2 stream, or on any I/O error reading or writing the file
+	 */
+	public static BZip2OutputStream append (final File file, final Options options) throws IOException {
+
+		if (options == null) {
+			throw new IllegalArgumentException ("Null options");
+		}
+
+		final AppendPosition appendPosition;
+
+		final RandomAccessFile randomAccessFile = new RandomAccessFile (file, "rw");
+		try {
+			final byte[] header = new byte[4];
+			randomAccessFile.readFully (header);
+			if (!isStreamHeader (header, 0)) {
+				throw new BZip2Exception ("Invalid BZip2 header");
+			}
+
+			// The end of stream is an 80 bit marker and CRC, followed by up to 7 bits of zero padding
+			final long length = randomAccessFile.length();
+			final int tailLength = (int)Math.min (length, END_OF_STREAM_SEARCH_LENGTH);
+			final byte[] tail = new byte[tailLength];
+			randomAccessFile.seek (length - tailLength);
+			randomAccessFile.readFully (tail);
+
+			int markerBit = -1;
+			for (int padding = 0; padding < 8; padding++) {
+				final int candidate = (tailLength * 8) - padding - 80;
+				if (
+						   (candidate >= 0)
+						&& (length * 8 - (tailLength * 8 - candidate) >= 32)
+						&& (readBits (tail, candidate, 24) == BZip2Constants.STREAM_END_MARKER_1)
+						&& (readBits (tail, candidate + 24, 24) == BZip2Constants.STREAM_END_MARKER_2)
+						&& (readBits (tail, candidate + 80, padding) == 0))
+				{
+					markerBit = candidate;
+					break;
+				}
+			}
+			if (markerBit < 0) {
+				throw new BZip2Exception ("BZip2 end of stream not found");
+			}
+
+			final long endMarkerBitOffset = ((length - tailLength) * 8) + markerBit;
+			final int blockSizeMultiplier = findFinalStreamBlockSize (randomAccessFile, endMarkerBitOffset);
+
+			appendPosition = new AppendPosition (
+					Math.min (options.blockSizeMultiplier, blockSizeMultiplier),
+					readBits (tail, markerBit + 48, 32),
+					(int)(endMarkerBitOffset & 7),
+					readBits (tail, markerBit & ~7, markerBit & 7)
+			);
+
+			randomAccessFile.setLength (endMarkerBitOffset >>> 3);
+		} finally {
+			randomAccessFile.close();
+		}
+
+		final OutputStream outputStream = new BufferedOutputStream (new FileOutputStream (file, true));
+		return new BZip2OutputStream (outputStream, options, appendPosition);
+
+	}
+
+
+	/**
+	 * Opens an existing BZip2 file for appending, with the block size declared by its final
+	 * stream. See {@link #append(File, Options)}
+	 * @param file The file to append to. The file must end with the end of a BZip2 stream
+	 * @return A stream that appends to the file
+	 * @throws IOException if the file does not end with a valid BZip2 stream, or on any I/O error
+	 *                     reading or writing the file
+	 */
+	public static BZip2OutputStream append (final File file) throws IOException {
+
+		return append (file, new Options());
+
+	}
+
+
+	/**
+	 * Finds the block size declared by the header of a file's final BZip2 stream. Each stream of a
+	 * concatenated file begins on a byte boundary with a stream header, immediately followed by
+	 * either a block header or, for an empty stream, the end of stream marker; the last such
+	 * sequence before the end of stream marker is taken to be the final stream's header
+	 * @param randomAccessFile The file to search
+	 * @param endMarkerBitOffset The bit offset of the final stream's end of stream marker
+	 * @return The final stream's block size as a multiple of 100,000 bytes
+	 * @throws IOException if no stream header is found, or on any I/O error reading the file
+	 */
+	private static int findFinalStreamBlockSize (final RandomAccessFile randomAccessFile, final long endMarkerBitOffset)
+			throws IOException
+	{
+
+		final byte[] buffer = new byte[HEADER_SEARCH_BUFFER_LENGTH];
+
+		// A header may end as late as the end of stream marker of an empty final stream
+		long searchEnd = Math.min (randomAccessFile.length(), (endMarkerBitOffset >>> 3) + 6);
+		while (searchEnd >= STREAM_HEADER_SEQUENCE_LENGTH) {
+			final long searchStart = Math.max (0, searchEnd - buffer.length);
+			final int searchLength = (int)(searchEnd - searchStart);
+			randomAccessFile.seek (searchStart);
+			randomAccessFile.readFully (buffer, 0, searchLength);
+
+			for (int i = searchLength - STREAM_HEADER_SEQUENCE_LENGTH; i >= 0; i--) {
+				if (isStreamHeader (buffer, i)) {
+					final int marker1 = readBits (buffer, (i + 4) * 8, 24);
+					final int marker2 = readBits (buffer, (i + 7) * 8, 24);
+					if (
+							   ((marker1 == BZip2Constants.BLOCK_HEADER_MARKER_1) && (marker2 == BZip2Constants.BLOCK_HEADER_MARKER_2))
+							|| ((marker1 == BZip2Constants.STREAM_END_MARKER_1) && (marker2 == BZip2Constants.STREAM_END_MARKER_2)))
+					{
+						return buffer[i + 3] - '0';
+					}
+				}
+			}
+
+			if (searchStart == 0) {
+				break;
+			}
+			// Overlap successive windows so that a sequence straddling them is not missed
+			searchEnd = searchStart + STREAM_HEADER_SEQUENCE_LENGTH - 1;
+		}
+
+		throw new BZip2Exception ("BZip2 stream header not found");
+
+	}
+
+
+	/**
+	 * Determines whether an array holds a valid BZip2 stream header at a given offset
+	 * @param data The array
+	 * @param offset The byte offset of the candidate header
+	 * @return {@code true} if a stream header with a valid block size is present, otherwise
+	 *         {@code false}
+	 */
+	private static boolean isStreamHeader (final byte[] data, final int offset) {
+
+		final int blockSizeMultiplier = data[offset + 3] - '0';
+
+		return (((data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff)) == BZip2Constants.STREAM_START_MARKER_1)
+				&& ((data[offset + 2] & 0xff) == BZip2Constants.STREAM_START_MARKER_2)
+				&& (blockSizeMultiplier >= 1) && (blockSizeMultiplier <= 9);
+
+	}
+
+
+	/**
+	 * Reads a big-endian bit field from an array
+	 * @param data The array
+	 * @param bitOffset The offset in bits of the field
+	 * @param count The number of bits to read (0-32)
+	 * @return The bits read
+	 */
+	private static int readBits (final byte[] data, final int bitOffset, final int count) {
+
+		int value = 0;
+		for (int i = bitOffset; i < bitOffset + count; i++) {
+			value = (value << 1) | ((data[i >>> 3] >>> (7 - (i & 7))) & 1);
+		}
+
+		return value;
+
+	}
+
+
 	/**
 	 * @param outputStream The output stream to write to
 	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
@@ -190,21 +1061,70 @@ public class BZip2OutputStream extends OutputStream {
 	 */
 	public BZip2OutputStream (final OutputStream outputStream, final int blockSizeMultiplier) throws IOException {
 
+		this (outputStream, new Options().setBlockSizeMultiplier (blockSizeMultiplier));
+
+	}
+
+
+	/**
+	 * @param outputStream The output stream to write to
+	 * @param options The compression settings to use
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public BZip2OutputStream (final OutputStream outputStream, final Options options) throws IOException {
+
+		this (outputStream, options, null);
+
+	}
+
+
+	/**
+	 * @param outputStream The output stream to write to
+	 * @param options The compression settings to use
+	 * @param appendPosition The point at which an existing stream is continued, or {@code null} to
+	 *                       begin a new stream
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	private BZip2OutputStream (final OutputStream outputStream, final Options options, final AppendPosition appendPosition)
+			throws IOException
+	{
+
 		if (outputStream == null) {
 			throw new IllegalArgumentException ("Null output stream");
 		}
 
-		if ((blockSizeMultiplier < 1) || (blockSizeMultiplier > 9)) {
-			throw new IllegalArgumentException ("Invalid BZip2 block size" + blockSizeMultiplier);
+		if (options == null) {
+			throw new IllegalArgumentException ("Null options");
 		}
 
+		final int blockSizeMultiplier = (appendPosition == null) ? options.blockSizeMultiplier : appendPosition.blockSizeMultiplier;
+
 		this.streamBlockSize = blockSizeMultiplier * 100000;
 		this.outputStream = outputStream;
 		this.bitOutputStream = new BZip2BitOutputStream (this.outputStream);
 
-		this.bitOutputStream.writeBits (16, BZip2Constants.STREAM_START_MARKER_1);
-		this.bitOutputStream.writeBits (8,  BZip2Constants.STREAM_START_MARKER_2);
-		this.bitOutputStream.writeBits (8, '0' + blockSizeMultiplier);
+		this.flushPolicy = options.flushPolicy;
+		this.rsyncablePolicy = options.rsyncablePolicy;
+		this.encodedBlockCache = options.encodedBlockCache;
+		this.huffmanWarmStartState = (options.huffmanWarmStart == null) ? null : new BZip2HuffmanWarmStart.State (options.huffmanWarmStart);
+
+		if (appendPosition == null) {
+			writeStreamHeader();
+		} else {
+			this.bitOutputStream.writeBits (appendPosition.leadingBitCount, appendPosition.leadingBits);
+			this.streamCRC = appendPosition.streamCRC;
+			this.memberStarted = true;
+		}
+
+		if (options.executor != null) {
+			this.transformStage = BZip2CodecScheduler.createStage (options.executor, BZip2CodecScheduler.COMPRESSION_WEIGHT);
+			this.encodeStage = BZip2CodecScheduler.createStage (options.executor, BZip2CodecScheduler.COMPRESSION_WEIGHT);
+			this.memoryBudget = options.memoryBudget;
+		} else {
+			this.transformStage = null;
+			this.encodeStage = null;
+			this.memoryBudget = null;
+		}
 
 		initialiseNextBlock();
 
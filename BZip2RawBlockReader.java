@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * <p>Reads the blocks of a BZip2 stream as raw bitstreams, without decoding them, so that they
+ * can be copied unchanged into another stream. Concatenated streams are read in turn as a single
+ * sequence of blocks</p>
+ *
+ * <p>As blocks carry no length, the end of each block is found by scanning for the 48 bit marker
+ * that begins the following block or the end of the stream. A marker pattern may in principle
+ * also occur within a block's compressed data; such a false match would misplace a block
+ * boundary, and so changes the sequence of block CRCs. The combined CRC recomputed from the
+ * block CRCs is therefore compared with the stream CRC stored at the end of each stream, which
+ * verifies the block structure and the block CRCs read from the block headers</p>
+ */
+final class BZip2RawBlockReader {
+
+	/**
+	 * The 48 bit block header marker
+	 */
+	private static final long BLOCK_HEADER_MARKER = ((long)BZip2Constants.BLOCK_HEADER_MARKER_1 << 24) | BZip2Constants.BLOCK_HEADER_MARKER_2;
+
+	/**
+	 * The 48 bit end-of-stream marker
+	 */
+	private static final long STREAM_END_MARKER = ((long)BZip2Constants.STREAM_END_MARKER_1 << 24) | BZip2Constants.STREAM_END_MARKER_2;
+
+	/**
+	 * A mask of the low 48 bits
+	 */
+	private static final long MARKER_MASK = (1L << 48) - 1;
+
+	/**
+	 * Special value for {@link #marker} indicating that no marker has been read
+	 */
+	private static final long NO_MARKER = -1;
+
+	/**
+	 * The stream to read from
+	 */
+	private final InputStream inputStream;
+
+	/**
+	 * Bits read from the input stream but not yet consumed
+	 */
+	private int bitBuffer = 0;
+
+	/**
+	 * The number of bits in {@link #bitBuffer}
+	 */
+	private int bitCount = 0;
+
+	/**
+	 * The block size multiplier declared by the current stream's header
+	 */
+	private int blockSizeMultiplier;
+
+	/**
+	 * A marker that has been read but not yet acted upon, or {@link #NO_MARKER}
+	 */
+	private long marker = NO_MARKER;
+
+	/**
+	 * The CRC of the current block, read from its header
+	 */
+	private int blockCRC;
+
+	/**
+	 * {@code true} if the current block's header has been read and its content has not yet been
+	 * copied
+	 */
+	private boolean blockPending = false;
+
+	/**
+	 * The combined CRC of the current stream's blocks read so far
+	 */
+	private int streamCRC = 0;
+
+
+	/**
+	 * Reads a single bit
+	 * @return The bit read
+	 * @throws IOException if the input stream ends
+	 */
+	private int readBit() throws IOException {
+
+		if (this.bitCount == 0) {
+			final int byteRead = this.inputStream.read();
+			if (byteRead < 0) {
+				throw new BZip2Exception ("Insufficient data");
+			}
+			this.bitBuffer = byteRead;
+			this.bitCount = 8;
+		}
+
+		return (this.bitBuffer >>> --this.bitCount) & 1;
+
+	}
+
+
+	/**
+	 * Reads a big-endian bit field
+	 * @param count The number of bits to read (maximum 48)
+	 * @return The bits read
+	 * @throws IOException if the input stream ends
+	 */
+	private long readBits (final int count) throws IOException {
+
+		long value = 0;
+		for (int i = 0; i < count; i++) {
+			value = (value << 1) | readBit();
+		}
+
+		return value;
+
+	}
+
+
+	/**
+	 * Reads and validates a stream header
+	 * @param firstByte The first byte of the header, already read
+	 * @throws IOException if the header is not valid
+	 */
+	private void readStreamHeader (final int firstByte) throws IOException {
+
+		final int marker1 = (firstByte << 8) | (int)readBits (8);
+		final int marker2 = (int)readBits (8);
+		final int blockSizeMultiplier = (int)readBits (8) - '0';
+
+		if (
+				   (marker1 != BZip2Constants.STREAM_START_MARKER_1)
+				|| (marker2 != BZip2Constants.STREAM_START_MARKER_2)
+				|| (blockSizeMultiplier < 1) || (blockSizeMultiplier > 9))
+		{
+			throw new BZip2Exception ("Invalid BZip2 header");
+		}
+
+		this.blockSizeMultiplier = blockSizeMultiplier;
+		this.streamCRC = 0;
+
+	}
+
+
+	/**
+	 * Advances to the next block, reading its header marker and CRC. The end of each stream is
+	 * verified, and any following concatenated stream is entered, on the way. If the previous
+	 * block has not been copied, it is skipped
+	 * @return {@code true} if a block was found, or {@code false} if the input has ended
+	 * @throws IOException if the input is not a valid sequence of BZip2 streams, or if a stream
+	 *                     CRC check failed
+	 */
+	public boolean nextBlock() throws IOException {
+
+		if (this.blockPending) {
+			copyBlock (null);
+		}
+
+		while (true) {
+			if (this.marker == NO_MARKER) {
+				this.marker = readBits (48);
+			}
+
+			if (this.marker == BLOCK_HEADER_MARKER) {
+				this.marker = NO_MARKER;
+				this.blockCRC = (int)readBits (32);
+				this.streamCRC = ((this.streamCRC << 1) | (this.streamCRC >>> 31)) ^ this.blockCRC;
+				this.blockPending = true;
+				return true;
+			}
+
+			if (this.marker != STREAM_END_MARKER) {
+				throw new BZip2Exception ("BZip2 stream format error");
+			}
+
+			this.marker = NO_MARKER;
+			if ((int)readBits (32) != this.streamCRC) {
+				throw new BZip2Exception ("BZip2 stream CRC error");
+			}
+
+			// Discard the padding that ends the stream, then look for a concatenated stream
+			this.bitCount = 0;
+			final int nextByte = this.inputStream.read();
+			if (nextByte < 0) {
+				return false;
+			}
+			readStreamHeader (nextByte);
+		}
+
+	}
+
+
+	/**
+	 * Copies the current block, from its header marker to the end of its compressed data, to a
+	 * bit stream
+	 * @param bitOutputStream The stream to copy to, or {@code null} to skip the block
+	 * @throws IOException if the input stream ends before the block ends, or on any I/O error
+	 *                     writing the output
+	 */
+	public void copyBlock (final BZip2BitOutputStream bitOutputStream) throws IOException {
+
+		if (!this.blockPending) {
+			throw new IllegalStateException ("No block to copy");
+		}
+		this.blockPending = false;
+
+		if (bitOutputStream != null) {
+			bitOutputStream.writeBits (24, BZip2Constants.BLOCK_HEADER_MARKER_1);
+			bitOutputStream.writeBits (24, BZip2Constants.BLOCK_HEADER_MARKER_2);
+			bitOutputStream.writeInteger (this.blockCRC);
+		}
+
+		// Each bit is written once it has passed through a 48 bit window without the window
+		// matching a marker
+		long window = readBits (48);
+		int outputBits = 0;
+		int outputBitCount = 0;
+		while ((window != BLOCK_HEADER_MARKER) && (window != STREAM_END_MARKER)) {
+			outputBits = (outputBits << 1) | (int)(window >>> 47);
+			if (++outputBitCount == 8) {
+				if (bitOutputStream != null) {
+					bitOutputStream.writeBits (8, outputBits);
+				}
+				outputBits = 0;
+				outputBitCount = 0;
+			}
+			window = ((window << 1) & MARKER_MASK) | readBit();
+		}
+		if ((bitOutputStream != null) && (outputBitCount > 0)) {
+			bitOutputStream.writeBits (outputBitCount, outputBits);
+		}
+
+		this.marker = window;
+
+	}
+
+
+	/**
+	 * @return The block size multiplier declared by the header of the stream containing the
+	 *         current block
+	 */
+	public int getBlockSizeMultiplier() {
+
+		return this.blockSizeMultiplier;
+
+	}
+
+
+	/**
+	 * @return The CRC of the current block, read from its header
+	 */
+	public int getBlockCRC() {
+
+		return this.blockCRC;
+
+	}
+
+
+	/**
+	 * @param inputStream The stream to read from, positioned at the start of a BZip2 stream
+	 * @throws IOException if the stream header is not valid
+	 */
+	public BZip2RawBlockReader (final InputStream inputStream) throws IOException {
+
+		if (inputStream == null) {
+			throw new IllegalArgumentException ("Null input stream");
+		}
+
+		this.inputStream = inputStream;
+
+		final int firstByte = inputStream.read();
+		if (firstByte < 0) {
+			throw new BZip2Exception ("Insufficient data");
+		}
+		readStreamHeader (firstByte);
+
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.IOException;
+
+
+/**
+ * A listener notified by a {@link BZip2InputStream} in recovery mode of each damaged region of
+ * its input that it has skipped
+ */
+public interface BZip2RecoveryListener {
+
+	/**
+	 * Called when a damaged region of the compressed input has been skipped. The decompressed
+	 * output of any blocks within the region is lost; as their lengths cannot be known, the output
+	 * that follows is joined directly to the output that preceded them
+	 * @param uncompressedOffset The offset within the decompressed output at which the lost data
+	 *                           would have appeared
+	 * @param startBitOffset The bit offset within the compressed input of the start of the
+	 *                       damaged region (the header marker of the block that failed)
+	 * @param endBitOffset The bit offset within the compressed input at which decoding resumed
+	 *                     (the next block-header or end-of-stream marker), or of the end of the
+	 *                     input if no further marker was found
+	 * @param cause The error with which the first block of the region failed
+	 */
+	void regionSkipped (long uncompressedOffset, long startBitOffset, long endBitOffset, IOException cause);
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.util.Random;
+
+
+/**
+ * <p>A policy under which BZip2 blocks are ended at content-defined cut points, rather than only
+ * when they are full, so that the unchanged regions of an edited file compress to identical
+ * block bitstreams (as {@code gzip --rsyncable} does for Deflate). This allows rsync and
+ * deduplicating storage to transfer or store only the blocks around an edit</p>
+ *
+ * <p>A block is cut after an input byte at which a rolling hash of the preceding 32 bytes of input
+ * matches a mask, provided that the block has reached a minimum length. Blocks are still cut at
+ * the declared block size if no cut point is found, after which the following cut point brings
+ * the block boundaries back into line with those of the unedited file. Content-defined blocks are
+ * smaller than full blocks on average, so compression is slightly worse</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public class BZip2RsyncablePolicy {
+
+	/**
+	 * The seed from which the {@link #GEAR_TABLE} is generated. Changing this changes every cut
+	 * point
+	 */
+	private static final long GEAR_TABLE_SEED = 0x425a6831L;
+
+	/**
+	 * A random value for each byte value, mixed into the rolling hash by
+	 * {@link #updateHash(int, int)}
+	 */
+	private static final int[] GEAR_TABLE = new int[256];
+
+	static {
+		final Random random = new Random (GEAR_TABLE_SEED);
+		for (int i = 0; i < 256; i++) {
+			GEAR_TABLE[i] = random.nextInt();
+		}
+	}
+
+	/**
+	 * The Run-Length Encoded length that a block must reach before it can be cut
+	 */
+	private final int minimumBlockLength;
+
+	/**
+	 * The mask applied to the rolling hash. A block may be cut where the masked hash is zero. The
+	 * mask selects the hash's high bits, which depend on all 32 bytes of the window; the low bits
+	 * depend only on the most recent few bytes
+	 */
+	private final int cutMask;
+
+
+	/**
+	 * Updates a rolling hash with a byte of input. Each byte's contribution is shifted out of the
+	 * hash after 32 further bytes, so that the hash depends only on the most recent 32 bytes
+	 * @param hash The current hash
+	 * @param value The byte to add
+	 * @return The updated hash
+	 */
+	static int updateHash (final int hash, final int value) {
+
+		return (hash << 1) + GEAR_TABLE[value & 0xff];
+
+	}
+
+
+	/**
+	 * @param hash A rolling hash
+	 * @param blockLength The current Run-Length Encoded length of the block
+	 * @return {@code true} if the block should be cut after the byte that produced the hash
+	 */
+	boolean isCutPoint (final int hash, final int blockLength) {
+
+		return ((hash & this.cutMask) == 0) && (blockLength >= this.minimumBlockLength);
+
+	}
+
+
+	/**
+	 * @return The Run-Length Encoded length that a block must reach before it can be cut
+	 */
+	public int getMinimumBlockLength() {
+
+		return this.minimumBlockLength;
+
+	}
+
+
+	/**
+	 * @return The average number of input bytes between the minimum block length and the cut point
+	 */
+	public int getAverageCutDistance() {
+
+		return 1 << Integer.bitCount (this.cutMask);
+
+	}
+
+
+	/**
+	 * @param minimumBlockLength The Run-Length Encoded length that a block must reach before it
+	 *                           can be cut. This should be well below the declared block size,
+	 *                           or most blocks will be cut only when full
+	 * @param averageCutDistance The average number of input bytes between the minimum block length
+	 *                           and the cut point. Rounded down to a power of two
+	 */
+	public BZip2RsyncablePolicy (final int minimumBlockLength, final int averageCutDistance) {
+
+		if (minimumBlockLength < 0) {
+			throw new IllegalArgumentException ("Invalid minimum block length " + minimumBlockLength);
+		}
+
+		if ((averageCutDistance < 1) || (averageCutDistance > (1 << 30))) {
+			throw new IllegalArgumentException ("Invalid average cut distance " + averageCutDistance);
+		}
+
+		this.minimumBlockLength = minimumBlockLength;
+		this.cutMask = ~(-1 >>> Integer.numberOfTrailingZeros (Integer.highestOneBit (averageCutDistance)));
+
+	}
+
+}
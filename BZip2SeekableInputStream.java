@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+
+
+/**
+ * <p>An InputStream that decompresses a BZip2 file with random access to its decompressed content,
+ * using a {@link BZip2BlockIndex} of the file's blocks</p>
+ *
+ * <p>A call to {@link #seek(long)} locates the block containing the requested offset through the
+ * index, and starts a new {@link BZip2BlockDecompressor} at that block's bit offset within the file.
+ * Only the block containing the requested offset, and any following blocks that are actually read,
+ * are decoded</p>
+ *
+ * <p>Every stream of a file of concatenated BZip2 streams is read, as a single decompressed
+ * file. The CRC of each block is verified when the end of the block is read. The stream CRCs are
+ * not verified, as blocks may be read out of order</p>
+ *
+ * <p>Optionally, a {@link BZip2BlockCache} may be supplied. Whole blocks are then decoded (and
+ * their CRCs verified) into the cache, and reads are served from the cached contents, so that
+ * repeated reads within the same blocks - from this or any other stream sharing the cache - need
+ * not decode them again</p>
+ *
+ * <p>Instances of this class are not threadsafe.</p>
+ */
+public class BZip2SeekableInputStream extends InputStream {
+
+	/**
+	 * The compressed file
+	 */
+	private RandomAccessFile file;
+
+	/**
+	 * The channel of the compressed file
+	 */
+	private FileChannel fileChannel;
+
+	/**
+	 * The index of the compressed file's blocks
+	 */
+	private final BZip2BlockIndex index;
+
+	/**
+	 * A cache of decompressed block contents, or {@code null}
+	 */
+	private final BZip2BlockCache blockCache;
+
+	/**
+	 * The identifier of the file within {@link #blockCache}
+	 */
+	private final Object blockCacheKey;
+
+	/**
+	 * When using the block cache, the decompressed contents of the current block, otherwise
+	 * {@code null}
+	 */
+	private byte[] cachedBlockData;
+
+	/**
+	 * The total decompressed length of the file
+	 */
+	private final long length;
+
+	/**
+	 * The current position within the decompressed content
+	 */
+	private long position = 0;
+
+	/**
+	 * The index of the block held by {@link #blockDecompressor}, or -1 if no block is held
+	 */
+	private int currentBlock = -1;
+
+	/**
+	 * The position within the decompressed content that {@link #blockDecompressor} will return
+	 * next
+	 */
+	private long blockPosition;
+
+	/**
+	 * The decompressor for the current block
+	 */
+	private BZip2BlockDecompressor blockDecompressor;
+
+	/**
+	 * A buffer used to discard decompressed data when seeking forwards within a block
+	 */
+	private byte[] skipBuffer;
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+
+		if (!prepareBlock()) {
+			return -1;
+		}
+
+		if (this.cachedBlockData != null) {
+			final long blockOffset = this.index.getEntry (this.currentBlock).getUncompressedOffset();
+			return this.cachedBlockData[(int)(this.position++ - blockOffset)] & 0xff;
+		}
+
+		final int nextByte = this.blockDecompressor.read();
+		if (nextByte == -1) {
+			throw new BZip2Exception ("BZip2 block does not match index");
+		}
+		this.position++;
+		this.blockPosition++;
+		finishBlockIfComplete();
+
+		return nextByte;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read (final byte[] destination, final int offset, final int length) throws IOException {
+
+		if (length == 0) {
+			return 0;
+		}
+
+		if (!prepareBlock()) {
+			return -1;
+		}
+
+		final BZip2BlockIndex.Entry entry = this.index.getEntry (this.currentBlock);
+		final long blockRemaining = entry.getUncompressedOffset() + entry.getUncompressedLength() - this.position;
+
+		if (this.cachedBlockData != null) {
+			final int bytesRead = (int) Math.min (length, blockRemaining);
+			System.arraycopy (this.cachedBlockData, (int)(this.position - entry.getUncompressedOffset()), destination, offset, bytesRead);
+			this.position += bytesRead;
+			return bytesRead;
+		}
+
+		final int bytesRead = this.blockDecompressor.read (destination, offset, (int) Math.min (length, blockRemaining));
+		if (bytesRead == -1) {
+			throw new BZip2Exception ("BZip2 block does not match index");
+		}
+		this.position += bytesRead;
+		this.blockPosition += bytesRead;
+		finishBlockIfComplete();
+
+		return bytesRead;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#skip(long)
+	 */
+	@Override
+	public long skip (final long count) throws IOException {
+
+		if (count <= 0) {
+			return 0;
+		}
+
+		final long skipped = Math.min (count, this.length - this.position);
+		seek (this.position + skipped);
+
+		return skipped;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available() throws IOException {
+
+		if ((this.blockDecompressor == null) && (this.cachedBlockData == null)) {
+			return 0;
+		}
+
+		final BZip2BlockIndex.Entry entry = this.index.getEntry (this.currentBlock);
+		return (int)(entry.getUncompressedOffset() + entry.getUncompressedLength() - this.position);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (this.file != null) {
+			this.blockDecompressor = null;
+			this.cachedBlockData = null;
+			this.fileChannel = null;
+			try {
+				this.file.close();
+			} finally {
+				this.file = null;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Sets the position within the decompressed content from which the next read will take place.
+	 * No decoding is performed until the next read
+	 * @param position The new position (minimum 0, maximum {@link #length()})
+	 * @throws IOException if the stream has been closed
+	 */
+	public void seek (final long position) throws IOException {
+
+		if (this.file == null) {
+			throw new BZip2Exception ("Stream closed");
+		}
+
+		if ((position < 0) || (position > this.length)) {
+			throw new IllegalArgumentException ("Invalid position " + position);
+		}
+
+		this.position = position;
+
+	}
+
+
+	/**
+	 * @return The current position within the decompressed content
+	 */
+	public long position() {
+
+		return this.position;
+
+	}
+
+
+	/**
+	 * @return The total decompressed length of the file
+	 */
+	public long length() {
+
+		return this.length;
+
+	}
+
+
+	/**
+	 * Ensures that the current block decompressor is positioned to return the byte at the current
+	 * position, starting a new block decompressor if required
+	 * @return {@code true} if the current position is within the decompressed content, or
+	 *         {@code false} if it is at the end
+	 * @throws IOException if the stream has been closed, or if the block could not be decoded
+	 */
+	private boolean prepareBlock() throws IOException {
+
+		if (this.file == null) {
+			throw new BZip2Exception ("Stream closed");
+		}
+
+		if (this.position == this.length) {
+			return false;
+		}
+
+		// When using the block cache, fetch the whole block containing the position
+		if (this.blockCache != null) {
+			final int block = this.index.findBlock (this.position);
+			if ((this.cachedBlockData == null) || (block != this.currentBlock)) {
+				this.cachedBlockData = null;
+				this.cachedBlockData = loadCachedBlock (block);
+				this.currentBlock = block;
+			}
+			return true;
+		}
+
+		// If the position is behind the current block decompressor or outside its block, start a
+		// new decompressor at the required block
+		if ((this.blockDecompressor == null) || (this.position < this.blockPosition)
+				|| (this.index.findBlock (this.position) != this.currentBlock))
+		{
+			this.currentBlock = this.index.findBlock (this.position);
+			this.blockDecompressor = openBlock (this.currentBlock);
+			this.blockPosition = this.index.getEntry (this.currentBlock).getUncompressedOffset();
+		}
+
+		// Discard any decompressed data before the position
+		if (this.blockPosition < this.position) {
+			if (this.skipBuffer == null) {
+				this.skipBuffer = new byte[65536];
+			}
+			while (this.blockPosition < this.position) {
+				final int bytesRead = this.blockDecompressor.read (this.skipBuffer, 0, (int) Math.min (this.skipBuffer.length, this.position - this.blockPosition));
+				if (bytesRead == -1) {
+					throw new BZip2Exception ("BZip2 block does not match index");
+				}
+				this.blockPosition += bytesRead;
+			}
+		}
+
+		return true;
+
+	}
+
+
+	/**
+	 * Verifies the current block's CRC once all of its decompressed content has been read, and
+	 * releases its decompressor
+	 * @throws IOException if the CRC verification failed
+	 */
+	private void finishBlockIfComplete() throws IOException {
+
+		final BZip2BlockIndex.Entry entry = this.index.getEntry (this.currentBlock);
+
+		if (this.blockPosition == entry.getUncompressedOffset() + entry.getUncompressedLength()) {
+			final BZip2BlockDecompressor blockDecompressor = this.blockDecompressor;
+			this.blockDecompressor = null;
+			if ((blockDecompressor.read() != -1) || (blockDecompressor.checkCRC() != entry.getBlockCRC())) {
+				throw new BZip2Exception ("BZip2 block does not match index");
+			}
+		}
+
+	}
+
+
+	/**
+	 * Gets the decompressed contents of a block through the block cache, decoding and verifying the
+	 * block if it is not already cached
+	 * @param block The index of the block
+	 * @return The block's decompressed contents
+	 * @throws IOException if the block could not be decoded, or does not match the index
+	 */
+	private byte[] loadCachedBlock (final int block) throws IOException {
+
+		final BZip2BlockIndex.Entry entry = this.index.getEntry (block);
+
+		return this.blockCache.get (this.blockCacheKey, entry.getBitOffset(), new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				final BZip2BlockDecompressor blockDecompressor = openBlock (block);
+				final byte[] data = new byte[entry.getUncompressedLength()];
+				int bytesRead = 0;
+				while (bytesRead < data.length) {
+					final int count = blockDecompressor.read (data, bytesRead, data.length - bytesRead);
+					if (count == -1) {
+						break;
+					}
+					bytesRead += count;
+				}
+				if ((bytesRead != data.length) || (blockDecompressor.read() != -1) || (blockDecompressor.checkCRC() != entry.getBlockCRC())) {
+					throw new BZip2Exception ("BZip2 block does not match index");
+				}
+				return data;
+			}
+		});
+
+	}
+
+
+	/**
+	 * Starts a new block decompressor at the bit offset of an indexed block
+	 * @param block The index of the block
+	 * @return The block decompressor
+	 * @throws IOException if the block could not be decoded
+	 */
+	private BZip2BlockDecompressor openBlock (final int block) throws IOException {
+
+		final BZip2BlockIndex.Entry entry = this.index.getEntry (block);
+		final long bitOffset = entry.getBitOffset();
+
+		this.fileChannel.position (bitOffset >>> 3);
+		final InputStream inputStream = new BufferedInputStream (Channels.newInputStream (this.fileChannel), 65536);
+		final BZip2BitInputStream bitInputStream = new BZip2BitInputStream (inputStream);
+		bitInputStream.readBits ((int)(bitOffset & 7));
+
+		final int marker1 = bitInputStream.readBits (24);
+		final int marker2 = bitInputStream.readBits (24);
+		if ((marker1 != BZip2Constants.BLOCK_HEADER_MARKER_1) || (marker2 != BZip2Constants.BLOCK_HEADER_MARKER_2)) {
+			throw new BZip2Exception ("BZip2 block does not match index");
+		}
+
+		return new BZip2BlockDecompressor (bitInputStream, this.index.getStream (entry.getStreamIndex()).getStreamBlockSize());
+
+	}
+
+
+	/**
+	 * @param file The compressed file
+	 * @param index The index of the compressed file's blocks
+	 * @param blockCache A cache of decompressed block contents, or {@code null} to decode blocks
+	 *                   directly as they are read. Blocks are cached under the file's canonical
+	 *                   path, length and modification time
+	 * @throws IOException if the index does not match the file, or on any I/O error opening the
+	 *                     file
+	 */
+	public BZip2SeekableInputStream (final File file, final BZip2BlockIndex index, final BZip2BlockCache blockCache) throws IOException {
+
+		if (index == null) {
+			throw new IllegalArgumentException ("Null index");
+		}
+
+		this.file = new RandomAccessFile (file, "r");
+		this.fileChannel = this.file.getChannel();
+		this.index = index;
+		this.length = index.getUncompressedLength();
+		this.blockCache = blockCache;
+		this.blockCacheKey = file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+
+		if (this.file.length() < index.getCompressedLength()) {
+			this.file.close();
+			throw new BZip2Exception ("BZip2 block index does not match file");
+		}
+
+	}
+
+
+	/**
+	 * @param file The compressed file
+	 * @param index The index of the compressed file's blocks
+	 * @throws IOException if the index does not match the file, or on any I/O error opening the
+	 *                     file
+	 */
+	public BZip2SeekableInputStream (final File file, final BZip2BlockIndex index) throws IOException {
+
+		this (file, index, null);
+
+	}
+
+
+	/**
+	 * Opens a compressed file using its sidecar index, building and writing the index first if
+	 * required (see {@link BZip2BlockIndex#forFile(File)})
+	 * @param file The compressed file
+	 * @throws IOException if the compressed data is invalid, or on any I/O error reading the file or
+	 *                     its sidecar index
+	 */
+	public BZip2SeekableInputStream (final File file) throws IOException {
+
+		this (file, BZip2BlockIndex.forFile (file));
+
+	}
+
+}
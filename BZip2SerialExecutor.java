@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+ * An Executor that runs its tasks one at a time, in the order they were submitted, on an underlying
+ * executor. Used to form the ordered stages of a block pipeline from an arbitrary (and possibly
+ * shared) executor<br>
+ * If the underlying executor rejects a task submitted through {@link #execute(Runnable)} while no
+ * other task is queued, the rejection is thrown to the caller. If it instead rejects a queued task
+ * when the task before it finishes, there is no caller to throw to; that task and every task queued
+ * behind it are discarded, and those that implement {@link RejectableTask} are told so. Tasks
+ * submitted afterwards are offered to the underlying executor afresh
+ */
+class BZip2SerialExecutor implements Executor {
+
+	/**
+	 * A task that is notified if it is discarded without being run
+	 */
+	interface RejectableTask extends Runnable {
+
+		/**
+		 * Called, in place of {@link #run()}, when the task has been discarded because the
+		 * underlying executor rejected it or a task queued before it
+		 * @param exception The rejection
+		 */
+		void rejected (RejectedExecutionException exception);
+
+	}
+
+
+	/**
+	 * A submitted task, which submits the next waiting task when it has run
+	 */
+	private final class QueuedTask implements Runnable {
+
+		/**
+		 * The submitted task
+		 */
+		final Runnable task;
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+
+			try {
+				this.task.run();
+			} finally {
+				scheduleNext();
+			}
+
+		}
+
+		/**
+		 * @param task The submitted task
+		 */
+		QueuedTask (final Runnable task) {
+
+			this.task = task;
+
+		}
+
+	}
+
+
+	/**
+	 * The executor on which tasks are run
+	 */
+	private final Executor executor;
+
+	/**
+	 * Tasks waiting to be run
+	 */
+	private final Queue<QueuedTask> tasks = new ArrayDeque<QueuedTask>();
+
+	/**
+	 * The task currently submitted to the underlying executor, or {@code null}
+	 */
+	private QueuedTask activeTask = null;
+
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public synchronized void execute (final Runnable task) {
+
+		if (task == null) {
+			throw new NullPointerException();
+		}
+
+		this.tasks.add (new QueuedTask (task));
+
+		if (this.activeTask == null) {
+			this.activeTask = this.tasks.poll();
+			try {
+				this.executor.execute (this.activeTask);
+			} catch (RejectedExecutionException e) {
+				this.activeTask = null;
+				throw e;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Submits the next waiting task, if any, to the underlying executor. If the underlying executor
+	 * rejects it, it and all the tasks waiting behind it are discarded
+	 */
+	private void scheduleNext() {
+
+		final QueuedTask[] discardedTasks;
+		final RejectedExecutionException rejection;
+
+		synchronized (this) {
+			this.activeTask = this.tasks.poll();
+			if (this.activeTask == null) {
+				return;
+			}
+			try {
+				this.executor.execute (this.activeTask);
+				return;
+			} catch (RejectedExecutionException e) {
+				rejection = e;
+				discardedTasks = new QueuedTask[this.tasks.size() + 1];
+				discardedTasks[0] = this.activeTask;
+				for (int i = 1; i < discardedTasks.length; i++) {
+					discardedTasks[i] = this.tasks.poll();
+				}
+				this.activeTask = null;
+			}
+		}
+
+		// The discarded tasks are notified in order, outside the lock
+		for (final QueuedTask discardedTask : discardedTasks) {
+			if (discardedTask.task instanceof RejectableTask) {
+				((RejectableTask) discardedTask.task).rejected (rejection);
+			}
+		}
+
+	}
+
+
+	/**
+	 * @param executor The executor on which tasks are run
+	 */
+	public BZip2SerialExecutor (final Executor executor) {
+
+		this.executor = executor;
+
+	}
+
+}
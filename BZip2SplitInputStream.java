@@ -0,0 +1,533 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * <p>An InputStream that decompresses the blocks of BZip2 compressed data that begin within a given
+ * byte range, allowing a single compressed file to be divided into splits that are decompressed
+ * independently (for instance, by separate workers of a distributed job)</p>
+ *
+ * <p>Given a split {@code [start, end)}, the stream scans forward from {@code start} at bit
+ * granularity for the first block header marker, then decodes every block whose header marker
+ * begins before bit {@code end * 8}, reading beyond {@code end} as required to complete the last
+ * block. Splits that together cover a file therefore decompress each block exactly once, and the
+ * concatenated output of the splits in order is the decompressed content of the file</p>
+ *
+ * <p>The compressed data may consist of several concatenated BZip2 streams, as written by
+ * {@link BZip2OutputStream#flushBlock()} or by parallel compressors. On reaching the end of a
+ * stream, the header of the following stream is read and its blocks decoded in turn, using that
+ * stream's declared block size. As with the bzip2 tool, data following the last stream that is
+ * not a valid stream header is ignored. The declared block size of the stream containing the
+ * start of a split is not generally known; a first block that cannot be decoded within the block
+ * size given at construction is decoded again within the largest possible block size</p>
+ *
+ * <p>As block header markers are not escaped within compressed data, a match found by scanning may
+ * lie within a block's data. A candidate block that cannot be decoded is assumed to be such a
+ * false match, and scanning resumes immediately after it</p>
+ *
+ * <p>The CRC of each block is verified. As a split does not generally contain a whole stream, the
+ * stream CRCs are not verified</p>
+ *
+ * <p>Instances of this class are not threadsafe.</p>
+ */
+public class BZip2SplitInputStream extends InputStream {
+
+	/**
+	 * The largest declared block size of any BZip2 stream
+	 */
+	private static final int MAXIMUM_BLOCK_SIZE = 900000;
+
+	/**
+	 * The stream from which compressed BZip2 data is read, positioned initially at the start of
+	 * the split
+	 */
+	private BufferedInputStream inputStream;
+
+	/**
+	 * An InputStream wrapper that provides bit-level reads
+	 */
+	private BZip2BitInputStream bitInputStream;
+
+	/**
+	 * The bit offset within the compressed data of the first bit read by {@link #bitInputStream}
+	 */
+	private long bitInputBase;
+
+	/**
+	 * The byte offset within the compressed data of the start of the split
+	 */
+	private final long start;
+
+	/**
+	 * The byte offset within the compressed data of the end of the split
+	 */
+	private final long end;
+
+	/**
+	 * The declared block size of the current stream, or the block size within which blocks are
+	 * decoded if it is not known
+	 */
+	private int streamBlockSize;
+
+	/**
+	 * {@code true} if {@link #streamBlockSize} is the declared block size of the current stream,
+	 * read from its header
+	 */
+	private boolean streamBlockSizeKnown;
+
+	/**
+	 * {@code true} if the first block of the split has been located
+	 */
+	private boolean splitStarted = false;
+
+	/**
+	 * {@code true} if the last block of the split has been read
+	 */
+	private boolean splitComplete = false;
+
+	/**
+	 * The decompressor for the current block
+	 */
+	private BZip2BlockDecompressor blockDecompressor = null;
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+
+		int nextByte = -1;
+		if (this.blockDecompressor != null) {
+			nextByte = this.blockDecompressor.read();
+		}
+
+		if (nextByte == -1) {
+			if (initialiseNextBlock()) {
+				nextByte = this.blockDecompressor.read();
+			}
+		}
+
+		return nextByte;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read (final byte[] destination, final int offset, final int length) throws IOException {
+
+		int bytesRead = -1;
+		if (this.blockDecompressor != null) {
+			bytesRead = this.blockDecompressor.read (destination, offset, length);
+		}
+
+		if (bytesRead == -1) {
+			if (initialiseNextBlock()) {
+				bytesRead = this.blockDecompressor.read (destination, offset, length);
+			}
+		}
+
+		return bytesRead;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (this.inputStream != null) {
+			this.splitComplete = true;
+			this.blockDecompressor = null;
+			this.bitInputStream = null;
+
+			try {
+				this.inputStream.close();
+			} finally {
+				this.inputStream = null;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Gets the current position within the compressed data, for instance for progress reporting.
+	 * The position may lie beyond the end of the split while its last block is read
+	 * @return The byte offset within the compressed data of the next byte to be read
+	 */
+	public long getCompressedPosition() {
+
+		return this.splitStarted ? ((this.bitInputBase + this.bitInputStream.getBitPosition() + 7) >>> 3) : this.start;
+
+	}
+
+
+	/**
+	 * Prepares a new block for decompression if any remain in the split. If a previous block has
+	 * completed, its CRC is checked
+	 * @return {@code true} if a block was successfully initialised, or {@code false} if the end of
+	 *         the split has been reached
+	 * @throws IOException if the block CRC check failed, or if the following block could not be
+	 *                     decoded
+	 */
+	private boolean initialiseNextBlock() throws IOException {
+
+		if (this.inputStream == null) {
+			throw new BZip2Exception ("Stream closed");
+		}
+
+		if (this.splitComplete) {
+			return false;
+		}
+
+		if (this.blockDecompressor != null) {
+			this.blockDecompressor.checkCRC();
+			this.blockDecompressor = null;
+		}
+
+		try {
+			this.blockDecompressor = this.splitStarted ? readNextBlock() : findFirstBlock();
+			this.splitStarted = true;
+		} catch (IOException e) {
+			// If the block could not be decoded, stop trying to read more data
+			this.splitComplete = true;
+			throw e;
+		}
+
+		if (this.blockDecompressor == null) {
+			this.splitComplete = true;
+			return false;
+		}
+
+		return true;
+
+	}
+
+
+	/**
+	 * Reads the marker following a completed block, and if it is a block header marker that begins
+	 * within the split, decodes the block. At the end of a stream, continues with the following
+	 * stream, if any
+	 * @return The decompressor for the block, or {@code null} if the end of the split or the end of
+	 *         the last stream has been reached
+	 * @throws IOException if the following data is not a valid block-header or end-of-stream
+	 *                     marker, or if the following block could not be decoded
+	 */
+	private BZip2BlockDecompressor readNextBlock() throws IOException {
+
+		for (;;) {
+			final long markerBitOffset = this.bitInputBase + this.bitInputStream.getBitPosition();
+			final int marker1 = this.bitInputStream.readBits (24);
+			final int marker2 = this.bitInputStream.readBits (24);
+
+			if (marker1 == BZip2Constants.BLOCK_HEADER_MARKER_1 && marker2 == BZip2Constants.BLOCK_HEADER_MARKER_2) {
+				if (markerBitOffset >= (this.end << 3)) {
+					return null;
+				}
+				return new BZip2BlockDecompressor (this.bitInputStream, this.streamBlockSize);
+			} else if (marker1 == BZip2Constants.STREAM_END_MARKER_1 && marker2 == BZip2Constants.STREAM_END_MARKER_2) {
+				// The stream CRC is not verified
+				this.bitInputStream.readInteger();
+				if (!readNextStreamHeader()) {
+					return null;
+				}
+			} else {
+				throw new BZip2Exception ("BZip2 stream format error");
+			}
+		}
+
+	}
+
+
+	/**
+	 * Reads the header of a further stream concatenated after the end of the current stream
+	 * @return {@code true} if a stream header was read, or {@code false} if no further data
+	 *         follows the current stream, or the data that follows is not a stream header
+	 * @throws IOException on any I/O error reading the compressed data
+	 */
+	private boolean readNextStreamHeader() throws IOException {
+
+		// Each stream is padded to a whole number of bytes
+		this.bitInputStream.alignToByte();
+		if (!this.bitInputStream.hasMoreData()) {
+			return false;
+		}
+
+		final int blockSizeMultiplier;
+		try {
+			blockSizeMultiplier = readStreamHeader (this.bitInputStream);
+		} catch (BZip2Exception e) {
+			return false;
+		}
+
+		this.streamBlockSize = blockSizeMultiplier * 100000;
+		this.streamBlockSizeKnown = true;
+
+		return true;
+
+	}
+
+
+	/**
+	 * Scans forward from the start of the split for the first block header marker that begins
+	 * within the split and is followed by a decodable block
+	 * @return The decompressor for the first block, or {@code null} if no block begins within the
+	 *         split
+	 * @throws IOException on any I/O error reading the compressed data
+	 */
+	private BZip2BlockDecompressor findFirstBlock() throws IOException {
+
+		final long startBitOffset = this.start << 3;
+		final long endBitOffset = this.end << 3;
+		long scanBitOffset = startBitOffset;
+		boolean retryAtMaximum = false;
+
+		for (;;) {
+
+			// Return to the start of the split, then skip forward to the scan position
+			this.inputStream.reset();
+			long bytesToSkip = (scanBitOffset - startBitOffset) >>> 3;
+			while (bytesToSkip > 0) {
+				final long skipped = this.inputStream.skip (bytesToSkip);
+				if (skipped <= 0) {
+					return null;
+				}
+				bytesToSkip -= skipped;
+			}
+			this.bitInputStream = new BZip2BitInputStream (this.inputStream);
+			this.bitInputBase = scanBitOffset & ~7L;
+			this.bitInputStream.readBits ((int)(scanBitOffset & 7));
+
+			final boolean blockHeaderFound;
+			try {
+				blockHeaderFound = this.bitInputStream.readToNextMarker();
+			} catch (BZip2Exception e) {
+				// No marker before the end of the stream
+				return null;
+			}
+
+			final long markerBitOffset = this.bitInputBase + this.bitInputStream.getBitPosition() - 48;
+			if (markerBitOffset >= endBitOffset) {
+				return null;
+			}
+
+			if (blockHeaderFound) {
+				final int blockSize = retryAtMaximum ? MAXIMUM_BLOCK_SIZE : this.streamBlockSize;
+				try {
+					final BZip2BlockDecompressor blockDecompressor = new BZip2BlockDecompressor (this.bitInputStream, blockSize);
+					this.streamBlockSize = blockSize;
+					return blockDecompressor;
+				} catch (BZip2Exception e) {
+					// Either a false match within a block's data, or a block of a stream of unknown
+					// declared block size that is larger than assumed
+					if (!retryAtMaximum && !this.streamBlockSizeKnown && (blockSize < MAXIMUM_BLOCK_SIZE)) {
+						retryAtMaximum = true;
+						scanBitOffset = markerBitOffset;
+						continue;
+					}
+				}
+			} else {
+				final int nextBlockSizeMultiplier = readStreamBoundary();
+				if (nextBlockSizeMultiplier == 0) {
+					return null;
+				}
+				if (nextBlockSizeMultiplier > 0) {
+					// Continue scanning from the first marker of the following stream
+					this.streamBlockSize = nextBlockSizeMultiplier * 100000;
+					this.streamBlockSizeKnown = true;
+					scanBitOffset = this.bitInputBase + this.bitInputStream.getBitPosition();
+					retryAtMaximum = false;
+					continue;
+				}
+			}
+
+			scanBitOffset = markerBitOffset + 1;
+			retryAtMaximum = false;
+
+		}
+
+	}
+
+
+	/**
+	 * Determines whether an end-of-stream marker that has just been read is genuine, that is,
+	 * whether it is followed by a stream CRC, zero padding to a whole byte, and either the end of
+	 * the compressed data or the header of a following stream. If a following stream header is
+	 * found, it is read
+	 * @return {@code 0} if the end of the compressed data follows the marker, the following
+	 *         stream's declared block size as a multiple of 100,000 bytes if a stream header
+	 *         follows it, or {@code -1} if the marker is not genuine
+	 * @throws IOException on any I/O error reading the compressed data
+	 */
+	private int readStreamBoundary() throws IOException {
+
+		try {
+			this.bitInputStream.readInteger();
+			final int paddingBits = (int)((8 - ((this.bitInputBase + this.bitInputStream.getBitPosition()) & 7)) & 7);
+			if (this.bitInputStream.readBits (paddingBits) != 0) {
+				return -1;
+			}
+			if (!this.bitInputStream.hasMoreData()) {
+				return 0;
+			}
+			return readStreamHeader (this.bitInputStream);
+		} catch (BZip2Exception e) {
+			return -1;
+		}
+
+	}
+
+
+	/**
+	 * @param inputStream The stream from which compressed BZip2 data is read, positioned at the
+	 *                    start of the split
+	 * @param start The byte offset within the compressed data of the start of the split
+	 * @param end The byte offset within the compressed data of the end of the split
+	 * @param blockSizeMultiplier The declared block size of the stream containing the start of the
+	 *                            split, as a multiple of 100,000 bytes (read from the fourth byte
+	 *                            of the stream header). For a file of a single stream, or of
+	 *                            streams with the same block size, this is the block size of the
+	 *                            first stream
+	 */
+	public BZip2SplitInputStream (final InputStream inputStream, final long start, final long end, final int blockSizeMultiplier) {
+
+		if (inputStream == null) {
+			throw new IllegalArgumentException ("Null input stream");
+		}
+
+		if ((start < 0) || (end < start)) {
+			throw new IllegalArgumentException ("Invalid split " + start + " - " + end);
+		}
+
+		if ((blockSizeMultiplier < 1) || (blockSizeMultiplier > 9)) {
+			throw new IllegalArgumentException ("Invalid BZip2 block size " + blockSizeMultiplier);
+		}
+
+		this.streamBlockSize = blockSizeMultiplier * 100000;
+		this.streamBlockSizeKnown = (start == 0);
+		this.start = start;
+		this.end = end;
+
+		// Scanning from the start of the split for the first block may need to return there, after
+		// passing over up to one complete block before the first marker, then attempting to decode
+		// a false match. Neither can be longer than the longest possible compressed block
+		this.inputStream = new BufferedInputStream (inputStream, 65536);
+		this.inputStream.mark (2 * BZip2Constants.MAXIMUM_COMPRESSED_BLOCK_SIZE);
+
+	}
+
+
+	/**
+	 * Opens a split of a compressed file, reading the declared block size from the file's first
+	 * stream header
+	 * @param file The compressed file
+	 * @param start The byte offset within the file of the start of the split
+	 * @param end The byte offset within the file of the end of the split
+	 * @throws IOException if the file does not begin with a valid BZip2 stream header, or on any I/O
+	 *                     error reading the file
+	 */
+	public BZip2SplitInputStream (final File file, final long start, final long end) throws IOException {
+
+		this (openAt (file, start), start, end, readBlockSizeMultiplier (file));
+
+	}
+
+
+	/**
+	 * Reads the declared block size from a compressed file's stream header
+	 * @param file The compressed file
+	 * @return The declared block size, as a multiple of 100,000 bytes
+	 * @throws IOException if the file does not begin with a valid BZip2 stream header, or on any I/O
+	 *                     error reading the file
+	 */
+	private static int readBlockSizeMultiplier (final File file) throws IOException {
+
+		final InputStream inputStream = new FileInputStream (file);
+		try {
+			return readStreamHeader (new BZip2BitInputStream (inputStream));
+		} finally {
+			inputStream.close();
+		}
+
+	}
+
+
+	/**
+	 * Reads a stream header
+	 * @param bitInputStream The stream to read from
+	 * @return The declared block size, as a multiple of 100,000 bytes
+	 * @throws IOException if the stream header is not valid
+	 */
+	private static int readStreamHeader (final BZip2BitInputStream bitInputStream) throws IOException {
+
+		final int marker1 = bitInputStream.readBits (16);
+		final int marker2 = bitInputStream.readBits (8);
+		final int blockSize = (bitInputStream.readBits (8) - '0');
+
+		if ((marker1 != BZip2Constants.STREAM_START_MARKER_1) || (marker2 != BZip2Constants.STREAM_START_MARKER_2)
+				|| (blockSize < 1) || (blockSize > 9))
+		{
+			throw new BZip2Exception ("Invalid BZip2 header");
+		}
+
+		return blockSize;
+
+	}
+
+
+	/**
+	 * Opens a file positioned at a given offset
+	 * @param file The file
+	 * @param offset The offset
+	 * @return The opened stream
+	 * @throws IOException on any I/O error opening the file
+	 */
+	private static InputStream openAt (final File file, final long offset) throws IOException {
+
+		final FileInputStream inputStream = new FileInputStream (file);
+		try {
+			inputStream.getChannel().position (offset);
+		} catch (IOException e) {
+			inputStream.close();
+			throw e;
+		}
+
+		return inputStream;
+
+	}
+
+}
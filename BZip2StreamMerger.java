@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+
+/**
+ * <p>Joins BZip2 streams into a single stream without recompressing them. The raw bitstream of
+ * each input block is copied to the output at whatever bit alignment the output has reached, and
+ * a new combined stream CRC is calculated from the block CRCs in the same way as
+ * {@link BZip2OutputStream} does</p>
+ *
+ * <p>Each input's structure and block CRCs are verified against its stored stream CRC as it is
+ * copied (see {@link BZip2RawBlockReader}); the blocks' contents are not decoded. Inputs whose
+ * declared block size is greater than the output's are rejected, as the output's declared block
+ * size bounds the memory a decompressor allocates for every block. Inputs with a smaller block
+ * size are accepted. If an input is rejected or found to be invalid, some of its blocks may
+ * already have been written, and the output should be discarded</p>
+ *
+ * <p>Instances of this class are not threadsafe.</p>
+ */
+public class BZip2StreamMerger {
+
+	/**
+	 * The stream to which the merged stream is written
+	 */
+	private OutputStream outputStream;
+
+	/**
+	 * An OutputStream wrapper providing bit-level writes
+	 */
+	private final BZip2BitOutputStream bitOutputStream;
+
+	/**
+	 * The block size multiplier declared by the output stream
+	 */
+	private final int blockSizeMultiplier;
+
+	/**
+	 * The combined CRC of the blocks written so far
+	 */
+	private int streamCRC = 0;
+
+	/**
+	 * The number of blocks written so far
+	 */
+	private long blockCount = 0;
+
+	/**
+	 * {@code true} once the end of the merged stream has been written
+	 */
+	private boolean streamFinished = false;
+
+
+	/**
+	 * Merges BZip2 files into a single BZip2 file. The output's block size is the greatest of
+	 * those declared by the inputs' (first) stream headers
+	 * @param inputs The files to merge, in order
+	 * @param output The file to write
+	 * @throws IOException if any input is not a valid BZip2 file, or on any I/O error
+	 */
+	public static void merge (final List<File> inputs, final File output) throws IOException {
+
+		int blockSizeMultiplier = 1;
+		for (File input : inputs) {
+			final InputStream inputStream = new FileInputStream (input);
+			try {
+				blockSizeMultiplier = Math.max (blockSizeMultiplier, new BZip2RawBlockReader (inputStream).getBlockSizeMultiplier());
+			} finally {
+				inputStream.close();
+			}
+		}
+
+		final BZip2StreamMerger merger = new BZip2StreamMerger (new BufferedOutputStream (new FileOutputStream (output)), blockSizeMultiplier);
+		try {
+			for (File input : inputs) {
+				final InputStream inputStream = new BufferedInputStream (new FileInputStream (input));
+				try {
+					merger.append (inputStream);
+				} finally {
+					inputStream.close();
+				}
+			}
+		} finally {
+			merger.close();
+		}
+
+	}
+
+
+	/**
+	 * Copies every block of a BZip2 input to the merged stream. Concatenated streams within the
+	 * input are merged in turn
+	 * @param inputStream The input, positioned at the start of a BZip2 stream. The stream is read
+	 *                    to its end but not closed
+	 * @throws IOException if the input is not valid, if it declares a greater block size than the
+	 *                     merged stream, or on any I/O error
+	 */
+	public void append (final InputStream inputStream) throws IOException {
+
+		if (this.streamFinished) {
+			throw new IllegalStateException ("Merged stream already finished");
+		}
+
+		final BZip2RawBlockReader reader = new BZip2RawBlockReader (inputStream);
+		while (reader.nextBlock()) {
+			if (reader.getBlockSizeMultiplier() > this.blockSizeMultiplier) {
+				throw new BZip2Exception ("Input block size " + reader.getBlockSizeMultiplier() + "00k exceeds merged block size "
+						+ this.blockSizeMultiplier + "00k");
+			}
+			reader.copyBlock (this.bitOutputStream);
+			final int blockCRC = reader.getBlockCRC();
+			this.streamCRC = ((this.streamCRC << 1) | (this.streamCRC >>> 31)) ^ blockCRC;
+			this.blockCount++;
+		}
+
+	}
+
+
+	/**
+	 * @return The number of blocks written so far
+	 */
+	public long getBlockCount() {
+
+		return this.blockCount;
+
+	}
+
+
+	/**
+	 * Writes the end of the merged stream. The underlying OutputStream is not closed
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public void finish() throws IOException {
+
+		if (!this.streamFinished) {
+			this.streamFinished = true;
+			this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_1);
+			this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_2);
+			this.bitOutputStream.writeInteger (this.streamCRC);
+			this.bitOutputStream.flush();
+			this.outputStream.flush();
+		}
+
+	}
+
+
+	/**
+	 * Finishes the merged stream and closes the underlying OutputStream
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public void close() throws IOException {
+
+		if (this.outputStream != null) {
+			try {
+				finish();
+				this.outputStream.close();
+			} finally {
+				this.outputStream = null;
+			}
+		}
+
+	}
+
+
+	/**
+	 * @param outputStream The stream to write the merged stream to
+	 * @param blockSizeMultiplier The block size declared by the merged stream, as a multiple of
+	 *                            100,000 bytes (minimum 1, maximum 9). Inputs with a greater block
+	 *                            size are rejected
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public BZip2StreamMerger (final OutputStream outputStream, final int blockSizeMultiplier) throws IOException {
+
+		if (outputStream == null) {
+			throw new IllegalArgumentException ("Null output stream");
+		}
+
+		if ((blockSizeMultiplier < 1) || (blockSizeMultiplier > 9)) {
+			throw new IllegalArgumentException ("Invalid BZip2 block size " + blockSizeMultiplier);
+		}
+
+		this.outputStream = outputStream;
+		this.bitOutputStream = new BZip2BitOutputStream (outputStream);
+		this.blockSizeMultiplier = blockSizeMultiplier;
+
+		this.bitOutputStream.writeBits (16, BZip2Constants.STREAM_START_MARKER_1);
+		this.bitOutputStream.writeBits (8,  BZip2Constants.STREAM_START_MARKER_2);
+		this.bitOutputStream.writeBits (8, '0' + blockSizeMultiplier);
+
+	}
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * <p>Cuts a BZip2 stream at block boundaries into standalone BZip2 streams (chunks) of roughly
+ * equal compressed length, without decompressing or recompressing it. The raw bitstream of each
+ * block is copied into a chunk with a fresh stream header, and each chunk ends with a trailer
+ * whose combined CRC is recalculated from the CRCs of the blocks it contains</p>
+ *
+ * <p>A chunk is ended once its length reaches the target length, so chunks are longer than the
+ * target by up to one compressed block. A chunk declares the block size of the input stream its
+ * first block came from; if the input contains concatenated streams, a chunk is also ended
+ * before any block from a stream declaring a greater block size</p>
+ *
+ * <p>The input's structure and block CRCs are verified against its stored stream CRC (see
+ * {@link BZip2RawBlockReader}), but as this is only possible once the end of the input stream is
+ * reached, chunks preceding a verification failure will already have been written.</p>
+ *
+ * <p>Instances of this class are not threadsafe.</p>
+ */
+public class BZip2StreamSplitter {
+
+	/**
+	 * An OutputStream wrapper that counts the bytes written through it
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		/**
+		 * The number of bytes written
+		 */
+		private long count = 0;
+
+		/* (non-Javadoc)
+		 * @see java.io.FilterOutputStream#write(int)
+		 */
+		@Override
+		public void write (final int value) throws IOException {
+
+			this.out.write (value);
+			this.count++;
+
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.FilterOutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write (final byte[] data, final int offset, final int length) throws IOException {
+
+			this.out.write (data, offset, length);
+			this.count += length;
+
+		}
+
+		/**
+		 * @param outputStream The stream to write to
+		 */
+		public CountingOutputStream (final OutputStream outputStream) {
+
+			super (outputStream);
+
+		}
+
+	}
+
+
+	/**
+	 * The reader of the input's raw blocks
+	 */
+	private final BZip2RawBlockReader reader;
+
+	/**
+	 * The compressed length at or above which a chunk is ended
+	 */
+	private final long targetChunkLength;
+
+	/**
+	 * {@code true} if the reader is positioned at a block that has not yet been copied
+	 */
+	private boolean blockAvailable;
+
+
+	/**
+	 * Splits a BZip2 file into chunk files. For an input named {@code name.bz2}, the chunks are
+	 * named {@code name.00000.bz2}, {@code name.00001.bz2} and so on. An input containing no
+	 * blocks produces no chunks
+	 * @param input The file to split
+	 * @param targetChunkLength The compressed length in bytes at or above which a chunk is ended
+	 * @param outputDirectory The directory in which to write the chunks
+	 * @return The chunk files written, in order
+	 * @throws IOException if the input is not a valid BZip2 file, or on any I/O error
+	 */
+	public static List<File> split (final File input, final long targetChunkLength, final File outputDirectory) throws IOException {
+
+		final String name = input.getName();
+		final String baseName = name.endsWith (".bz2") ? name.substring (0, name.length() - 4) : name;
+		final List<File> chunks = new ArrayList<File>();
+
+		final InputStream inputStream = new BufferedInputStream (new FileInputStream (input));
+		try {
+			final BZip2StreamSplitter splitter = new BZip2StreamSplitter (inputStream, targetChunkLength);
+			while (splitter.hasNextChunk()) {
+				final File chunk = new File (outputDirectory, String.format ("%s.%05d.bz2", baseName, chunks.size()));
+				final OutputStream outputStream = new BufferedOutputStream (new FileOutputStream (chunk));
+				try {
+					chunks.add (chunk);
+					splitter.nextChunk (outputStream);
+				} finally {
+					outputStream.close();
+				}
+			}
+		} finally {
+			inputStream.close();
+		}
+
+		return chunks;
+
+	}
+
+
+	/**
+	 * @return {@code true} if any blocks remain to be written to chunks
+	 */
+	public boolean hasNextChunk() {
+
+		return this.blockAvailable;
+
+	}
+
+
+	/**
+	 * Writes the next chunk as a complete BZip2 stream
+	 * @param outputStream The stream to write the chunk to. The stream is not closed
+	 * @return {@code true} if a chunk was written, or {@code false} if no blocks remain
+	 * @throws IOException if the input is not valid, or on any I/O error
+	 */
+	public boolean nextChunk (final OutputStream outputStream) throws IOException {
+
+		if (!this.blockAvailable) {
+			return false;
+		}
+
+		final CountingOutputStream countingOutputStream = new CountingOutputStream (outputStream);
+		final BZip2BitOutputStream bitOutputStream = new BZip2BitOutputStream (countingOutputStream);
+		final int blockSizeMultiplier = this.reader.getBlockSizeMultiplier();
+
+		bitOutputStream.writeBits (16, BZip2Constants.STREAM_START_MARKER_1);
+		bitOutputStream.writeBits (8,  BZip2Constants.STREAM_START_MARKER_2);
+		bitOutputStream.writeBits (8, '0' + blockSizeMultiplier);
+
+		int streamCRC = 0;
+		do {
+			this.reader.copyBlock (bitOutputStream);
+			final int blockCRC = this.reader.getBlockCRC();
+			streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ blockCRC;
+			this.blockAvailable = this.reader.nextBlock();
+		} while (
+				   this.blockAvailable
+				&& (countingOutputStream.count < this.targetChunkLength)
+				&& (this.reader.getBlockSizeMultiplier() <= blockSizeMultiplier));
+
+		bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_1);
+		bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_2);
+		bitOutputStream.writeInteger (streamCRC);
+		bitOutputStream.flush();
+		outputStream.flush();
+
+		return true;
+
+	}
+
+
+	/**
+	 * @param inputStream The stream to split, positioned at the start of a BZip2 stream.
+	 *                    Concatenated streams are split as a single sequence of blocks. The stream
+	 *                    is not closed
+	 * @param targetChunkLength The compressed length in bytes at or above which a chunk is ended
+	 * @throws IOException if the stream does not begin with a valid BZip2 stream header and block
+	 *                     or end-of-stream marker
+	 */
+	public BZip2StreamSplitter (final InputStream inputStream, final long targetChunkLength) throws IOException {
+
+		if (targetChunkLength < 1) {
+			throw new IllegalArgumentException ("Invalid target chunk length " + targetChunkLength);
+		}
+
+		this.reader = new BZip2RawBlockReader (inputStream);
+		this.targetChunkLength = targetChunkLength;
+		this.blockAvailable = this.reader.nextBlock();
+
+	}
+
+}
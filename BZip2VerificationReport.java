@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * <p>The result of verifying BZip2 compressed data with a {@link BZip2Verifier}: each block and
+ * stream found, with its position, size and any failure</p>
+ */
+public class BZip2VerificationReport {
+
+	/**
+	 * The verification result of a block
+	 */
+	public static final class Block {
+
+		/**
+		 * The index of the stream containing the block
+		 */
+		private final int streamIndex;
+
+		/**
+		 * The bit offset of the block's header marker within the compressed data
+		 */
+		private final long bitOffset;
+
+		/**
+		 * The length of the block in bits
+		 */
+		private long bitLength;
+
+		/**
+		 * The decoded length of the block in bytes, once verified
+		 */
+		private long decodedLength = -1;
+
+		/**
+		 * The error with which the block failed, or {@code null}
+		 */
+		private IOException failure = null;
+
+
+		/**
+		 * @return The index of the stream containing the block
+		 */
+		public int getStreamIndex() {
+
+			return this.streamIndex;
+
+		}
+
+
+		/**
+		 * @return The bit offset of the block's header marker within the compressed data
+		 */
+		public long getBitOffset() {
+
+			return this.bitOffset;
+
+		}
+
+
+		/**
+		 * @return The length of the block in bits. For a block that could not be decoded, the
+		 *         length of the damaged region up to the next marker or the end of the data
+		 */
+		public long getBitLength() {
+
+			return this.bitLength;
+
+		}
+
+
+		/**
+		 * @return The decoded length of the block in bytes, or {@code -1} if the block could not be
+		 *         decoded
+		 */
+		public long getDecodedLength() {
+
+			return this.decodedLength;
+
+		}
+
+
+		/**
+		 * @return The error with which the block failed, or {@code null} if the block is valid
+		 */
+		public IOException getFailure() {
+
+			return this.failure;
+
+		}
+
+
+		/**
+		 * @return {@code true} if the block was decoded and passed CRC verification
+		 */
+		public boolean isValid() {
+
+			return this.failure == null;
+
+		}
+
+
+		/**
+		 * Records the block's verified decoded length
+		 * @param decodedLength The decoded length of the block in bytes
+		 */
+		void setDecodedLength (final long decodedLength) {
+
+			this.decodedLength = decodedLength;
+
+		}
+
+
+		/**
+		 * Records the block's failure
+		 * @param failure The error with which the block failed
+		 */
+		void setFailure (final IOException failure) {
+
+			this.failure = failure;
+
+		}
+
+
+		/**
+		 * @param bitLength The length of the block in bits
+		 */
+		void setBitLength (final long bitLength) {
+
+			this.bitLength = bitLength;
+
+		}
+
+
+		/**
+		 * @param streamIndex The index of the stream containing the block
+		 * @param bitOffset The bit offset of the block's header marker within the compressed data
+		 */
+		Block (final int streamIndex, final long bitOffset) {
+
+			this.streamIndex = streamIndex;
+			this.bitOffset = bitOffset;
+
+		}
+
+	}
+
+
+	/**
+	 * The verification result of a stream
+	 */
+	public static final class Stream {
+
+		/**
+		 * The bit offset of the stream's header within the compressed data
+		 */
+		private final long bitOffset;
+
+		/**
+		 * {@code true} if the stream's end-of-stream marker was read
+		 */
+		private boolean complete = false;
+
+		/**
+		 * {@code true} if a region of the stream had to be skipped
+		 */
+		private boolean damaged = false;
+
+		/**
+		 * The stream CRC read from the end of the stream
+		 */
+		private int storedCRC;
+
+		/**
+		 * The stream CRC calculated from the CRCs of the stream's blocks
+		 */
+		private int calculatedCRC;
+
+
+		/**
+		 * @return The bit offset of the stream's header within the compressed data
+		 */
+		public long getBitOffset() {
+
+			return this.bitOffset;
+
+		}
+
+
+		/**
+		 * @return {@code true} if the stream's end-of-stream marker was read
+		 */
+		public boolean isComplete() {
+
+			return this.complete;
+
+		}
+
+
+		/**
+		 * @return {@code true} if a region of the stream could not be decoded and was skipped
+		 */
+		public boolean isDamaged() {
+
+			return this.damaged;
+
+		}
+
+
+		/**
+		 * @return The stream CRC read from the end of the stream. Only valid if the stream is
+		 *         complete
+		 */
+		public int getStoredCRC() {
+
+			return this.storedCRC;
+
+		}
+
+
+		/**
+		 * @return The stream CRC calculated from the CRCs of the stream's blocks
+		 */
+		public int getCalculatedCRC() {
+
+			return this.calculatedCRC;
+
+		}
+
+
+		/**
+		 * @return {@code true} if the stream is complete and undamaged, and its stored CRC matches
+		 *         that calculated from its blocks
+		 */
+		public boolean isValid() {
+
+			return this.complete && !this.damaged && (this.storedCRC == this.calculatedCRC);
+
+		}
+
+
+		/**
+		 * Records that a region of the stream was skipped
+		 */
+		void setDamaged() {
+
+			this.damaged = true;
+
+		}
+
+
+		/**
+		 * Records the end of the stream
+		 * @param storedCRC The stream CRC read from the end of the stream
+		 * @param calculatedCRC The stream CRC calculated from the CRCs of the stream's blocks
+		 */
+		void setComplete (final int storedCRC, final int calculatedCRC) {
+
+			this.complete = true;
+			this.storedCRC = storedCRC;
+			this.calculatedCRC = calculatedCRC;
+
+		}
+
+
+		/**
+		 * @param bitOffset The bit offset of the stream's header within the compressed data
+		 */
+		Stream (final long bitOffset) {
+
+			this.bitOffset = bitOffset;
+
+		}
+
+	}
+
+
+	/**
+	 * The blocks found, in order
+	 */
+	private final List<Block> blocks = new ArrayList<Block>();
+
+	/**
+	 * The streams found, in order
+	 */
+	private final List<Stream> streams = new ArrayList<Stream>();
+
+	/**
+	 * An error that prevented the data following it from being verified, or {@code null}
+	 */
+	private IOException failure = null;
+
+
+	/**
+	 * @return The blocks found, in order
+	 */
+	public List<Block> getBlocks() {
+
+		return Collections.unmodifiableList (this.blocks);
+
+	}
+
+
+	/**
+	 * @return The blocks that failed, in order
+	 */
+	public List<Block> getFailedBlocks() {
+
+		final List<Block> failedBlocks = new ArrayList<Block>();
+		for (final Block block : this.blocks) {
+			if (!block.isValid()) {
+				failedBlocks.add (block);
+			}
+		}
+
+		return failedBlocks;
+
+	}
+
+
+	/**
+	 * @return The streams found, in order
+	 */
+	public List<Stream> getStreams() {
+
+		return Collections.unmodifiableList (this.streams);
+
+	}
+
+
+	/**
+	 * @return An error that prevented the data following it from being verified (such as an
+	 *         invalid stream header), or {@code null}
+	 */
+	public IOException getFailure() {
+
+		return this.failure;
+
+	}
+
+
+	/**
+	 * @return The total decoded length in bytes of the valid blocks
+	 */
+	public long getDecodedLength() {
+
+		long decodedLength = 0;
+		for (final Block block : this.blocks) {
+			if (block.isValid()) {
+				decodedLength += block.getDecodedLength();
+			}
+		}
+
+		return decodedLength;
+
+	}
+
+
+	/**
+	 * @return {@code true} if at least one stream was found, and every block and stream is valid
+	 */
+	public boolean isValid() {
+
+		if ((this.failure != null) || this.streams.isEmpty()) {
+			return false;
+		}
+
+		for (final Stream stream : this.streams) {
+			if (!stream.isValid()) {
+				return false;
+			}
+		}
+
+		for (final Block block : this.blocks) {
+			if (!block.isValid()) {
+				return false;
+			}
+		}
+
+		return true;
+
+	}
+
+
+	/**
+	 * Adds a block
+	 * @param block The block
+	 */
+	void addBlock (final Block block) {
+
+		this.blocks.add (block);
+
+	}
+
+
+	/**
+	 * Adds a stream
+	 * @param stream The stream
+	 */
+	void addStream (final Stream stream) {
+
+		this.streams.add (stream);
+
+	}
+
+
+	/**
+	 * Records an error that prevented the following data from being verified
+	 * @param failure The error
+	 */
+	void setFailure (final IOException failure) {
+
+		this.failure = failure;
+
+	}
+
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * <p>Verifies the integrity of BZip2 compressed data (as {@code bzip2 -t} does) without returning
+ * the decompressed data, decoding blocks in parallel</p>
+ *
+ * <p>The compressed data is read and Huffman decoded on the calling thread, as the end of each
+ * block can only be found by decoding it. Each decoded block is then passed to the executor,
+ * where its Inverse Burrows-Wheeler Transform and final Run-Length Decoding are performed and its
+ * CRC verified (see {@link BZip2BlockDecompressor#verifyCRC()}); as these are the greater part
+ * of the cost of decompression, verification scales with the number of threads available. The
+ * decoded output is never copied anywhere, and the working arrays of each block are reused by
+ * later blocks</p>
+ *
+ * <p>Every block and stream found is recorded in the returned {@link BZip2VerificationReport}.
+ * A block that cannot be decoded is recorded as failed, and verification resumes at the next
+ * block-header or end-of-stream marker, so that all the damage in the data is reported.
+ * Concatenated streams are verified in turn</p>
+ *
+ * <p>Instances of this class are threadsafe, and may perform any number of verifications at
+ * once.</p>
+ */
+public class BZip2Verifier {
+
+	/**
+	 * The size of the buffer through which compressed data is read
+	 */
+	private static final int INPUT_BUFFER_SIZE = 65536;
+
+
+	/**
+	 * The working arrays of a block decompressor
+	 */
+	private static final class Buffers {
+
+		/**
+		 * The Burrows-Wheeler Transform array
+		 */
+		final byte[] bwtBlock;
+
+		/**
+		 * The Inverse Burrows-Wheeler Transform merged pointer array
+		 */
+		final int[] bwtMergedPointers;
+
+
+		/**
+		 * @param blockSize The block size for which to allocate the arrays
+		 */
+		Buffers (final int blockSize) {
+
+			this.bwtBlock = new byte[blockSize];
+			this.bwtMergedPointers = new int[blockSize];
+
+		}
+
+	}
+
+
+	/**
+	 * The executor on which blocks are verified
+	 */
+	private final Executor executor;
+
+	/**
+	 * The maximum number of decoded blocks held awaiting or undergoing verification by each
+	 * verification
+	 */
+	private final int maximumBlocksInFlight;
+
+
+	/**
+	 * Reads a block-header or end-of-stream marker
+	 * @param bitInputStream The stream to read from
+	 * @return {@code true} for a block-header marker, or {@code false} for an end-of-stream marker
+	 * @throws IOException if the data read is neither marker
+	 */
+	private static boolean readMarker (final BZip2BitInputStream bitInputStream) throws IOException {
+
+		final int marker1 = bitInputStream.readBits (24);
+		final int marker2 = bitInputStream.readBits (24);
+
+		if (marker1 == BZip2Constants.BLOCK_HEADER_MARKER_1 && marker2 == BZip2Constants.BLOCK_HEADER_MARKER_2) {
+			return true;
+		} else if (marker1 == BZip2Constants.STREAM_END_MARKER_1 && marker2 == BZip2Constants.STREAM_END_MARKER_2) {
+			return false;
+		}
+
+		throw new BZip2Exception ("BZip2 stream format error");
+
+	}
+
+
+	/**
+	 * Reads a stream header
+	 * @param bitInputStream The stream to read from
+	 * @return The declared block size of the stream
+	 * @throws IOException if the stream header is not valid
+	 */
+	private static int readStreamHeader (final BZip2BitInputStream bitInputStream) throws IOException {
+
+		final int marker1 = bitInputStream.readBits (16);
+		final int marker2 = bitInputStream.readBits (8);
+		final int blockSize = (bitInputStream.readBits (8) - '0');
+
+		if (
+				   (marker1 != BZip2Constants.STREAM_START_MARKER_1)
+				|| (marker2 != BZip2Constants.STREAM_START_MARKER_2)
+				|| (blockSize < 1) || (blockSize > 9))
+		{
+			throw new BZip2Exception ("Invalid BZip2 header");
+		}
+
+		return blockSize * 100000;
+
+	}
+
+
+	/**
+	 * Verifies BZip2 compressed data
+	 * @param inputStream The compressed data. The stream is read to the end of the last BZip2
+	 *                    stream, but not closed
+	 * @return The verification report
+	 * @throws IOException on any I/O error reading the input stream, or if the calling thread is
+	 *                     interrupted
+	 */
+	public BZip2VerificationReport verify (final InputStream inputStream) throws IOException {
+
+		final BZip2BitInputStream bitInputStream = new BZip2BitInputStream (new BufferedInputStream (inputStream, INPUT_BUFFER_SIZE));
+		final BZip2VerificationReport report = new BZip2VerificationReport();
+		final Semaphore permits = new Semaphore (this.maximumBlocksInFlight);
+		final ArrayDeque<Buffers> freeBuffers = new ArrayDeque<Buffers>();
+
+		for (int streamIndex = 0; ; streamIndex++) {
+
+			// Each stream is padded to a whole number of bytes
+			if (streamIndex > 0) {
+				bitInputStream.alignToByte();
+				if (!bitInputStream.hasMoreData()) {
+					break;
+				}
+			}
+
+			final BZip2VerificationReport.Stream stream = new BZip2VerificationReport.Stream (bitInputStream.getBitPosition());
+			final int blockSize;
+			try {
+				blockSize = readStreamHeader (bitInputStream);
+			} catch (BZip2Exception e) {
+				report.setFailure (e);
+				break;
+			}
+			report.addStream (stream);
+
+			if (!verifyStream (bitInputStream, streamIndex, blockSize, stream, report, permits, freeBuffers)) {
+				break;
+			}
+
+		}
+
+		// Wait for the outstanding blocks
+		try {
+			permits.acquire (this.maximumBlocksInFlight);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		return report;
+
+	}
+
+
+	/**
+	 * Verifies a BZip2 compressed file
+	 * @param file The file to verify
+	 * @return The verification report
+	 * @throws IOException on any I/O error reading the file, or if the calling thread is
+	 *                     interrupted
+	 */
+	public BZip2VerificationReport verify (final File file) throws IOException {
+
+		final InputStream inputStream = new FileInputStream (file);
+		try {
+			return verify (inputStream);
+		} finally {
+			inputStream.close();
+		}
+
+	}
+
+
+	/**
+	 * Reads the blocks of a stream, passing each to the executor for verification. A block that
+	 * cannot be read is recorded as failed, and reading resumes at the next marker
+	 * @param bitInputStream The stream to read from, positioned after the stream header
+	 * @param streamIndex The index of the stream
+	 * @param blockSize The declared block size of the stream
+	 * @param stream The stream's verification result
+	 * @param report The report to which blocks are added
+	 * @param permits Permits for the blocks in flight
+	 * @param freeBuffers Working arrays available for reuse
+	 * @return {@code true} if the end of the stream was reached, or {@code false} if the input
+	 *         ended first
+	 * @throws IOException on any I/O error reading the input stream, or if the calling thread is
+	 *                     interrupted
+	 */
+	private boolean verifyStream (final BZip2BitInputStream bitInputStream, final int streamIndex, final int blockSize,
+			final BZip2VerificationReport.Stream stream, final BZip2VerificationReport report, final Semaphore permits,
+			final ArrayDeque<Buffers> freeBuffers) throws IOException
+	{
+
+		int streamCRC = 0;
+		long markerBitOffset = 0;
+		boolean markerRead = false;
+		boolean blockHeader = false;
+
+		for (;;) {
+
+			// Hold enough compressed data to return to the start of the longest possible block
+			bitInputStream.mark (BZip2Constants.MAXIMUM_COMPRESSED_BLOCK_SIZE);
+
+			try {
+				if (!markerRead) {
+					markerBitOffset = bitInputStream.getBitPosition();
+					blockHeader = readMarker (bitInputStream);
+				}
+				markerRead = false;
+
+				if (!blockHeader) {
+					stream.setComplete (bitInputStream.readInteger(), streamCRC);
+					return true;
+				}
+
+				final BZip2VerificationReport.Block block = new BZip2VerificationReport.Block (streamIndex, markerBitOffset);
+				final int blockCRC = submitBlock (bitInputStream, blockSize, block, permits, freeBuffers);
+				block.setBitLength (bitInputStream.getBitPosition() - markerBitOffset);
+				report.addBlock (block);
+				streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ blockCRC;
+			} catch (BZip2Exception e) {
+				stream.setDamaged();
+				final BZip2VerificationReport.Block block = new BZip2VerificationReport.Block (streamIndex, markerBitOffset);
+				block.setFailure (e);
+				report.addBlock (block);
+
+				// Scan forward from the bit following the start of the damaged block
+				bitInputStream.reset();
+				try {
+					bitInputStream.readBoolean();
+					blockHeader = bitInputStream.readToNextMarker();
+				} catch (BZip2Exception endOfInput) {
+					block.setBitLength (bitInputStream.getBitPosition() - markerBitOffset);
+					return false;
+				}
+
+				final long nextMarkerBitOffset = bitInputStream.getBitPosition() - 48;
+				block.setBitLength (nextMarkerBitOffset - markerBitOffset);
+				markerBitOffset = nextMarkerBitOffset;
+				markerRead = true;
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Takes a set of working arrays for reuse, or allocates one if none large enough is available
+	 * @param blockSize The declared block size of the stream
+	 * @param freeBuffers Working arrays available for reuse
+	 * @return The working arrays
+	 */
+	private static Buffers takeBuffers (final int blockSize, final ArrayDeque<Buffers> freeBuffers) {
+
+		Buffers buffers;
+		synchronized (freeBuffers) {
+			buffers = freeBuffers.poll();
+		}
+
+		if ((buffers == null) || (buffers.bwtBlock.length < blockSize)) {
+			buffers = new Buffers (blockSize);
+		}
+
+		return buffers;
+
+	}
+
+
+	/**
+	 * Returns a set of working arrays for reuse, and releases the block's permit
+	 * @param buffers The working arrays
+	 * @param permits Permits for the blocks in flight
+	 * @param freeBuffers Working arrays available for reuse
+	 */
+	private static void releaseBuffers (final Buffers buffers, final Semaphore permits, final ArrayDeque<Buffers> freeBuffers) {
+
+		synchronized (freeBuffers) {
+			freeBuffers.offer (buffers);
+		}
+		permits.release();
+
+	}
+
+
+	/**
+	 * Reads and Huffman decodes a block into reused working arrays, then verifies it on the
+	 * executor. If the maximum number of blocks is already in flight, waits for one to complete
+	 * @param bitInputStream The stream to read from, positioned after the block header marker
+	 * @param blockSize The declared block size of the stream
+	 * @param block The block's verification result
+	 * @param permits Permits for the blocks in flight
+	 * @param freeBuffers Working arrays available for reuse
+	 * @return The block's stored CRC
+	 * @throws IOException if the block could not be decoded, or the calling thread was interrupted
+	 */
+	private int submitBlock (final BZip2BitInputStream bitInputStream, final int blockSize, final BZip2VerificationReport.Block block,
+			final Semaphore permits, final ArrayDeque<Buffers> freeBuffers) throws IOException
+	{
+
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		final Buffers buffers = takeBuffers (blockSize, freeBuffers);
+		final BZip2BlockDecompressor blockDecompressor;
+		try {
+			blockDecompressor = new BZip2BlockDecompressor (bitInputStream, blockSize, buffers.bwtBlock, buffers.bwtMergedPointers, false);
+		} catch (IOException e) {
+			releaseBuffers (buffers, permits, freeBuffers);
+			throw e;
+		}
+
+		final Runnable task = new Runnable() {
+			public void run() {
+				try {
+					block.setDecodedLength (blockDecompressor.verifyCRC());
+				} catch (IOException e) {
+					block.setFailure (e);
+				} finally {
+					releaseBuffers (buffers, permits, freeBuffers);
+				}
+			}
+		};
+
+		if (this.executor == null) {
+			task.run();
+		} else {
+			try {
+				this.executor.execute (task);
+			} catch (RejectedExecutionException e) {
+				releaseBuffers (buffers, permits, freeBuffers);
+				throw e;
+			}
+		}
+
+		return blockDecompressor.getStoredCRC();
+
+	}
+
+
+	/**
+	 * Creates a verifier that verifies blocks on the calling thread
+	 */
+	public BZip2Verifier() {
+
+		this (null, 1);
+
+	}
+
+
+	/**
+	 * @param executor The executor on which blocks are verified, or {@code null} to verify each
+	 *                 block on the calling thread
+	 * @param maximumBlocksInFlight The maximum number of decoded blocks each verification holds
+	 *                              awaiting or undergoing verification (minimum 1). Each requires
+	 *                              up to 4.5MB of working memory, which is reused between blocks.
+	 *                              To keep every thread of the executor busy, this should be
+	 *                              somewhat more than the number of threads
+	 */
+	public BZip2Verifier (final Executor executor, final int maximumBlocksInFlight) {
+
+		if (maximumBlocksInFlight < 1) {
+			throw new IllegalArgumentException ("Invalid maximum blocks in flight: " + maximumBlocksInFlight);
+		}
+
+		this.executor = executor;
+		this.maximumBlocksInFlight = maximumBlocksInFlight;
+
+	}
+
+}